@@ -0,0 +1,16 @@
+package org.sleuthkit.autopsy.coreutils;
+
+/**
+ * Stub of the Autopsy logger so the scanner can be benchmarked without
+ * Autopsy.
+ */
+public class Logger extends java.util.logging.Logger {
+
+    protected Logger(String name) {
+        super(name, null);
+    }
+
+    public static Logger getLogger(String name) {
+        return new Logger(name);
+    }
+}
@@ -0,0 +1,15 @@
+package org.sleuthkit.datamodel;
+
+/**
+ * Stub of the Sleuth Kit file, reduced to reading content.
+ */
+public abstract class AbstractFile {
+
+    public abstract long getSize();
+
+    public abstract int read(byte[] buf, long offset, long len) throws TskCoreException;
+
+    public String getMd5Hash() {
+        return null;
+    }
+}
@@ -0,0 +1,43 @@
+package org.sleuthkit.datamodel;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stub of the Sleuth Kit content stream, reads the file through
+ * AbstractFile.read.
+ */
+public class ReadContentInputStream extends InputStream {
+
+    private final AbstractFile file;
+    private long position = 0;
+
+    public ReadContentInputStream(AbstractFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] buffer = new byte[1];
+        return read(buffer, 0, 1) == 1 ? buffer[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (position >= file.getSize()) {
+            return -1;
+        }
+        byte[] buffer = (off == 0) ? b : new byte[len];
+        int read;
+        try {
+            read = file.read(buffer, position, Math.min(len, file.getSize() - position));
+        } catch (TskCoreException ex) {
+            throw new IOException(ex);
+        }
+        if (buffer != b) {
+            System.arraycopy(buffer, 0, b, off, read);
+        }
+        position += read;
+        return read;
+    }
+}
@@ -0,0 +1,13 @@
+package org.sleuthkit.datamodel;
+
+/**
+ * Stub of the Sleuth Kit exception.
+ */
+public class TskCoreException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public TskCoreException(String message) {
+        super(message);
+    }
+}
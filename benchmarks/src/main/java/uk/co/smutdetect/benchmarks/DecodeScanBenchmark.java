@@ -0,0 +1,100 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.smutdetect.SmutDetectCategorisedImage;
+import uk.co.smutdetect.SmutDetectImageScanner;
+import uk.co.smutdetect.SmutDetectScanOptions;
+
+/**
+ * Decode and scan of an encoded image held in memory, the path every image
+ * file takes through the ingest module minus reading it from the case. PNG
+ * and BMP are streamed row by row by default, rasterDecodeAndScan decodes
+ * them into an image instead.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class DecodeScanBenchmark {
+
+	@Param({"jpeg", "png", "bmp", "gif"})
+	public String format;
+
+	@Param({"640x480", "1920x1080", "4000x3000"})
+	public String size;
+
+	private byte[] encoded_;
+	private SmutDetectScanOptions defaultOptions_;
+	private SmutDetectScanOptions subsampledOptions_;
+	private SmutDetectScanOptions rasterOptions_;
+
+
+	@Setup
+	public void setUp() throws IOException {
+		int[] dimensions = TestImages.parseSize(size);
+		encoded_ = TestImages.encode(TestImages.createPhoto(dimensions[0],
+				dimensions[1], java.awt.image.BufferedImage.TYPE_INT_RGB),
+				format);
+
+		defaultOptions_ = new SmutDetectScanOptions();
+		subsampledOptions_ = new SmutDetectScanOptions();
+		subsampledOptions_.setSubsampledDecode(true);
+		rasterOptions_ = new SmutDetectScanOptions();
+		rasterOptions_.setStreamingScan(false);
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage decodeAndScan() {
+		return SmutDetectImageScanner.scanImage(
+				new ByteArrayInputStream(encoded_), defaultOptions_);
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage subsampledDecodeAndScan() {
+		return SmutDetectImageScanner.scanImage(
+				new ByteArrayInputStream(encoded_), subsampledOptions_);
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage rasterDecodeAndScan() {
+		return SmutDetectImageScanner.scanImage(
+				new ByteArrayInputStream(encoded_), rasterOptions_);
+	}
+
+}
@@ -0,0 +1,63 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.co.smutdetect.benchmarks;
+
+import uk.co.smutdetect.SmutDetectPixelClassifier;
+import uk.co.smutdetect.SmutDetectSkinToneTable;
+import uk.co.smutdetect.YCbCrSkinToneDetector;
+
+/**
+ * Exhaustive parity check over all 16,777,216 colours: the fixed point
+ * YCbCr detector against its floating point reference, the skin-tone table
+ * against the detectors and, if available, the vector classifier. Exits
+ * with status 1 if any check fails, which fails the test phase of the
+ * build.
+ *
+ * Run on its own with
+ *   java --add-modules jdk.incubator.vector -cp target/benchmarks.jar uk.co.smutdetect.benchmarks.DetectorParity
+ *
+ * @author Rajmund Witt
+ */
+public final class DetectorParity {
+
+	private DetectorParity() {
+	}
+
+	public static void main(String[] args) {
+		boolean passed = report("Fixed point YCbCr detector",
+				YCbCrSkinToneDetector.verify());
+		passed &= report("Skin-tone table", SmutDetectSkinToneTable.verify());
+
+		SmutDetectPixelClassifier vector =
+			SmutDetectPixelClassifier.getVectorClassifier();
+		if (vector != null) {
+			passed &= report("Vector classifier", vector.verify());
+		} else {
+			System.out.println("Vector classifier: not available");
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static boolean report(String name, boolean passed) {
+		System.out.println(name + ": " + (passed ? "OK" : "MISMATCH"));
+		return passed;
+	}
+
+}
@@ -0,0 +1,80 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.co.smutdetect.benchmarks;
+
+import java.awt.image.BufferedImage;
+import uk.co.smutdetect.SmutDetectCategorisedImage;
+import uk.co.smutdetect.SmutDetectRasterScanner;
+import uk.co.smutdetect.SmutDetectSampledScanner;
+
+/**
+ * Reports how often the early exit scan assigns the same 10% band as a full
+ * scan, and the share of pixels it classified, over synthetic photos with
+ * skin-tone areas of all sizes.
+ *
+ * Run with
+ *   java -cp target/benchmarks.jar uk.co.smutdetect.benchmarks.EarlyExitAgreement [images] [WIDTHxHEIGHT]
+ *
+ * @author Rajmund Witt
+ */
+public final class EarlyExitAgreement {
+
+	private EarlyExitAgreement() {
+	}
+
+	public static void main(String[] args) {
+		int numberOfImages = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		int[] dimensions = TestImages.parseSize(
+				(args.length > 1) ? args[1] : "1920x1080");
+		int agreeing = 0;
+		long sampledPixels = 0;
+		long numberOfPixels = 0;
+
+		for (int i = 0; i < numberOfImages; i++) {
+			BufferedImage image = TestImages.createPhoto(dimensions[0],
+					dimensions[1], BufferedImage.TYPE_INT_RGB,
+					TestImages.SEED + 1 + i);
+
+			SmutDetectCategorisedImage full = new SmutDetectCategorisedImage(
+					image.getWidth(), image.getHeight());
+			SmutDetectRasterScanner.scanImage(image, full);
+			full.computePercentages(true, true);
+
+			SmutDetectCategorisedImage sampled = new SmutDetectCategorisedImage(
+					image.getWidth(), image.getHeight());
+			SmutDetectSampledScanner.scanImage(image, sampled);
+			sampled.computePercentages(true, true);
+
+			if (full.getReadableAveragePercentage() / 10 ==
+					sampled.getReadableAveragePercentage() / 10) {
+				agreeing++;
+			}
+			sampledPixels += sampled.getNumberOfSampledPixels();
+			numberOfPixels += sampled.getNumberOfPixels();
+		}
+
+		System.out.printf("Images: %d (%dx%d)%n", numberOfImages,
+				dimensions[0], dimensions[1]);
+		System.out.printf("Band agreement: %.2f%%%n",
+				100.0 * agreeing / numberOfImages);
+		System.out.printf("Pixels classified: %.2f%%%n",
+				100.0 * sampledPixels / numberOfPixels);
+	}
+
+}
@@ -0,0 +1,89 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.co.smutdetect.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.smutdetect.SmutDetectCategorisedImage;
+import uk.co.smutdetect.SmutDetectRasterScanner;
+import uk.co.smutdetect.SmutDetectSampledScanner;
+
+/**
+ * Full raster scan against the early exit scan of the same photo. The band
+ * agreement of the early exit scan is reported by EarlyExitAgreement.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EarlyExitScanBenchmark {
+
+	@Param({"INT_RGB", "3BYTE_BGR"})
+	public String imageType;
+
+	@Param({"1920x1080", "4000x3000"})
+	public String size;
+
+	private BufferedImage image_;
+
+
+	@Setup
+	public void setUp() {
+		int[] dimensions = TestImages.parseSize(size);
+		image_ = TestImages.createPhoto(dimensions[0], dimensions[1],
+				TestImages.parseImageType(imageType));
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage fullScan() {
+		SmutDetectCategorisedImage cImage = newCategorisedImage();
+		SmutDetectRasterScanner.scanImage(image_, cImage);
+		cImage.computePercentages(true, true);
+		return cImage;
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage earlyExitScan() {
+		SmutDetectCategorisedImage cImage = newCategorisedImage();
+		SmutDetectSampledScanner.scanImage(image_, cImage);
+		cImage.computePercentages(true, true);
+		return cImage;
+	}
+
+	private SmutDetectCategorisedImage newCategorisedImage() {
+		return new SmutDetectCategorisedImage(image_.getWidth(),
+				image_.getHeight());
+	}
+
+}
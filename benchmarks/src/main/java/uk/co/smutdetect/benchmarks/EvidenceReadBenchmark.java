@@ -0,0 +1,218 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.ReadContentInputStream;
+import org.sleuthkit.datamodel.TskCoreException;
+import uk.co.smutdetect.SmutDetectCategorisedImage;
+import uk.co.smutdetect.SmutDetectEvidenceReader;
+import uk.co.smutdetect.SmutDetectImageScanner;
+import uk.co.smutdetect.SmutDetectScanOptions;
+import uk.co.smutdetect.SmutDetectScanTrace;
+
+/**
+ * Header check, decode and scan of an image file stored like in an E01
+ * image: in deflated 32 KB chunks, every read inflates all chunks it touches.
+ * Compares the 6 byte header read followed by a decode through
+ * ReadContentInputStream with the chunked reads of SmutDetectEvidenceReader,
+ * buffered and streamed. The auxiliary counters report the reads and the
+ * chunks inflated, totalled over each iteration.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EvidenceReadBenchmark {
+
+	@Param({"jpeg", "png", "bmp"})
+	public String format;
+
+	@Param({"640x480", "1920x1080"})
+	public String size;
+
+	private CompressedFile file_;
+	private SmutDetectScanOptions bufferedOptions_;
+	private SmutDetectScanOptions streamedOptions_;
+
+
+	@Setup
+	public void setUp() throws IOException {
+		int[] dimensions = TestImages.parseSize(size);
+		file_ = new CompressedFile(TestImages.encode(TestImages.createPhoto(
+				dimensions[0], dimensions[1],
+				java.awt.image.BufferedImage.TYPE_INT_RGB), format));
+
+		bufferedOptions_ = new SmutDetectScanOptions();
+		streamedOptions_ = new SmutDetectScanOptions();
+		streamedOptions_.setMaxBufferedFileBytes(0);
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Reads {
+
+		public long reads;
+		public long chunksInflated;
+
+		@Setup(Level.Iteration)
+		public void clean() {
+			reads = 0;
+			chunksInflated = 0;
+		}
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage contentStream(Reads reads)
+			throws TskCoreException {
+		byte[] header = new byte[6];
+		file_.read(header, 0, 6);
+		SmutDetectCategorisedImage cImage = SmutDetectImageScanner.scanImage(
+				new ReadContentInputStream(file_), bufferedOptions_,
+				new SmutDetectScanTrace());
+		file_.drainCounters(reads);
+		return cImage;
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage evidenceBuffered(Reads reads)
+			throws TskCoreException {
+		return scanEvidence(bufferedOptions_, reads);
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage evidenceStreamed(Reads reads)
+			throws TskCoreException {
+		return scanEvidence(streamedOptions_, reads);
+	}
+
+	private SmutDetectCategorisedImage scanEvidence(
+			SmutDetectScanOptions options, Reads reads)
+			throws TskCoreException {
+		SmutDetectEvidenceReader evidence = new SmutDetectEvidenceReader(file_,
+				options.getMaxBufferedFileBytes());
+		evidence.readHeader(new byte[6], 6);
+		SmutDetectCategorisedImage cImage = SmutDetectImageScanner.scanImage(
+				evidence, options, new SmutDetectScanTrace());
+		file_.drainCounters(reads);
+		return cImage;
+	}
+
+
+	/**
+	 * File content kept in deflated chunks which are inflated on every read,
+	 * the way a compressed disk image is read.
+	 */
+	static final class CompressedFile extends AbstractFile {
+
+		private static final int CHUNK = 32 * 1024;
+
+		private final List<byte[]> chunks_ = new ArrayList<byte[]>();
+		private final long size_;
+		private final byte[] inflated_ = new byte[CHUNK];
+		private long reads_;
+		private long chunksInflated_;
+
+		CompressedFile(byte[] content) {
+			size_ = content.length;
+			Deflater deflater = new Deflater();
+			byte[] out = new byte[CHUNK + 1024];
+			for (int off = 0; off < content.length; off += CHUNK) {
+				deflater.reset();
+				deflater.setInput(content, off,
+						Math.min(CHUNK, content.length - off));
+				deflater.finish();
+				ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+				while (!deflater.finished()) {
+					chunk.write(out, 0, deflater.deflate(out));
+				}
+				chunks_.add(chunk.toByteArray());
+			}
+			deflater.end();
+		}
+
+		@Override
+		public long getSize() {
+			return size_;
+		}
+
+		@Override
+		public synchronized int read(byte[] buf, long offset, long len)
+				throws TskCoreException {
+			int length = (int) Math.min(len, Math.max(0, size_ - offset));
+			int done = 0;
+			reads_++;
+
+			Inflater inflater = new Inflater();
+			try {
+				while (done < length) {
+					long position = offset + done;
+					int chunk = (int) (position / CHUNK);
+					int inChunk = (int) (position % CHUNK);
+					inflater.reset();
+					inflater.setInput(chunks_.get(chunk));
+					int inflated = inflater.inflate(inflated_);
+					chunksInflated_++;
+					int n = Math.min(length - done, inflated - inChunk);
+					System.arraycopy(inflated_, inChunk, buf, done, n);
+					done += n;
+				}
+			} catch (DataFormatException ex) {
+				throw new TskCoreException(ex.getMessage());
+			} finally {
+				inflater.end();
+			}
+			return done;
+		}
+
+		synchronized void drainCounters(Reads reads) {
+			reads.reads += reads_;
+			reads.chunksInflated += chunksInflated_;
+			reads_ = 0;
+			chunksInflated_ = 0;
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.smutdetect.RgbSkinToneDetector;
+import uk.co.smutdetect.SmutDetectCategorisedImage;
+import uk.co.smutdetect.SmutDetectRasterScanner;
+import uk.co.smutdetect.SmutDetectScanOptions;
+import uk.co.smutdetect.YCbCrSkinToneDetector;
+
+/**
+ * Scan of an already decoded image, for the image types ImageIO commonly
+ * returns and a range of sizes.
+ *
+ * "getRgbLoop" is the original per-pixel getRGB loop calling both
+ * detectors and serves as the baseline for the raster scanner.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ImageScanBenchmark {
+
+	@Param({"INT_RGB", "INT_ARGB", "INT_BGR", "3BYTE_BGR", "4BYTE_ABGR",
+			"BYTE_GRAY", "BYTE_INDEXED"})
+	public String imageType;
+
+	@Param({"640x480", "1920x1080", "4000x3000"})
+	public String size;
+
+	private BufferedImage image_;
+	private SmutDetectScanOptions parallelOptions_;
+
+
+	@Setup
+	public void setUp() {
+		int[] dimensions = TestImages.parseSize(size);
+		image_ = TestImages.createPhoto(dimensions[0], dimensions[1],
+				TestImages.parseImageType(imageType));
+
+		parallelOptions_ = new SmutDetectScanOptions();
+		parallelOptions_.setParallelScan(true);
+		parallelOptions_.setParallelPixelThreshold(0);
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage rasterScan() {
+		SmutDetectCategorisedImage cImage = newCategorisedImage();
+		SmutDetectRasterScanner.scanImage(image_, cImage);
+		return cImage;
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage parallelRasterScan() {
+		SmutDetectCategorisedImage cImage = newCategorisedImage();
+		SmutDetectRasterScanner.scanImage(image_, cImage, parallelOptions_);
+		return cImage;
+	}
+
+	@Benchmark
+	public SmutDetectCategorisedImage getRgbLoop() {
+		SmutDetectCategorisedImage cImage = newCategorisedImage();
+
+		for (int y = 0; y < image_.getHeight(); y++) {
+			for (int x = 0; x < image_.getWidth(); x++) {
+				int color = image_.getRGB(x, y);
+				if (RgbSkinToneDetector.checkColor(color)) {
+					cImage.increasNumberOfRgbSkinToneHits();
+				}
+				if (YCbCrSkinToneDetector.checkColor(color)) {
+					cImage.increasNumberOfYCbCrSkinToneHits();
+				}
+			}
+		}
+		cImage.computePercentages(true, true);
+		return cImage;
+	}
+
+	private SmutDetectCategorisedImage newCategorisedImage() {
+		return new SmutDetectCategorisedImage(image_.getWidth(),
+				image_.getHeight());
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.smutdetect.SmutDetectCategorisedImage;
+
+/**
+ * Cost of turning the hit counts of a scan into percentages and into the
+ * comment stored on the blackboard, paid once per image.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PercentageBenchmark {
+
+	private int rgbHits_ = 1234567;
+	private int yCbCrHits_ = 987654;
+
+
+	@Benchmark
+	public SmutDetectCategorisedImage computePercentages() {
+		SmutDetectCategorisedImage cImage = newScannedImage();
+		cImage.computePercentages(true, true);
+		return cImage;
+	}
+
+	@Benchmark
+	public String computePercentagesAndFormat() {
+		SmutDetectCategorisedImage cImage = newScannedImage();
+		cImage.computePercentages(true, true);
+		return cImage.toString();
+	}
+
+	private SmutDetectCategorisedImage newScannedImage() {
+		SmutDetectCategorisedImage cImage =
+			new SmutDetectCategorisedImage(4000, 3000);
+		cImage.addRgbSkinToneHits(rgbHits_);
+		cImage.addYCbCrSkinToneHits(yCbCrHits_);
+		return cImage;
+	}
+
+}
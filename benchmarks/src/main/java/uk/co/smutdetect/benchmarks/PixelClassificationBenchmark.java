@@ -0,0 +1,134 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.smutdetect.RgbSkinToneDetector;
+import uk.co.smutdetect.SmutDetectSkinToneTable;
+import uk.co.smutdetect.YCbCrSkinToneDetector;
+
+/**
+ * Cost of classifying a single pixel, by the detectors (including the
+ * floating point YCbCr reference) and by the precomputed skin-tone table.
+ *
+ * Results are reported per pixel. "random" colours defeat the branch
+ * predictor and the caches of the table, "photo" colours come from a
+ * synthetic photo and are closer to what the module sees.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(PixelClassificationBenchmark.NUMBER_OF_COLORS)
+public class PixelClassificationBenchmark {
+
+	static final int NUMBER_OF_COLORS = 1 << 16;
+
+	@Param({"random", "photo"})
+	public String distribution;
+
+	private int[] colors_;
+
+
+	@Setup
+	public void setUp() {
+		if ("random".equals(distribution)) {
+			colors_ = TestImages.randomColors(NUMBER_OF_COLORS);
+		} else {
+			colors_ = TestImages.photoColors(NUMBER_OF_COLORS);
+		}
+		// build the table outside of the measurement
+		SmutDetectSkinToneTable.lookup(0);
+	}
+
+	@Benchmark
+	public int rgbDetector() {
+		int hits = 0;
+		for (int color : colors_) {
+			if (RgbSkinToneDetector.checkColor(color)) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int yCbCrDetector() {
+		int hits = 0;
+		for (int color : colors_) {
+			if (YCbCrSkinToneDetector.checkColor(color)) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int yCbCrReference() {
+		int hits = 0;
+		for (int color : colors_) {
+			if (YCbCrSkinToneDetector.checkColorReference(color)) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int bothDetectors() {
+		int hits = 0;
+		for (int color : colors_) {
+			if (RgbSkinToneDetector.checkColor(color)) {
+				hits++;
+			}
+			if (YCbCrSkinToneDetector.checkColor(color)) {
+				hits++;
+			}
+		}
+		return hits;
+	}
+
+	@Benchmark
+	public int skinToneTable() {
+		int hits = 0;
+		for (int color : colors_) {
+			int bits = SmutDetectSkinToneTable.lookup(color);
+			hits += (bits & 1) + (bits >> 1);
+		}
+		return hits;
+	}
+
+}
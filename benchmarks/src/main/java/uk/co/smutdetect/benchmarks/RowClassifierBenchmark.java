@@ -0,0 +1,91 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package uk.co.smutdetect.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.smutdetect.SmutDetectPixelClassifier;
+
+/**
+ * Pixel classifier engines on a row of pixels, reported per pixel. The
+ * vector engine needs Java 17 or later, the forks add the incubator module.
+ *
+ * @author Rajmund Witt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@OperationsPerInvocation(RowClassifierBenchmark.ROW_LENGTH)
+public class RowClassifierBenchmark {
+
+	static final int ROW_LENGTH = 4000;
+
+	@Param({"table", "vector"})
+	public String engine;
+
+	@Param({"random", "photo"})
+	public String distribution;
+
+	private SmutDetectPixelClassifier classifier_;
+	private int[] row_;
+	private final long[] hits_ = new long[2];
+
+
+	@Setup
+	public void setUp() {
+		if ("vector".equals(engine)) {
+			classifier_ = SmutDetectPixelClassifier.getVectorClassifier();
+			if (classifier_ == null) {
+				throw new IllegalStateException("Vector classifier not " +
+						"available, build and run on Java 17 or later");
+			}
+		} else {
+			classifier_ = SmutDetectPixelClassifier.getTableClassifier();
+		}
+
+		if ("random".equals(distribution)) {
+			row_ = TestImages.randomColors(ROW_LENGTH);
+		} else {
+			row_ = TestImages.photoColors(ROW_LENGTH);
+		}
+	}
+
+	@Benchmark
+	public long[] countRow() {
+		hits_[0] = 0;
+		hits_[1] = 0;
+		classifier_.countRow(row_, ROW_LENGTH, hits_);
+		return hits_;
+	}
+
+}
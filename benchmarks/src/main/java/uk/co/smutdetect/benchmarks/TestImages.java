@@ -0,0 +1,220 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect.benchmarks;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Synthetic images and colours shared by the benchmarks.
+ *
+ * The "photos" are a sky to grass gradient with a shaded skin-tone ellipse
+ * and per-pixel noise, so both detectors see a mix of hits and misses and
+ * the encoders have realistic work to do. All content is generated from a
+ * fixed seed so runs are comparable.
+ *
+ * @author Rajmund Witt
+ */
+final class TestImages {
+
+	static final long SEED = 20140101L;
+
+
+	private TestImages() {
+	}
+
+	/**
+	 * @param size image size as WIDTHxHEIGHT
+	 * @return width and height
+	 */
+	static int[] parseSize(String size) {
+		String[] parts = size.split("x");
+		return new int[] {Integer.parseInt(parts[0]),
+				Integer.parseInt(parts[1])};
+	}
+
+	/**
+	 * @param name BufferedImage type without the TYPE_ prefix, e.g. INT_RGB
+	 * @return the BufferedImage type constant
+	 */
+	static int parseImageType(String name) {
+		try {
+			return BufferedImage.class.getField("TYPE_" + name).getInt(null);
+		} catch (ReflectiveOperationException exc) {
+			throw new IllegalArgumentException("Unknown image type " + name,
+					exc);
+		}
+	}
+
+	/**
+	 * @return colours uniformly distributed over the sRGB cube
+	 */
+	static int[] randomColors(int count) {
+		Random random = new Random(SEED);
+		int[] colors = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			colors[i] = 0xff000000 | random.nextInt(1 << 24);
+		}
+		return colors;
+	}
+
+	/**
+	 * @return colours sampled at random positions of a synthetic photo
+	 */
+	static int[] photoColors(int count) {
+		BufferedImage photo = createPhoto(1024, 768, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(SEED);
+		int[] colors = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			colors[i] = photo.getRGB(random.nextInt(photo.getWidth()),
+					random.nextInt(photo.getHeight()));
+		}
+		return colors;
+	}
+
+	/**
+	 * Draws a synthetic photo.
+	 *
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param imageType BufferedImage type of the result
+	 * @return the image, converted to the type by Java2D
+	 */
+	static BufferedImage createPhoto(int width, int height, int imageType) {
+		return createPhoto(width, height, imageType, SEED);
+	}
+
+	/**
+	 * Draws a synthetic photo whose skin-tone area and noise depend on the
+	 * seed, the ellipse may grow beyond the image. The seed of the other
+	 * overload gives a skin-tone ellipse of half the image width.
+	 *
+	 * @param width width of the image
+	 * @param height height of the image
+	 * @param imageType BufferedImage type of the result
+	 * @param seed seed of the layout and the noise
+	 * @return the image, converted to the type by Java2D
+	 */
+	static BufferedImage createPhoto(int width, int height, int imageType,
+			long seed) {
+		// consecutive seeds start java.util.Random with similar values,
+		// spread them first
+		Random random = new Random((seed == SEED) ? SEED :
+				seed * 0x9e3779b97f4a7c15L);
+		double scale = (seed == SEED) ? 0.5 : 0.05 + 1.1 * random.nextDouble();
+		int ovalWidth = (int) (width * scale);
+		int ovalHeight = (int) (height * scale * 4 / 3);
+		int ovalX = (width - ovalWidth) / 2;
+		int ovalY = (height - ovalHeight) / 2;
+
+		BufferedImage rgb = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+
+		g.setPaint(new GradientPaint(0, 0, new Color(110, 160, 220),
+				0, height, new Color(70, 120, 50)));
+		g.fillRect(0, 0, width, height);
+		g.setPaint(new GradientPaint(ovalX, 0, new Color(235, 190, 160),
+				ovalX + ovalWidth, 0, new Color(150, 95, 70)));
+		g.fillOval(ovalX, ovalY, ovalWidth, ovalHeight);
+		g.dispose();
+
+		// sensor noise, keeps the encoders from compressing flat areas
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			rgb.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int noise = random.nextInt(17) - 8;
+				row[x] = addNoise(row[x], noise);
+			}
+			rgb.setRGB(0, y, width, 1, row, 0, width);
+		}
+
+		if (imageType == BufferedImage.TYPE_INT_RGB) {
+			return rgb;
+		}
+		BufferedImage converted = new BufferedImage(width, height, imageType);
+		Graphics2D gc = converted.createGraphics();
+		gc.drawImage(rgb, 0, 0, null);
+		gc.dispose();
+		return converted;
+	}
+
+	/**
+	 * Encodes an image with ImageIO.
+	 *
+	 * @param image image without alpha
+	 * @param format ImageIO format name
+	 * @return the encoded image
+	 */
+	static byte[] encode(BufferedImage image, String format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		if (!ImageIO.write(image, format, out)) {
+			throw new IOException("No ImageIO writer for " + format);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param image image without alpha
+	 * @return the image as a progressive JPEG
+	 */
+	static byte[] encodeProgressiveJpeg(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+
+		ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+		try {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			stream.close();
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	private static int addNoise(int color, int noise) {
+		int r = clamp(((color >> 16) & 0xff) + noise);
+		int g = clamp(((color >> 8) & 0xff) + noise);
+		int b = clamp((color & 0xff) + noise);
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+
+}
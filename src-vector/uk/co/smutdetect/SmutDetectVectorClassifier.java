@@ -0,0 +1,107 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pixel classifier evaluating both skin-tone rules on vectors of pixels with
+ * the incubating Vector API (Java 16 or later, run with
+ * --add-modules jdk.incubator.vector).
+ *
+ * The RGB rule of RgbSkinToneDetector reduces to comparisons of the
+ * channels: red &gt; 95, green &gt; 40, blue &gt; 20, red - green &gt; 15 and
+ * red &gt; blue (red is then the maximum and red - min &gt;= red - green). The
+ * YCbCr rule uses the fixed point chroma of YCbCrSkinToneDetector, so all
+ * lanes stay int and both counts equal the scalar detectors. The masks are
+ * counted per vector, the tail of a row is looked up in the skin-tone table.
+ *
+ * Loaded by name through SmutDetectPixelClassifier, which falls back to the
+ * table if this class or the module is missing.
+ *
+ * @author Rajmund Witt
+ * @see SmutDetectPixelClassifier
+ */
+public final class SmutDetectVectorClassifier extends SmutDetectPixelClassifier {
+
+	private static final VectorSpecies<Integer> INTS =
+		IntVector.SPECIES_PREFERRED;
+
+	// fixed point chroma as in YCbCrSkinToneDetector
+	private static final int CB_MIN = (77 - 128) * 10000;
+	private static final int CB_LIMIT = (127 + 1 - 128) * 10000;
+	private static final int CR_MIN = (133 - 128) * 10000;
+	private static final int CR_LIMIT = (173 + 1 - 128) * 10000;
+
+
+	@Override
+	public String getName() {
+		return "vector (" + INTS.length() + " lanes)";
+	}
+
+	@Override
+	public void countRow(int[] row, int length, long[] hits) {
+		int upperBound = INTS.loopBound(length);
+		long rgbHits = 0;
+		long yCbCrHits = 0;
+		int i = 0;
+
+		for (; i < upperBound; i += INTS.length()) {
+			IntVector color = IntVector.fromArray(INTS, row, i);
+			IntVector red = color.lanewise(VectorOperators.LSHR, 16).and(0xff);
+			IntVector green = color.lanewise(VectorOperators.LSHR, 8).and(0xff);
+			IntVector blue = color.and(0xff);
+
+			VectorMask<Integer> rgbSkin = red.compare(VectorOperators.GT, 95)
+					.and(green.compare(VectorOperators.GT, 40))
+					.and(blue.compare(VectorOperators.GT, 20))
+					.and(red.sub(green).compare(VectorOperators.GT, 15))
+					.and(red.compare(VectorOperators.GT, blue));
+			rgbHits += rgbSkin.trueCount();
+
+			IntVector cb = red.mul(-1687).add(green.mul(-3313))
+					.add(blue.mul(5000));
+			IntVector cr = red.mul(5000).add(green.mul(-4187))
+					.add(blue.mul(-813));
+
+			VectorMask<Integer> yCbCrSkin =
+					cb.compare(VectorOperators.GE, CB_MIN)
+					.and(cb.compare(VectorOperators.LT, CB_LIMIT))
+					.and(cr.compare(VectorOperators.GE, CR_MIN))
+					.and(cr.compare(VectorOperators.LT, CR_LIMIT));
+			yCbCrHits += yCbCrSkin.trueCount();
+		}
+
+		// tail shorter than a vector
+		byte[] table = SmutDetectSkinToneTable.getTable();
+		for (; i < length; i++) {
+			int bits = SmutDetectSkinToneTable.lookup(table, row[i]);
+			rgbHits += bits & SmutDetectSkinToneTable.RGB_HIT;
+			yCbCrHits += bits >>> 1;
+		}
+
+		hits[0] += rgbHits;
+		hits[1] += yCbCrHits;
+	}
+
+}
@@ -19,8 +19,6 @@
 
 package uk.co.smutdetect;
 
-import java.math.BigDecimal;
-import java.math.MathContext;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -36,6 +34,26 @@ import java.util.Date;
  */
 public class SmutDetectCategorisedImage implements Comparable {
 	
+	/**
+	 * What the hits were counted on.
+	 */
+	public enum ImageSource {
+		/** The image itself, possibly subsampled. */
+		DECODED_IMAGE,
+		/** The thumbnail embedded in the EXIF or JFIF header of a JPEG. */
+		EMBEDDED_THUMBNAIL,
+		/** The 8x8 block averages of a JPEG's DC coefficients. */
+		BLOCK_AVERAGES
+	}
+	
+	// 7 significant digits of MathContext.DECIMAL32
+	private static final long DECIMAL32_LIMIT = 10000000L;
+	
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
 	
 	// existing information / required
 	private int width_;
@@ -44,15 +62,22 @@ public class SmutDetectCategorisedImage implements Comparable {
 	// needs to be computed
 	private boolean hasSkinTone_;
 	private boolean isProcessedCorrectly_;
-	private int numberOfPixels_;
-	private int numberOfRgbSkinToneHits_;
-	private int numberOfYCbCrSkinToneHits_;
+	private long numberOfPixels_;
+	private long numberOfRgbSkinToneHits_;
+	private long numberOfYCbCrSkinToneHits_;
 	private double preciseRgbPercentage_;
 	private double preciseYCbCrPercentage_;
 	private double preciseAveragePercentage_;
 	private int readableRgbPercentage_;
 	private int readableYCbCrPercentage_;
 	private int readableAveragePercentage_;
+	private int samplingFactor_;
+	private long numberOfSampledPixels_;
+	private ImageSource source_;
+	private SmutDetectSkinRegions skinRegions_;
+	
+	// textual representation, formatted on first use
+	private String text_;
 
 	
 	
@@ -69,7 +94,7 @@ public class SmutDetectCategorisedImage implements Comparable {
 		if ((width > 0 && width < 100000) && (height > 0 && height < 100000)) {
 			width_ = width;
 			height_ = height;
-			numberOfPixels_ = width_ * height_;
+			numberOfPixels_ = (long) width_ * height_;
 			
 		} else {
 			isProcessedCorrectly_ = false;
@@ -89,6 +114,10 @@ public class SmutDetectCategorisedImage implements Comparable {
 		readableRgbPercentage_ = 0;
 		readableYCbCrPercentage_ = 0;
 		readableAveragePercentage_ = 0;
+		samplingFactor_ = 1;
+		numberOfSampledPixels_ = numberOfPixels_;
+		source_ = ImageSource.DECODED_IMAGE;
+		skinRegions_ = null;
 			
 				
 	}
@@ -113,10 +142,18 @@ public class SmutDetectCategorisedImage implements Comparable {
 		return isProcessedCorrectly_;
 	}	
 	
-	public int getNumberOfPixels() {
+	public long getNumberOfPixels() {
 		return numberOfPixels_;
 	}
 	
+	public long getNumberOfRgbSkinToneHits() {
+		return numberOfRgbSkinToneHits_;
+	}
+	
+	public long getNumberOfYCbCrSkinToneHits() {
+		return numberOfYCbCrSkinToneHits_;
+	}
+	
 	public double getPreciseRgbPercentage() {
 		return preciseRgbPercentage_;
 	}
@@ -141,6 +178,25 @@ public class SmutDetectCategorisedImage implements Comparable {
 		return readableAveragePercentage_;
 	}
 	
+	public int getSamplingFactor() {
+		return samplingFactor_;
+	}
+	
+	public long getNumberOfSampledPixels() {
+		return numberOfSampledPixels_;
+	}
+	
+	public ImageSource getSource() {
+		return source_;
+	}
+	
+	/**
+	 * @return skin regions of the image or null if they are not analysed
+	 */
+	public SmutDetectSkinRegions getSkinRegions() {
+		return skinRegions_;
+	}
+	
 
 
 /////////////////////////////////////SETTERS////////////////////////////////////
@@ -150,6 +206,43 @@ public class SmutDetectCategorisedImage implements Comparable {
 	
 	public void setHasSkinTone(boolean hasSkinTone) {
 		hasSkinTone_ = hasSkinTone;
+		text_ = null;
+	}
+	
+	/**
+	 * @param samplingFactor subsampling factor the image was decoded with,
+	 * 			1 if every pixel of the original was scanned
+	 */
+	public void setSamplingFactor(int samplingFactor) {
+		samplingFactor_ = samplingFactor;
+		text_ = null;
+	}
+	
+	/**
+	 * @param numberOfSampledPixels pixels actually classified by an early 
+	 * 			exit scan, the hits are then estimates for the whole image
+	 */
+	public void setNumberOfSampledPixels(long numberOfSampledPixels) {
+		numberOfSampledPixels_ = numberOfSampledPixels;
+		text_ = null;
+	}
+	
+	/**
+	 * @param source what the hits were counted on, the dimensions are those
+	 * 			of the source
+	 */
+	public void setSource(ImageSource source) {
+		source_ = source;
+		text_ = null;
+	}
+	
+	/**
+	 * @param skinRegions regions the scan engine adds the skin of the rows
+	 * 			to, of the same dimensions as the image, or null
+	 */
+	public void setSkinRegions(SmutDetectSkinRegions skinRegions) {
+		skinRegions_ = skinRegions;
+		text_ = null;
 	}
 	
 
@@ -164,10 +257,34 @@ public class SmutDetectCategorisedImage implements Comparable {
 		numberOfYCbCrSkinToneHits_++;
 	}
 	
+	/**
+	 * Adds the RGB hits counted by a scan engine in one go.
+	 * 
+	 * @param hits number of pixels detected as skin-tone in RGB
+	 */
+	public void addRgbSkinToneHits(long hits) {
+		numberOfRgbSkinToneHits_ += hits;
+	}
+	
+	/**
+	 * Adds the YCbCr hits counted by a scan engine in one go.
+	 * 
+	 * @param hits number of pixels detected as skin-tone in YCbCr
+	 */
+	public void addYCbCrSkinToneHits(long hits) {
+		numberOfYCbCrSkinToneHits_ += hits;
+	}
+	
 	/**
 	 * Computes the Percentages -  Example: 0.666677 and sets the according
 	 * variables of the Categorised Image. Should only performed once the 
 	 * whole image has been processed.
+	 * 
+	 * The ratios are rounded to 7 significant digits (half even) and the 
+	 * average is taken of the rounded ratios, as the former BigDecimal 
+	 * computation with MathContext.DECIMAL32 did, so the percentages are 
+	 * identical to the double. The arithmetic is done on longs and does not
+	 * allocate.
 	 */
 	public void computePercentages(boolean usedRGB, boolean usedYCbCr) {
 			
@@ -182,23 +299,13 @@ public class SmutDetectCategorisedImage implements Comparable {
                         }
                     
                     
-			MathContext precision = MathContext.DECIMAL32;
-			BigDecimal a = new BigDecimal(numberOfRgbSkinToneHits_);
-			BigDecimal a2 = new BigDecimal(numberOfYCbCrSkinToneHits_);
-			BigDecimal b = new BigDecimal(numberOfPixels_);
-			
-			try {
-				
-				a = a.divide(b, precision);
-				a2 = a2.divide(b, precision);
-				
-			} catch (ArithmeticException exc) {
-				exc.printStackTrace();
-			
-			}
+			long rgbRatio = 
+				roundToDecimal32(numberOfRgbSkinToneHits_, numberOfPixels_, 0);
+			long yCbCrRatio = 
+				roundToDecimal32(numberOfYCbCrSkinToneHits_, numberOfPixels_, 0);
 			
-			preciseRgbPercentage_ = a.doubleValue();
-			preciseYCbCrPercentage_ = a2.doubleValue();
+			preciseRgbPercentage_ = decimalToDouble(rgbRatio);
+			preciseYCbCrPercentage_ = decimalToDouble(yCbCrRatio);
 			
 			readableRgbPercentage_ = formatPercentage(preciseRgbPercentage_);
 			readableYCbCrPercentage_ = 
@@ -206,11 +313,14 @@ public class SmutDetectCategorisedImage implements Comparable {
 			
 			// check how average is composed
 			if (usedRGB && usedYCbCr) {
-				BigDecimal b_avg = new BigDecimal(2);
 				
 				// add all percentages and divide by the amount of types
-				BigDecimal avg = (a.add(a2)).divide(b_avg, precision);
-				preciseAveragePercentage_ = avg.doubleValue();
+				int scale = Math.max(decimalScale(rgbRatio), 
+						decimalScale(yCbCrRatio));
+				long sum = rescale(rgbRatio, scale) + 
+						rescale(yCbCrRatio, scale);
+				preciseAveragePercentage_ = 
+					decimalToDouble(roundToDecimal32(sum, 2, scale));
 				
 			} else if (usedYCbCr) {
 				preciseAveragePercentage_ = preciseYCbCrPercentage_;				
@@ -222,19 +332,29 @@ public class SmutDetectCategorisedImage implements Comparable {
 			
 			
 		} else {
-			isProcessedCorrectly_ = false;
-			// as an image is to be checked manually if errors occur during the
-			// analysis the percentage is set to 100% to force listing and 
-			// checking			
-			preciseRgbPercentage_ = 1.0;
-			preciseYCbCrPercentage_ = 1.0;
-			preciseAveragePercentage_ = 1.0;
-			readableRgbPercentage_ = 100;
-			readableYCbCrPercentage_ = 100;
-			readableAveragePercentage_ = 100;
+			flagForManualCheck();
 		}
 		
-		
+		if (skinRegions_ != null) {
+			skinRegions_.finish();
+		}
+		text_ = null;
+	}
+	
+	/**
+	 * Marks the image as not processed correctly. As an image is to be 
+	 * checked manually if errors occur during the analysis the percentage is
+	 * set to 100% to force listing and checking.
+	 */
+	public void flagForManualCheck() {
+		isProcessedCorrectly_ = false;
+		preciseRgbPercentage_ = 1.0;
+		preciseYCbCrPercentage_ = 1.0;
+		preciseAveragePercentage_ = 1.0;
+		readableRgbPercentage_ = 100;
+		readableYCbCrPercentage_ = 100;
+		readableAveragePercentage_ = 100;
+		text_ = null;
 	}
 	
 	
@@ -250,6 +370,74 @@ public class SmutDetectCategorisedImage implements Comparable {
 	}
 	
 
+	/**
+	 * Divides and rounds to 7 significant digits (half even), the rounding of
+	 * MathContext.DECIMAL32. The result is packed into a long as unscaled 
+	 * value (upper bits) and scale (lower 6 bits), its value is 
+	 * unscaled * 10^-scale.
+	 * 
+	 * @param dividend non negative dividend, unscaled
+	 * @param divisor positive divisor
+	 * @param scale decimal scale of the dividend
+	 * @return the packed quotient
+	 */
+	static long roundToDecimal32(long dividend, long divisor, int scale) {
+		if (dividend == 0) {
+			return 0;
+		}
+		
+		// shift the decimal point until the quotient has 7 digits
+		while (dividend / divisor >= DECIMAL32_LIMIT) {
+			divisor *= 10;
+			scale--;
+		}
+		while (dividend / divisor < DECIMAL32_LIMIT / 10) {
+			dividend *= 10;
+			scale++;
+		}
+		
+		long quotient = dividend / divisor;
+		long remainder = dividend % divisor;
+		if ((remainder > divisor - remainder) || 
+				((remainder == divisor - remainder) && 
+				((quotient & 1) == 1))) {
+			quotient++;
+		}
+		return (quotient << 6) | scale;
+	}
+	
+	private static int decimalScale(long decimal) {
+		return (int) (decimal & 0x3f);
+	}
+	
+	/**
+	 * @return the unscaled value of the packed decimal at the given, larger
+	 * 			scale
+	 */
+	private static long rescale(long decimal, int scale) {
+		long unscaled = decimal >>> 6;
+		for (int i = decimalScale(decimal); i < scale; i++) {
+			unscaled *= 10;
+		}
+		return unscaled;
+	}
+	
+	/**
+	 * Converts a packed decimal the way BigDecimal.doubleValue does: the 
+	 * unscaled value and the power of ten are exact doubles, so the division
+	 * is correctly rounded.
+	 */
+	private static double decimalToDouble(long decimal) {
+		long unscaled = decimal >>> 6;
+		int scale = decimalScale(decimal);
+		
+		if (scale < POWERS_OF_TEN.length) {
+			return unscaled / POWERS_OF_TEN[scale];
+		}
+		return Double.parseDouble(unscaled + "E-" + scale);
+	}
+	
+
 	/**
 	 * Compares CategorizedImages and sorts by the following hierarchy: 
 	 * skinTone% - LastModified
@@ -319,19 +507,46 @@ public class SmutDetectCategorisedImage implements Comparable {
 	 */
 	public String toString() {
 		
+		if (text_ == null) {
+			StringBuilder theString = new StringBuilder(160);
 
-		StringBuilder theString = new StringBuilder();
-
-		theString.append(readableAveragePercentage_ + "%\n");
-		theString.append(width_ + "x" + height_ + " = " + numberOfPixels_);
-		theString.append("px\n");
-		theString.append("RGB DetectorValue: " + preciseRgbPercentage_);
-		theString.append("\nYCbCr DetectorValue: " + preciseYCbCrPercentage_);
-		theString.append("\nProcessed correctly: ");
-		theString.append(isProcessedCorrectly_);
-
+			theString.append(readableAveragePercentage_).append("%\n");
+			theString.append(width_).append('x').append(height_);
+			theString.append(" = ").append(numberOfPixels_).append("px\n");
+			theString.append("RGB DetectorValue: ");
+			theString.append(preciseRgbPercentage_);
+			theString.append("\nYCbCr DetectorValue: ");
+			theString.append(preciseYCbCrPercentage_);
+			theString.append("\nProcessed correctly: ");
+			theString.append(isProcessedCorrectly_);
+			if (samplingFactor_ > 1) {
+				theString.append("\nSampling factor: 1/");
+				theString.append(samplingFactor_);
+			}
+			if (numberOfSampledPixels_ < numberOfPixels_) {
+				theString.append("\nSampled pixels: ");
+				theString.append(numberOfSampledPixels_);
+			}
+			if (source_ == ImageSource.EMBEDDED_THUMBNAIL) {
+				theString.append("\nSource: embedded thumbnail");
+			} else if (source_ == ImageSource.BLOCK_AVERAGES) {
+				theString.append("\nSource: 8x8 block averages");
+			}
+			if (skinRegions_ != null) {
+				theString.append("\nSkin regions: ");
+				theString.append(skinRegions_.getRegionCount());
+				theString.append(", largest ");
+				theString.append(Math.round(
+						skinRegions_.getLargestRegionRatio() * 100));
+				theString.append("% of the skin, bounding box ");
+				theString.append(Math.round(
+						skinRegions_.getBoundingBoxCoverage() * 100));
+				theString.append("% of the image");
+			}
+			text_ = theString.toString();
+		}
 		
-		return theString.toString();
+		return text_;
 	}
 
 }
@@ -0,0 +1,81 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps the heap used by concurrent decodes across all ingest threads.
+ *
+ * Before a raster is decoded its estimated size is acquired from a fair
+ * semaphore holding a quarter of the maximum heap (counted in KB), the permits
+ * are released once the scan of the raster has finished. A single decode
+ * never asks for more than the whole budget so it can not block forever.
+ *
+ * @author Rajmund Witt
+ */
+public abstract class SmutDetectDecodeBudget {
+
+	private static final long TOTAL_BYTES = computeTotalBytes();
+	private static final int TOTAL_PERMITS = (int) (TOTAL_BYTES >> 10);
+	private static final Semaphore permits_ =
+		new Semaphore(TOTAL_PERMITS, true);
+
+
+	/**
+	 * @return bytes all concurrent decodes may use together
+	 */
+	public static long getTotalBytes() {
+		return TOTAL_BYTES;
+	}
+
+	/**
+	 * Blocks until the bytes are available to the calling thread.
+	 *
+	 * @param bytes estimated size of the raster to be decoded
+	 * @return permits to pass to release
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static int acquire(long bytes) throws InterruptedException {
+		int permits = (int) Math.min(TOTAL_PERMITS,
+				Math.max(1, (bytes + 1023) >> 10));
+		permits_.acquire(permits);
+		return permits;
+	}
+
+	/**
+	 * @param permits permits returned by acquire
+	 */
+	public static void release(int permits) {
+		permits_.release(permits);
+	}
+
+	private static long computeTotalBytes() {
+		long maxMemory = Runtime.getRuntime().maxMemory();
+
+		// no limit set for the JVM - assume a 4 GB heap
+		if (maxMemory == Long.MAX_VALUE) {
+			maxMemory = 4L << 30;
+		}
+		// the permits are counted in KB and need to fit into an int
+		return Math.min(maxMemory / 4, ((long) Integer.MAX_VALUE) << 10);
+	}
+
+}
@@ -0,0 +1,251 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Reads the thumbnail embedded in the header of a JPEG: the JPEG compressed
+ * thumbnail of the EXIF APP1 segment (IFD1) most cameras and phones write,
+ * otherwise a JFIF thumbnail through the image reader.
+ *
+ * Only the header segments before the image data are read. The position and
+ * byte order of the stream are restored so the reader can go on to decode
+ * the image.
+ *
+ * @author Rajmund Witt
+ */
+final class SmutDetectEmbeddedThumbnail {
+
+	/** Largest difference of the aspect ratios of thumbnail and image. */
+	static final double MAX_ASPECT_RATIO_DIFFERENCE = 0.05;
+
+	private static final int SOI = 0xFFD8;
+	private static final int SOS = 0xFFDA;
+	private static final int EOI = 0xFFD9;
+	private static final int APP1 = 0xFFE1;
+	private static final int MAX_SEGMENTS = 32;
+	private static final int TIFF_START = 6;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+	private static final int TYPE_SHORT = 3;
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	private SmutDetectEmbeddedThumbnail() {
+
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * @param reader JPEG reader with its input set
+	 * @param context objects of this thread, holding the thumbnail reader
+	 * @return the decoded thumbnail or null if there is none or it can not
+	 * 			be decoded
+	 */
+	static BufferedImage read(ImageReader reader, SmutDetectScanContext context) {
+		try {
+			byte[] exifThumbnail = findExifThumbnail(
+					(ImageInputStream) reader.getInput());
+			if (exifThumbnail != null) {
+				return decode(exifThumbnail, reader, context);
+			}
+			if (reader.readerSupportsThumbnails() &&
+					(reader.getNumThumbnails(0) > 0)) {
+				return reader.readThumbnail(0, 0);
+			}
+		} catch (IOException e) {
+			// a damaged header, the image itself may still decode
+		} catch (RuntimeException e) {
+			// thrown by some readers for malformed thumbnails
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the thumbnail shows the whole image, not the image
+	 * 			letterboxed or cropped into another aspect ratio
+	 */
+	static boolean matchesAspectRatio(BufferedImage thumbnail, int width,
+			int height) {
+		if ((thumbnail.getWidth() > width) || (thumbnail.getHeight() > height)) {
+			return false;
+		}
+		double imageRatio = (double) width / height;
+		double thumbnailRatio = (double) thumbnail.getWidth() /
+				thumbnail.getHeight();
+		return Math.abs(thumbnailRatio - imageRatio) / imageRatio <=
+				MAX_ASPECT_RATIO_DIFFERENCE;
+	}
+
+	/**
+	 * Walks the header segments of the JPEG up to the image data looking for
+	 * an EXIF segment with a JPEG thumbnail.
+	 *
+	 * @param stream stream of the JPEG
+	 * @return the compressed thumbnail or null
+	 * @throws IOException if the stream can not be read
+	 */
+	static byte[] findExifThumbnail(ImageInputStream stream)
+			throws IOException {
+		long position = stream.getStreamPosition();
+		ByteOrder order = stream.getByteOrder();
+
+		try {
+			stream.seek(0);
+			stream.setByteOrder(ByteOrder.BIG_ENDIAN);
+			if (stream.readUnsignedShort() != SOI) {
+				return null;
+			}
+			for (int i = 0; i < MAX_SEGMENTS; i++) {
+				int marker = stream.readUnsignedShort();
+				if (((marker & 0xFF00) != 0xFF00) || (marker == SOS) ||
+						(marker == EOI)) {
+					return null;
+				}
+				int length = stream.readUnsignedShort() - 2;
+				if (length < 0) {
+					return null;
+				}
+				if (marker == APP1) {
+					byte[] segment = new byte[length];
+					stream.readFully(segment);
+					byte[] thumbnail = parseExifThumbnail(segment);
+					if (thumbnail != null) {
+						return thumbnail;
+					}
+				} else {
+					stream.seek(stream.getStreamPosition() + length);
+				}
+			}
+			return null;
+		} finally {
+			stream.setByteOrder(order);
+			stream.seek(position);
+		}
+	}
+
+	/**
+	 * @param segment content of an APP1 segment
+	 * @return the thumbnail of IFD1 if the segment is EXIF and has one
+	 */
+	static byte[] parseExifThumbnail(byte[] segment) {
+		if ((segment.length < TIFF_START + 8) || (segment[0] != 'E') ||
+				(segment[1] != 'x') || (segment[2] != 'i') ||
+				(segment[3] != 'f') || (segment[4] != 0) || (segment[5] != 0)) {
+			return null;
+		}
+
+		ByteBuffer tiff = ByteBuffer.wrap(segment, TIFF_START,
+				segment.length - TIFF_START).slice();
+		if ((segment[TIFF_START] == 'I') && (segment[TIFF_START + 1] == 'I')) {
+			tiff.order(ByteOrder.LITTLE_ENDIAN);
+		} else if ((segment[TIFF_START] != 'M') ||
+				(segment[TIFF_START + 1] != 'M')) {
+			return null;
+		}
+		if (tiff.getShort(2) != 42) {
+			return null;
+		}
+
+		// IFD0 describes the image, the IFD after it the thumbnail
+		long ifd0 = tiff.getInt(4) & 0xFFFFFFFFL;
+		if (!fits(tiff, ifd0, 2)) {
+			return null;
+		}
+		int entries = tiff.getShort((int) ifd0) & 0xFFFF;
+		long next = ifd0 + 2 + 12L * entries;
+		if (!fits(tiff, next, 4)) {
+			return null;
+		}
+		long ifd1 = tiff.getInt((int) next) & 0xFFFFFFFFL;
+		if ((ifd1 == 0) || !fits(tiff, ifd1, 2)) {
+			return null;
+		}
+
+		entries = tiff.getShort((int) ifd1) & 0xFFFF;
+		if (!fits(tiff, ifd1 + 2, 12L * entries)) {
+			return null;
+		}
+		long offset = -1;
+		long length = -1;
+		for (int i = 0; i < entries; i++) {
+			int entry = (int) ifd1 + 2 + 12 * i;
+			int tag = tiff.getShort(entry) & 0xFFFF;
+			if ((tag == TAG_THUMBNAIL_OFFSET) || (tag == TAG_THUMBNAIL_LENGTH)) {
+				long value = ((tiff.getShort(entry + 2) & 0xFFFF) == TYPE_SHORT) ?
+						tiff.getShort(entry + 8) & 0xFFFF :
+						tiff.getInt(entry + 8) & 0xFFFFFFFFL;
+				if (tag == TAG_THUMBNAIL_OFFSET) {
+					offset = value;
+				} else {
+					length = value;
+				}
+			}
+		}
+		if ((offset < 0) || (length < 4) || !fits(tiff, offset, length) ||
+				((tiff.get((int) offset) & 0xFF) != 0xFF) ||
+				((tiff.get((int) offset + 1) & 0xFF) != 0xD8)) {
+			return null;
+		}
+
+		byte[] thumbnail = new byte[(int) length];
+		System.arraycopy(segment, TIFF_START + (int) offset, thumbnail, 0,
+				(int) length);
+		return thumbnail;
+	}
+
+	private static boolean fits(ByteBuffer buffer, long offset, long length) {
+		return (offset >= 0) && (length >= 0) &&
+				(offset + length <= buffer.limit());
+	}
+
+	/**
+	 * Decodes the compressed thumbnail with a second reader of the format,
+	 * the reader of the image keeps its input.
+	 */
+	private static BufferedImage decode(byte[] thumbnail, ImageReader reader,
+			SmutDetectScanContext context) throws IOException {
+		ImageReader thumbnailReader = context.acquireThumbnailReader(reader);
+		if (thumbnailReader == null) {
+			return null;
+		}
+		ImageInputStream stream = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(thumbnail));
+		try {
+			thumbnailReader.setInput(stream, true, true);
+			return thumbnailReader.read(0);
+		} finally {
+			context.releaseReader(thumbnailReader);
+			stream.close();
+		}
+	}
+
+}
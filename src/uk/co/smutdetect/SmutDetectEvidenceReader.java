@@ -0,0 +1,552 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Reads a file from the evidence at most once, in chunks of 64 KB starting at
+ * multiples of the chunk size, so that the header check, the MD5 and the
+ * decoder share the same reads instead of each opening the file again with
+ * many small reads (expensive on compressed images such as E01, where every
+ * read decompresses a whole chunk).
+ *
+ * The first chunk is read for the header check. A file no larger than the
+ * buffered file limit is then read completely into memory and decoded from
+ * the array, a larger file is read chunk by chunk as the decoder asks for it.
+ * Only the last chunk is held, a decoder seeking back reads the chunks from
+ * the evidence again, so a large file never ends up on the heap as a whole.
+ *
+ * The chunks and the content of buffered files are read into buffers owned by
+ * the calling thread and reused for the next file (the file buffer keeps the
+ * size of the largest buffered file), a reader and the streams it opened must
+ * not be used after the next reader was created on the same thread, unless
+ * readAhead moved it to buffers of its own.
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectEvidenceReader {
+
+	/** Size and alignment of the reads from the evidence. */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> chunks_ =
+		new ThreadLocal<byte[]>() {
+			@Override
+			protected byte[] initialValue() {
+				return new byte[CHUNK_SIZE];
+			}
+		};
+	private static final ThreadLocal<byte[]> files_ =
+		new ThreadLocal<byte[]>() {
+			@Override
+			protected byte[] initialValue() {
+				return new byte[0];
+			}
+		};
+
+	private final AbstractFile file_;
+	private final long size_;
+	private final boolean buffered_;
+	private byte[] chunk_;
+	// true once the reader no longer uses the buffers of the thread
+	private boolean owned_;
+	// file offset of the chunk in chunk_ and its valid bytes, -1 before the
+	// first read
+	private long chunkOffset_;
+	private int chunkLength_;
+	// content of a buffered file once it has been read completely
+	private byte[] content_;
+	private int contentLength_;
+	private long bytesRead_;
+	private SmutDetectImageSignatures.Signature signature_;
+	private boolean signatureMatched_;
+	// digest updated with the chunks read in order, null if not hashed
+	private MessageDigest digest_;
+	private long digestedBytes_;
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	/**
+	 * Nothing is read until the header or a stream is asked for.
+	 *
+	 * @param file file to read
+	 * @param maxBufferedBytes largest file read completely into memory, 0
+	 * 			to stream every file
+	 */
+	public SmutDetectEvidenceReader(AbstractFile file, long maxBufferedBytes) {
+		file_ = file;
+		size_ = file.getSize();
+		buffered_ = (size_ <= maxBufferedBytes) &&
+				(size_ <= Integer.MAX_VALUE - CHUNK_SIZE);
+		chunk_ = chunks_.get();
+		owned_ = false;
+		chunkOffset_ = -1;
+		chunkLength_ = 0;
+		content_ = null;
+		contentLength_ = 0;
+		bytesRead_ = 0;
+		signature_ = null;
+		signatureMatched_ = false;
+		digest_ = null;
+		digestedBytes_ = 0;
+	}
+
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	public AbstractFile getFile() {
+		return file_;
+	}
+
+	public long getSize() {
+		return size_;
+	}
+
+	/**
+	 * @return true if the file is read completely into memory
+	 */
+	public boolean isBuffered() {
+		return buffered_;
+	}
+
+	/**
+	 * @return bytes read from the evidence so far
+	 */
+	public long getBytesRead() {
+		return bytesRead_;
+	}
+
+
+	/**
+	 * Matches the header against the image signatures, once per file.
+	 *
+	 * @return the signature of the file or null if it is no known image
+	 * @throws TskCoreException if the first chunk can not be read
+	 */
+	public SmutDetectImageSignatures.Signature getSignature()
+			throws TskCoreException {
+		if (!signatureMatched_) {
+			if (content_ != null) {
+				signature_ = SmutDetectImageSignatures.match(content_,
+						Math.min(contentLength_,
+							SmutDetectImageSignatures.HEADER_LENGTH));
+			} else {
+				if (chunkOffset_ < 0) {
+					readChunk(0);
+				}
+				if (chunkOffset_ != 0) {
+					throw new IllegalStateException(
+							"signature matched after streaming");
+				}
+				signature_ = SmutDetectImageSignatures.match(chunk_,
+						Math.min(chunkLength_,
+							SmutDetectImageSignatures.HEADER_LENGTH));
+			}
+			signatureMatched_ = true;
+		}
+		return signature_;
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Copies the first bytes of the file, reading the first chunk if it has
+	 * not been read yet.
+	 *
+	 * @param header buffer for the bytes
+	 * @param length number of bytes wanted
+	 * @return number of bytes copied, less than the length if the file is
+	 * 			shorter
+	 * @throws TskCoreException if the chunk can not be read
+	 */
+	public int readHeader(byte[] header, int length) throws TskCoreException {
+		if (content_ != null) {
+			int n = Math.min(length, contentLength_);
+			System.arraycopy(content_, 0, header, 0, n);
+			return n;
+		}
+		if (chunkOffset_ < 0) {
+			readChunk(0);
+		}
+		if (chunkOffset_ != 0) {
+			throw new IllegalStateException("header read after streaming");
+		}
+		int n = Math.min(length, chunkLength_);
+		System.arraycopy(chunk_, 0, header, 0, n);
+		return n;
+	}
+
+	/**
+	 * Adds the whole file to the digest. Only for buffered files, whose
+	 * content stays in memory for the decoder.
+	 *
+	 * @param digest digest to update
+	 * @throws TskCoreException if the file can not be read
+	 */
+	public void updateDigest(MessageDigest digest) throws TskCoreException {
+		if (!buffered_) {
+			throw new IllegalStateException("file is not buffered");
+		}
+		loadContent();
+		digest.update(content_, 0, contentLength_);
+	}
+
+	/**
+	 * Starts hashing the file with the chunks as they are read, for a file
+	 * which is not buffered. Chunks read out of order are not hashed, the
+	 * rest is read by finishDigest.
+	 *
+	 * @param digest digest to update, from the start of the file
+	 */
+	public void startDigest(MessageDigest digest) {
+		digest_ = digest;
+		digestedBytes_ = 0;
+		if (chunkOffset_ == 0) {
+			digest_.update(chunk_, 0, chunkLength_);
+			digestedBytes_ = chunkLength_;
+		}
+	}
+
+	/**
+	 * Reads the chunks not hashed yet, after the decoder is done with the
+	 * file.
+	 *
+	 * @return the digest of the whole file or null if it could not be read
+	 * 			to its end
+	 * @throws TskCoreException if a chunk can not be read
+	 */
+	public byte[] finishDigest() throws TskCoreException {
+		if (digest_ == null) {
+			throw new IllegalStateException("digest not started");
+		}
+		while (digestedBytes_ < size_) {
+			long digested = digestedBytes_;
+			readChunk(digested);
+			if (digestedBytes_ == digested) {
+				return null;
+			}
+		}
+		byte[] hash = digest_.digest();
+		digest_ = null;
+		return hash;
+	}
+
+	/**
+	 * Moves the reader to buffers of its own and reads a buffered file
+	 * completely, a larger file only up to its first chunk. The reader can
+	 * then be handed to another thread while the calling thread goes on to
+	 * the next file, the rest of a larger file is streamed by the thread
+	 * decoding it.
+	 *
+	 * @throws TskCoreException if the file can not be read
+	 */
+	public void readAhead() throws TskCoreException {
+		if (!owned_) {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			if (chunkOffset_ >= 0) {
+				System.arraycopy(chunk_, 0, chunk, 0, chunkLength_);
+			}
+			chunk_ = chunk;
+			owned_ = true;
+		}
+		if (buffered_) {
+			loadContent();
+		} else if (chunkOffset_ < 0) {
+			readChunk(0);
+		}
+	}
+
+	/**
+	 * @return a seekable stream over the content of the file for the image
+	 * 			readers, backed by the array for a buffered file and by
+	 * 			aligned chunk reads for a larger one
+	 * @throws TskCoreException if a buffered file can not be read
+	 */
+	public ImageInputStream openImageStream() throws TskCoreException {
+		if (buffered_) {
+			loadContent();
+			return new ByteArrayImageInputStream(content_, contentLength_);
+		}
+		return new ChunkImageInputStream();
+	}
+
+	/**
+	 * @return a stream over the content of the file, continuing with aligned
+	 * 			chunk reads after the chunk already read
+	 */
+	public InputStream openStream() {
+		if (content_ != null) {
+			return new ByteArrayInputStream(content_, 0, contentLength_);
+		}
+		if (chunkOffset_ > 0) {
+			throw new IllegalStateException("stream opened twice");
+		}
+		return new ChunkInputStream();
+	}
+
+	/**
+	 * Copies the chunks of a buffered file into the file buffer of the
+	 * thread, starting with the chunk of the header check.
+	 */
+	private void loadContent() throws TskCoreException {
+		if (content_ != null) {
+			return;
+		}
+		byte[] content;
+		if (owned_) {
+			content = new byte[(int) size_];
+		} else {
+			content = files_.get();
+			if (content.length < size_) {
+				content = new byte[(int) size_];
+				files_.set(content);
+			}
+		}
+
+		int length = 0;
+		if (chunkOffset_ == 0) {
+			System.arraycopy(chunk_, 0, content, 0, chunkLength_);
+			length = chunkLength_;
+		}
+		while (length < size_) {
+			readChunk(length);
+			if (chunkLength_ <= 0) {
+				break;
+			}
+			System.arraycopy(chunk_, 0, content, length, chunkLength_);
+			length += chunkLength_;
+		}
+		content_ = content;
+		contentLength_ = length;
+	}
+
+	/**
+	 * Reads one chunk of the file into the chunk buffer.
+	 *
+	 * @param fileOffset offset in the file, a multiple of the chunk size
+	 */
+	private void readChunk(long fileOffset) throws TskCoreException {
+		int wanted = (int) Math.max(0, Math.min(CHUNK_SIZE,
+				size_ - fileOffset));
+		int length = 0;
+
+		// the API reads into the start of the buffer, a short read is
+		// continued through a temporary buffer
+		if (wanted > 0) {
+			length = Math.max(0, file_.read(chunk_, fileOffset, wanted));
+		}
+		while (length > 0 && length < wanted) {
+			byte[] rest = new byte[wanted - length];
+			int n = file_.read(rest, fileOffset + length, rest.length);
+			if (n <= 0) {
+				break;
+			}
+			System.arraycopy(rest, 0, chunk_, length, n);
+			length += n;
+		}
+		chunkOffset_ = fileOffset;
+		chunkLength_ = length;
+		bytesRead_ += length;
+		if ((digest_ != null) && (fileOffset == digestedBytes_)) {
+			digest_.update(chunk_, 0, length);
+			digestedBytes_ += length;
+		}
+	}
+
+	/**
+	 * Streams the file chunk by chunk through the chunk buffer, starting with
+	 * the chunk of the header check if it was read already.
+	 */
+	private final class ChunkInputStream extends InputStream {
+
+		private int position_ = 0;
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return chunk_[position_++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, chunkLength_ - position_);
+			System.arraycopy(chunk_, position_, b, off, n);
+			position_ += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return Math.max(0, chunkLength_ - position_);
+		}
+
+		/**
+		 * @return false at the end of the file
+		 */
+		private boolean fill() throws IOException {
+			if (chunkOffset_ >= 0 && position_ < chunkLength_) {
+				return true;
+			}
+			long next = (chunkOffset_ < 0) ? 0 : chunkOffset_ + chunkLength_;
+			if (next >= size_ || (chunkOffset_ >= 0 && chunkLength_ == 0)) {
+				return false;
+			}
+			try {
+				readChunk(next);
+			} catch (TskCoreException e) {
+				throw new IOException(e);
+			}
+			position_ = 0;
+			return chunkLength_ > 0;
+		}
+	}
+
+	/**
+	 * Image input stream reading the chunk covering the stream position
+	 * through the chunk buffer, starting with the chunk of the header check
+	 * if it was read already.
+	 */
+	private final class ChunkImageInputStream extends ImageInputStreamImpl {
+
+		@Override
+		public int read() throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if (!fill()) {
+				return -1;
+			}
+			return chunk_[(int) (streamPos++ - chunkOffset_)] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			if (off < 0 || len < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			bitOffset = 0;
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = (int) Math.min(len,
+					chunkOffset_ + chunkLength_ - streamPos);
+			System.arraycopy(chunk_, (int) (streamPos - chunkOffset_), b,
+					off, n);
+			streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			return size_;
+		}
+
+		/**
+		 * @return false at the end of the file
+		 */
+		private boolean fill() throws IOException {
+			if ((chunkOffset_ >= 0) && (streamPos >= chunkOffset_) &&
+					(streamPos < chunkOffset_ + chunkLength_)) {
+				return true;
+			}
+			if (streamPos >= size_) {
+				return false;
+			}
+			try {
+				readChunk(streamPos - streamPos % CHUNK_SIZE);
+			} catch (TskCoreException e) {
+				throw new IOException(e);
+			}
+			return streamPos < chunkOffset_ + chunkLength_;
+		}
+	}
+
+	/**
+	 * Image input stream over a byte array, the image readers seek in the
+	 * array instead of a copy cached by MemoryCacheImageInputStream.
+	 */
+	private static final class ByteArrayImageInputStream
+			extends ImageInputStreamImpl {
+
+		private final byte[] data_;
+		private final int length_;
+
+		ByteArrayImageInputStream(byte[] data, int length) {
+			data_ = data;
+			length_ = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if (streamPos >= length_) {
+				return -1;
+			}
+			return data_[(int) streamPos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			if (off < 0 || len < 0 || off + len > b.length) {
+				throw new IndexOutOfBoundsException();
+			}
+			bitOffset = 0;
+			if (len == 0) {
+				return 0;
+			}
+			if (streamPos >= length_) {
+				return -1;
+			}
+			int n = (int) Math.min(len, length_ - streamPos);
+			System.arraycopy(data_, (int) streamPos, b, off, n);
+			streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			return length_;
+		}
+	}
+
+}
@@ -0,0 +1,148 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * What the header of an image tells before it is decoded: its dimensions
+ * and, for a JPEG with an embedded thumbnail of the same aspect ratio, the
+ * skin-tone percentage of the thumbnail. Used to decide which images to scan
+ * first, never as the result of an image.
+ *
+ * Only files buffered in memory are previewed, the stream of a larger file
+ * can be opened only once and is kept for the scan.
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectImagePreview {
+
+	private final int width_;
+	private final int height_;
+	private final double thumbnailPercentage_;
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	private SmutDetectImagePreview(int width, int height,
+			double thumbnailPercentage) {
+		width_ = width;
+		height_ = height;
+		thumbnailPercentage_ = thumbnailPercentage;
+	}
+
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	public int getWidth() {
+		return width_;
+	}
+
+	public int getHeight() {
+		return height_;
+	}
+
+	/**
+	 * @return skin-tone percentage (0 to 100) of the embedded thumbnail or
+	 * 			-1 if the image has none
+	 */
+	public double getThumbnailPercentage() {
+		return thumbnailPercentage_;
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Parses the header of a buffered file with the image readers of the
+	 * calling thread and scans the embedded thumbnail of a JPEG.
+	 *
+	 * @param evidence reader of the file, after its signature was matched
+	 * @return the preview or null if the file is not buffered or its header
+	 * 			can not be parsed
+	 */
+	public static SmutDetectImagePreview read(
+			SmutDetectEvidenceReader evidence) {
+		if (!evidence.isBuffered()) {
+			return null;
+		}
+		SmutDetectScanContext context = SmutDetectScanContext.get();
+		ImageInputStream imageStream = null;
+		ImageReader reader = null;
+
+		try {
+			SmutDetectImageSignatures.Signature signature =
+					evidence.getSignature();
+			imageStream = evidence.openImageStream();
+			reader = context.acquireReader(imageStream,
+					(signature != null) ? signature.getReaderFormat() : null);
+			if (reader == null) {
+				return null;
+			}
+			reader.setInput(imageStream, false, true);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+
+			double thumbnailPercentage = -1;
+			if ("jpeg".equalsIgnoreCase(reader.getFormatName())) {
+				BufferedImage thumbnail = SmutDetectEmbeddedThumbnail.read(
+						reader, context);
+				if ((thumbnail != null) && SmutDetectEmbeddedThumbnail
+						.matchesAspectRatio(thumbnail, width, height)) {
+					SmutDetectCategorisedImage cImage =
+							new SmutDetectCategorisedImage(
+								thumbnail.getWidth(), thumbnail.getHeight());
+					SmutDetectRasterScanner.scanImage(thumbnail, cImage);
+					cImage.computePercentages(true, true);
+					if (cImage.getIsProcessedCorrectly()) {
+						thumbnailPercentage =
+								cImage.getPreciseAveragePercentage() * 100;
+					}
+				}
+			}
+			return new SmutDetectImagePreview(width, height,
+					thumbnailPercentage);
+
+		} catch (TskCoreException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// a broken header is for the scan to report
+			return null;
+		} finally {
+			if (reader != null) {
+				context.releaseReader(reader);
+			}
+			if (imageStream != null) {
+				try {
+					imageStream.close();
+				} catch (IOException e) {
+					// nothing held open for an array
+				}
+			}
+		}
+	}
+
+}
@@ -19,13 +19,21 @@
 
 package uk.co.smutdetect;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.SampleModel;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
 import java.util.logging.Level;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import org.sleuthkit.autopsy.coreutils.Logger;
 import org.sleuthkit.datamodel.AbstractFile;
-import org.sleuthkit.datamodel.ReadContentInputStream;
+import org.sleuthkit.datamodel.TskCoreException;
 
 /**
  *
@@ -41,58 +49,512 @@ public abstract class SmutDetectImageScanner {
       * @param file 
       */
      public static SmutDetectCategorisedImage scanImage(AbstractFile file) {
-         InputStream iStream;
-         SmutDetectCategorisedImage cImage;
-         BufferedImage bImage;
+         return scanImage(file, new SmutDetectScanOptions());
+     }
+     
+     /**
+      * Decodes the file and counts its skin-tone pixels.
+      * 
+      * @param file file to scan
+      * @param options options controlling decoding and scanning
+      * @return the result container or null if the file could not be decoded
+      */
+     public static SmutDetectCategorisedImage scanImage(AbstractFile file,
+                                            SmutDetectScanOptions options) {
+         return scanImage(file, options, new SmutDetectScanTrace());
+     }
+     
+     /**
+      * Decodes the file and counts its skin-tone pixels, recording the time
+      * of each stage.
+      * 
+      * @param file file to scan
+      * @param options options controlling decoding and scanning
+      * @param trace records the timings, bytes read and pixels scanned
+      * @return the result container or null if the file could not be decoded
+      */
+     public static SmutDetectCategorisedImage scanImage(AbstractFile file,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace) {
+         // get the file from Autopsy
+         return scanImage(new SmutDetectEvidenceReader(file, 
+                 options.getMaxBufferedFileBytes()), options, trace);
+     }
+     
+     /**
+      * Decodes the file through the reader which may already hold its first
+      * chunk from the header check, and counts its skin-tone pixels. A file
+      * with a known signature goes straight to the image readers of its
+      * format.
+      * 
+      * @param evidence reader of the file to scan
+      * @param options options controlling decoding and scanning
+      * @param trace records the timings, bytes read and pixels scanned
+      * @return the result container or null if the file could not be decoded
+      */
+     public static SmutDetectCategorisedImage scanImage(
+                                            SmutDetectEvidenceReader evidence,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace) {
+         long start = System.nanoTime();
+         ImageInputStream imageStream;
+         String readerFormat;
          
          try {
-             // get the file from Autopsy
-             iStream = new ReadContentInputStream(file);
-             // Load as Image
-             bImage = ImageIO.read(iStream);
-             
-             //Check load and set Result container
-             if (bImage != null) {
-                 cImage = new SmutDetectCategorisedImage(
-                         bImage.getWidth(), 
-                         bImage.getHeight());
-             } else {
+             SmutDetectImageSignatures.Signature signature = 
+                     evidence.getSignature();
+             readerFormat = (signature != null) ? 
+                     signature.getReaderFormat() : null;
+             imageStream = evidence.openImageStream();
+         } catch (TskCoreException e) {
+             logger_.log(Level.WARNING, 
+                     "Error reading image for Skintone Analysis");
+             return null;
+         }
+         try {
+             return scanImage(imageStream, readerFormat, options, trace, 
+                     start);
+         } finally {
+             // including the header check and the digest of the file
+             trace.addBytesRead(evidence.getBytesRead());
+         }
+     }
+     
+     /**
+      * Decodes the stream and counts its skin-tone pixels. The dimensions are
+      * read from the header first so that images whose raster would not fit
+      * the heap are subsampled, decoded in strips or skipped and flagged
+      * before any pixel data is decoded.
+      * 
+      * @param iStream stream of the encoded image
+      * @param options options controlling decoding and scanning
+      * @return the result container or null if the stream could not be 
+      *         decoded
+      */
+     public static SmutDetectCategorisedImage scanImage(InputStream iStream,
+                                            SmutDetectScanOptions options) {
+         return scanImage(iStream, options, new SmutDetectScanTrace());
+     }
+     
+     /**
+      * Decodes the stream and counts its skin-tone pixels, recording the time
+      * of each stage.
+      * 
+      * @param iStream stream of the encoded image
+      * @param options options controlling decoding and scanning
+      * @param trace records the timings, bytes read and pixels scanned
+      * @return the result container or null if the stream could not be 
+      *         decoded
+      */
+     public static SmutDetectCategorisedImage scanImage(InputStream iStream,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace) {
+         long start = System.nanoTime();
+         ImageInputStream imageStream;
+         
+         // cached as ImageIO.read does, in a temporary file unless the cache
+         // is turned off, a large stream is not held on the heap
+         try {
+             imageStream = ImageIO.createImageInputStream(
+                     trace.countBytes(iStream));
+         } catch (IOException e) {
+             logger_.log(Level.WARNING, 
+                     "Error caching image for Skintone Analysis");
+             return null;
+         }
+         if (imageStream == null) {
+             return null;
+         }
+         return scanImage(imageStream, null, options, trace, start);
+     }
+     
+     /**
+      * Finds a reader for the stream, decodes and scans the image and closes
+      * the stream. The readers of the format named by the signature, if
+      * any, are asked first.
+      */
+     private static SmutDetectCategorisedImage scanImage(
+                                            ImageInputStream imageStream,
+                                            String readerFormat,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace,
+                                            long start) {
+         SmutDetectScanContext context = SmutDetectScanContext.get();
+         ImageReader reader = null;
+         
+         try {
+             // the readers of this thread are reused from file to file
+             reader = context.acquireReader(imageStream, readerFormat);
+             if (reader == null) {
+                 trace.addOpenNanos(System.nanoTime() - start);
                  return null;
              }
+             reader.setInput(imageStream, false, true);
+             trace.setFormatName(reader.getFormatName());
              
-             // scan the image
-             
-             // scan x axis
-             for (int i = 0; i < bImage.getWidth(); i++) {
-                // scan y axis
-                for (int j = 0; j < bImage.getHeight(); j++) {
-                    
-                    // Check RGB value
-                    if (RgbSkinToneDetector.checkColor(bImage.getRGB(i,j))) {
-                        cImage.increasNumberOfRgbSkinToneHits();
-                    }
-                    // Check YCbCr value
-                    if (YCbCrSkinToneDetector.checkColor(bImage.getRGB(i,j))) {
-                        cImage.increasNumberOfYCbCrSkinToneHits();
-                    }
-                    
-                } // end scan y axis               
-             } // end scan x axis
-             
-             // update the result container
-             cImage.computePercentages(true, true);
-                                  
-                     
-             return cImage;        
+             return decodeAndScan(reader, options, trace, start, context);
              
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
          } catch (Exception e) {
              logger_.log(Level.WARNING, 
                      "Error scanning image for Skintone Analysis");
-         }          
+         } finally {
+             if (reader != null) {
+                 context.releaseReader(reader);
+             }
+             closeQuietly(imageStream);
+         }
                  
          return null;
          
      }    
- 
+     
+     /**
+      * Plans the decode from the header dimensions, decodes the image (or its
+      * strips) within the global decode budget and scans it.
+      * 
+      * @param reader reader with its input set
+      * @param options options controlling decoding and scanning
+      * @param trace records the timings, bytes read and pixels scanned
+      * @param start start of the scan, the open stage ends with the header
+      * @param context objects of this thread reused by the decode
+      * @return the result container
+      * @throws IOException if the decoder fails
+      * @throws InterruptedException if interrupted waiting for heap budget
+      */
+     private static SmutDetectCategorisedImage decodeAndScan(
+                                            ImageReader reader,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace,
+                                            long start,
+                                            SmutDetectScanContext context)
+                                            throws IOException, 
+                                                   InterruptedException {
+         SmutDetectCategorisedImage cImage;
+         
+         // stream PNG and BMP row by row, no raster is needed at all; before
+         // the reader parses the header, the PNG reader flushes the stream
+         if (options.getStreamingScan() 
+                 && SmutDetectStreamingScanner.canStream(reader.getFormatName())
+                 && (reader.getInput() instanceof ImageInputStream)) {
+             long streamStart = System.nanoTime();
+             cImage = SmutDetectStreamingScanner.scanImage(
+                     (ImageInputStream) reader.getInput(), 
+                     reader.getFormatName(), options, trace);
+             if (cImage != null) {
+                 trace.addOpenNanos(streamStart - start);
+                 long percentagesStart = System.nanoTime();
+                 cImage.computePercentages(true, true);
+                 trace.addPercentagesNanos(System.nanoTime() 
+                         - percentagesStart);
+                 return cImage;
+             }
+         }
+         
+         // only the header is parsed to get the dimensions
+         int width = reader.getWidth(0);
+         int height = reader.getHeight(0);
+         int bytesPerPixel = estimateBytesPerPixel(reader);
+         trace.addOpenNanos(System.nanoTime() - start);
+         int samplingFactor = 1;
+         boolean decodeInStrips = false;
+         
+         // triage on the embedded thumbnail if its score is clear enough
+         if (options.getThumbnailTriage() 
+                 && "jpeg".equalsIgnoreCase(reader.getFormatName())) {
+             cImage = scanEmbeddedThumbnail(reader, width, height, options, 
+                     trace, context);
+             if (cImage != null) {
+                 return cImage;
+             }
+         }
+         
+         // count on the 8x8 block averages instead of the pixels
+         if ((options.getJpegEngine() 
+                 != SmutDetectScanOptions.JpegEngine.PIXELS)
+                 && "jpeg".equalsIgnoreCase(reader.getFormatName())) {
+             cImage = scanBlockAverages(reader, width, height, options, 
+                     trace);
+             if (cImage != null) {
+                 return cImage;
+             }
+         }
+         
+         if (options.getSubsampledDecode()) {
+             samplingFactor = options.computeSamplingFactor(width, height);
+         }
+         
+         // apply the oversize policy if the raster would be too large
+         long maxBytes = options.getMaxDecodeBytes();
+         if ((maxBytes <= 0) || 
+                 (maxBytes > SmutDetectDecodeBudget.getTotalBytes())) {
+             maxBytes = SmutDetectDecodeBudget.getTotalBytes();
+         }
+         if (estimateRasterBytes(width, height, samplingFactor, 
+                 bytesPerPixel) > maxBytes) {
+             switch (options.getOversizePolicy()) {
+                 case SKIP:
+                     logger_.log(Level.INFO, "Skipped decoding " + width 
+                             + "x" + height + " image exceeding the decode "
+                             + "limit");
+                     cImage = new SmutDetectCategorisedImage(
+                             scaledSize(width, samplingFactor),
+                             scaledSize(height, samplingFactor));
+                     cImage.flagForManualCheck();
+                     return cImage;
+                 case TILE:
+                     decodeInStrips = true;
+                     break;
+                 default:
+                     while (estimateRasterBytes(width, height, samplingFactor,
+                             bytesPerPixel) > maxBytes) {
+                         samplingFactor++;
+                     }
+             }
+         }
+         
+         //Set Result container
+         cImage = new SmutDetectCategorisedImage(
+                 scaledSize(width, samplingFactor),
+                 scaledSize(height, samplingFactor));
+         cImage.setSamplingFactor(samplingFactor);
+         if (options.getSkinRegions()) {
+             cImage.setSkinRegions(new SmutDetectSkinRegions(
+                     cImage.getWidth(), cImage.getHeight()));
+         }
+         
+         ImageReadParam param = reader.getDefaultReadParam();
+         if (samplingFactor > 1) {
+             param.setSourceSubsampling(samplingFactor, samplingFactor, 0, 0);
+         }
+         
+         if (decodeInStrips) {
+             // whole multiples of the sampling factor keep the sampling grid
+             long stripBytes = (long) scaledSize(width, samplingFactor) 
+                     * bytesPerPixel;
+             int stripRows = (int) Math.max(1, 
+                     Math.min(height, maxBytes / stripBytes)) * samplingFactor;
+             
+             for (int y = 0; y < height; y += stripRows) {
+                 int rows = Math.min(stripRows, height - y);
+                 param.setSourceRegion(new Rectangle(0, y, width, rows));
+                 decodeAndScanRegion(reader, param, cImage, options, trace,
+                         context, scaledSize(rows, samplingFactor),
+                         stripBytes * scaledSize(rows, samplingFactor));
+             } // end decode strips
+         } else {
+             decodeAndScanRegion(reader, param, cImage, options, trace,
+                     context, cImage.getHeight(), estimateRasterBytes(width, height, samplingFactor, 
+                             bytesPerPixel));
+         }
+         
+         trace.addPixelsScanned(cImage.getNumberOfSampledPixels());
+         
+         // update the result container
+         long percentagesStart = System.nanoTime();
+         cImage.computePercentages(true, true);
+         trace.addPercentagesNanos(System.nanoTime() - percentagesStart);
+         
+         return cImage;
+     }
+     
+     /**
+      * Scans the thumbnail embedded in the header of a JPEG. The result
+      * stands for the image only if the thumbnail shows the whole image and
+      * its percentage is clear of the triage threshold, a thumbnail may 
+      * also be stale if the image was edited without updating it.
+      * 
+      * @param reader JPEG reader with its input set
+      * @param width width of the image
+      * @param height height of the image
+      * @param options options controlling decoding and scanning
+      * @param trace records the timings and pixels scanned
+      * @param context objects of this thread reused by the decode
+      * @return the result of the thumbnail or null if the image has to be
+      *         decoded
+      */
+     private static SmutDetectCategorisedImage scanEmbeddedThumbnail(
+                                            ImageReader reader,
+                                            int width,
+                                            int height,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace,
+                                            SmutDetectScanContext context) {
+         long decodeStart = System.nanoTime();
+         BufferedImage thumbnail = SmutDetectEmbeddedThumbnail.read(reader, 
+                 context);
+         long scanStart = System.nanoTime();
+         trace.addDecodeNanos(scanStart - decodeStart);
+         if ((thumbnail == null) || !SmutDetectEmbeddedThumbnail
+                 .matchesAspectRatio(thumbnail, width, height)) {
+             return null;
+         }
+         
+         SmutDetectCategorisedImage cImage = new SmutDetectCategorisedImage(
+                 thumbnail.getWidth(), thumbnail.getHeight());
+         cImage.setSource(
+                 SmutDetectCategorisedImage.ImageSource.EMBEDDED_THUMBNAIL);
+         if (options.getSkinRegions()) {
+             cImage.setSkinRegions(new SmutDetectSkinRegions(
+                     thumbnail.getWidth(), thumbnail.getHeight()));
+         }
+         SmutDetectRasterScanner.scanImage(thumbnail, cImage, options);
+         long percentagesStart = System.nanoTime();
+         trace.addScanNanos(percentagesStart - scanStart);
+         trace.addPixelsScanned(cImage.getNumberOfSampledPixels());
+         
+         cImage.computePercentages(true, true);
+         trace.addPercentagesNanos(System.nanoTime() - percentagesStart);
+         if (!cImage.getIsProcessedCorrectly() || !options.isClearTriageResult(
+                 cImage.getPreciseAveragePercentage() * 100)) {
+             return null;
+         }
+         return cImage;
+     }
+     
+     /**
+      * Scans a JPEG on the block averages of its DC coefficients without 
+      * decoding its pixels. With the checked engine a result within the 
+      * triage margin is not trusted either.
+      * 
+      * @param reader JPEG reader with its input set
+      * @param width width of the image
+      * @param height height of the image
+      * @param options options controlling decoding and scanning
+      * @param trace records the timings and blocks scanned
+      * @return the result of the block averages or null if the image has to
+      *         be decoded
+      */
+     private static SmutDetectCategorisedImage scanBlockAverages(
+                                            ImageReader reader,
+                                            int width,
+                                            int height,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace) {
+         if (!(reader.getInput() instanceof ImageInputStream)) {
+             return null;
+         }
+         SmutDetectCategorisedImage cImage;
+         try {
+             cImage = SmutDetectJpegBlockScanner.scanImage(
+                     (ImageInputStream) reader.getInput(), options, trace);
+         } catch (IOException e) {
+             // the decode reports the damage
+             return null;
+         } catch (RuntimeException e) {
+             // a malformed stream the checks missed, the decode reports it
+             return null;
+         }
+         if ((cImage == null) || (cImage.getWidth() != width) 
+                 || (cImage.getHeight() != height)) {
+             return null;
+         }
+         
+         long percentagesStart = System.nanoTime();
+         cImage.computePercentages(true, true);
+         trace.addPercentagesNanos(System.nanoTime() - percentagesStart);
+         if (!cImage.getIsProcessedCorrectly()) {
+             return null;
+         }
+         if ((options.getJpegEngine() 
+                 == SmutDetectScanOptions.JpegEngine.BLOCK_AVERAGES_CHECKED)
+                 && !options.isClearTriageResult(
+                         cImage.getPreciseAveragePercentage() * 100)) {
+             return null;
+         }
+         return cImage;
+     }
+     
+     /**
+      * Decodes the region described by the read parameter while holding its
+      * bytes of the global decode budget and adds its hits to the result. 
+      * The decoded rows are as wide as the result container.
+      */
+     private static void decodeAndScanRegion(ImageReader reader,
+                                            ImageReadParam param,
+                                            SmutDetectCategorisedImage cImage,
+                                            SmutDetectScanOptions options,
+                                            SmutDetectScanTrace trace,
+                                            SmutDetectScanContext context,
+                                            int rows,
+                                            long rasterBytes)
+                                            throws IOException, 
+                                                   InterruptedException {
+         int permits = SmutDetectDecodeBudget.acquire(rasterBytes);
+         try {
+             long decodeStart = System.nanoTime();
+             // decode into the image kept from the last file if it fits
+             context.setDestination(reader, param, cImage.getWidth(), rows);
+             BufferedImage bImage = context.decodedRegion(
+                     reader.read(0, param), cImage.getWidth(), rows);
+             long scanStart = System.nanoTime();
+             trace.addDecodeNanos(scanStart - decodeStart);
+             
+             // the skin regions need every row, not just a certain band
+             if (options.getEarlyExitScan() 
+                     && (cImage.getSkinRegions() == null)
+                     && bImage.getWidth() == cImage.getWidth()
+                     && bImage.getHeight() == cImage.getHeight()) {
+                 // the whole image is decoded, stop once the band is certain
+                 SmutDetectSampledScanner.scanImage(bImage, cImage);
+             } else {
+                 // scan the image row by row straight from the raster
+                 SmutDetectRasterScanner.scanImage(bImage, cImage, options);
+             }
+             trace.addScanNanos(System.nanoTime() - scanStart);
+         } finally {
+             SmutDetectDecodeBudget.release(permits);
+         }
+     }
+     
+     /**
+      * @return bytes per pixel of the raster the reader will decode into, 4 
+      *         if the reader can not tell without decoding
+      */
+     private static int estimateBytesPerPixel(ImageReader reader) {
+         try {
+             ImageTypeSpecifier type = reader.getRawImageType(0);
+             if (type == null) {
+                 Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                 type = types.hasNext() ? types.next() : null;
+             }
+             if (type != null) {
+                 SampleModel sampleModel = type.getSampleModel(1, 1);
+                 int bits = 0;
+                 for (int size : sampleModel.getSampleSize()) {
+                     bits += size;
+                 }
+                 return Math.max(1, (bits + 7) / 8);
+             }
+         } catch (IOException e) {
+             // fall through to the worst case of packed ARGB
+         }
+         return 4;
+     }
+     
+     private static long estimateRasterBytes(int width, int height, 
+                                            int samplingFactor,
+                                            int bytesPerPixel) {
+         return (long) scaledSize(width, samplingFactor) 
+                 * scaledSize(height, samplingFactor) * bytesPerPixel;
+     }
+     
+     /**
+      * @return number of pixels left of a dimension after subsampling
+      */
+     private static int scaledSize(int size, int samplingFactor) {
+         return (size + samplingFactor - 1) / samplingFactor;
+     }
+     
+     private static void closeQuietly(ImageInputStream imageStream) {
+         if (imageStream != null) {
+             try {
+                 imageStream.close();
+             } catch (IOException e) {
+                 // nothing left to clean up
+             }
+         }
+     }
     
 }
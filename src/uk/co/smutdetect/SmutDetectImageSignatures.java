@@ -0,0 +1,264 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Registry of the file signatures (magic bytes) of image formats, used to
+ * decide from the first bytes of a file whether it is worth decoding and
+ * which image reader to hand it to.
+ *
+ * The signatures are compiled into a table indexed by the first byte of the
+ * file: a file whose first byte starts no signature is rejected with a single
+ * lookup, otherwise only the few signatures of that byte (plus those which
+ * do not start at offset 0, such as the ISO media "ftyp" box) are compared.
+ * The first registered signature which matches wins.
+ *
+ * Signatures come from http://www.garykessler.net/library/file_sigs.html and
+ * the format specifications. Formats without an installed ImageIO reader
+ * (WebP, HEIF, AVIF, ICO, JPEG XL, PSD and JPEG 2000 need plugins) are
+ * recognised but not decodable.
+ *
+ * @author Rajmund Witt
+ */
+public abstract class SmutDetectImageSignatures {
+
+	/** Bytes of the header all signatures fit into. */
+	public static final int HEADER_LENGTH = 32;
+
+	private static final Object lock_ = new Object();
+	private static final List<Signature> signatures_ =
+		new ArrayList<Signature>();
+	private static volatile Signature[][] table_ = new Signature[256][0];
+
+	static {
+		register(new Signature("JPEG", "jpeg").at(0, 0xFF, 0xD8, 0xFF));
+		register(new Signature("PNG", "png")
+				.at(0, 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A));
+		register(new Signature("GIF87a", "gif").at(0, "GIF87a"));
+		register(new Signature("GIF89a", "gif").at(0, "GIF89a"));
+		register(new Signature("BMP", "bmp").at(0, "BM"));
+		register(new Signature("TIFF little endian", "tiff")
+				.at(0, 0x49, 0x49, 0x2A, 0x00));
+		register(new Signature("TIFF big endian", "tiff")
+				.at(0, 0x4D, 0x4D, 0x00, 0x2A));
+		register(new Signature("BigTIFF little endian", "tiff")
+				.at(0, 0x49, 0x49, 0x2B, 0x00));
+		register(new Signature("BigTIFF big endian", "tiff")
+				.at(0, 0x4D, 0x4D, 0x00, 0x2B));
+		register(new Signature("JPEG 2000", "jpeg2000").at(0, 0x00, 0x00,
+				0x00, 0x0C, 0x6A, 0x50, 0x20, 0x20, 0x0D, 0x0A, 0x87, 0x0A));
+		register(new Signature("JPEG 2000 codestream", "jpeg2000")
+				.at(0, 0xFF, 0x4F, 0xFF, 0x51));
+		register(new Signature("JPEG XL", "jxl").at(0, 0x00, 0x00, 0x00,
+				0x0C, 0x4A, 0x58, 0x4C, 0x20, 0x0D, 0x0A, 0x87, 0x0A));
+		register(new Signature("JPEG XL codestream", "jxl")
+				.at(0, 0xFF, 0x0A));
+		register(new Signature("WebP", "webp").at(0, "RIFF").at(8, "WEBP"));
+		register(new Signature("Photoshop", "psd").at(0, "8BPS"));
+		register(new Signature("ICO", "ico").at(0, 0x00, 0x00, 0x01, 0x00));
+		for (String brand : new String[] {"avif", "avis"}) {
+			register(new Signature("AVIF", "avif").at(4, "ftyp")
+					.at(8, brand));
+		}
+		for (String brand : new String[] {"heic", "heix", "hevc", "hevx",
+				"heim", "heis", "mif1", "msf1"}) {
+			register(new Signature("HEIF", "heif").at(4, "ftyp")
+					.at(8, brand));
+		}
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Adds a signature, checked after the signatures registered before it.
+	 *
+	 * @param signature signature with at least one part
+	 */
+	public static void register(Signature signature) {
+		if (signature.parts_.isEmpty()) {
+			throw new IllegalArgumentException("signature without bytes");
+		}
+		synchronized (lock_) {
+			signatures_.add(signature);
+			table_ = compile(signatures_);
+		}
+	}
+
+	/**
+	 * @param header first bytes of the file
+	 * @param length number of valid bytes in the header
+	 * @return the first signature matching the header or null
+	 */
+	public static Signature match(byte[] header, int length) {
+		if (length <= 0) {
+			return null;
+		}
+		for (Signature signature : table_[header[0] & 0xFF]) {
+			if (signature.matches(header, length)) {
+				return signature;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the first byte table, signatures not starting at offset 0 are
+	 * added to every entry.
+	 */
+	private static Signature[][] compile(List<Signature> signatures) {
+		List<List<Signature>> entries = new ArrayList<List<Signature>>(256);
+		for (int i = 0; i < 256; i++) {
+			entries.add(new ArrayList<Signature>());
+		}
+		for (Signature signature : signatures) {
+			int firstByte = signature.getFirstByte();
+			for (int i = 0; i < 256; i++) {
+				if ((firstByte < 0) || (firstByte == i)) {
+					entries.get(i).add(signature);
+				}
+			}
+		}
+
+		Signature[][] table = new Signature[256][];
+		for (int i = 0; i < 256; i++) {
+			table[i] = entries.get(i).toArray(new Signature[0]);
+		}
+		return table;
+	}
+
+
+	/**
+	 * Magic bytes at fixed offsets identifying an image format, and the
+	 * ImageIO format name of the readers decoding it.
+	 */
+	public static final class Signature {
+
+		private final String name_;
+		private final String readerFormat_;
+		private final List<int[]> parts_;
+		private volatile Boolean decodable_;
+
+		/**
+		 * @param name name of the format, for messages
+		 * @param readerFormat ImageIO format name of the readers
+		 */
+		public Signature(String name, String readerFormat) {
+			name_ = name;
+			readerFormat_ = readerFormat;
+			parts_ = new ArrayList<int[]>();
+			decodable_ = null;
+		}
+
+		/**
+		 * @param offset offset of the bytes in the file
+		 * @param bytes the expected byte values
+		 * @return this signature
+		 */
+		public Signature at(int offset, int... bytes) {
+			if (offset + bytes.length > HEADER_LENGTH) {
+				throw new IllegalArgumentException(
+						"signature beyond the header");
+			}
+			int[] part = new int[bytes.length + 1];
+			part[0] = offset;
+			for (int i = 0; i < bytes.length; i++) {
+				part[i + 1] = bytes[i] & 0xFF;
+			}
+			parts_.add(part);
+			return this;
+		}
+
+		/**
+		 * @param offset offset of the text in the file
+		 * @param text expected ASCII text
+		 * @return this signature
+		 */
+		public Signature at(int offset, String text) {
+			byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+			int[] values = new int[bytes.length];
+			for (int i = 0; i < bytes.length; i++) {
+				values[i] = bytes[i];
+			}
+			return at(offset, values);
+		}
+
+		public String getName() {
+			return name_;
+		}
+
+		public String getReaderFormat() {
+			return readerFormat_;
+		}
+
+		/**
+		 * @return true if an ImageIO reader for the format is installed,
+		 * 			checked once
+		 */
+		public boolean isDecodable() {
+			Boolean decodable = decodable_;
+			if (decodable == null) {
+				decodable = ImageIO.getImageReadersByFormatName(
+						readerFormat_).hasNext();
+				decodable_ = decodable;
+			}
+			return decodable;
+		}
+
+		/**
+		 * @return the byte at offset 0 or -1 if the signature does not fix
+		 * 			it
+		 */
+		int getFirstByte() {
+			for (int[] part : parts_) {
+				if (part[0] == 0) {
+					return part[1];
+				}
+			}
+			return -1;
+		}
+
+		boolean matches(byte[] header, int length) {
+			for (int[] part : parts_) {
+				int offset = part[0];
+				if (offset + part.length - 1 > length) {
+					return false;
+				}
+				for (int i = 1; i < part.length; i++) {
+					if ((header[offset + i - 1] & 0xFF) != part[i]) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return name_;
+		}
+	}
+
+}
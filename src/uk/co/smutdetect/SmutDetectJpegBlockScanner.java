@@ -0,0 +1,871 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteOrder;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Scan engine which counts the skin-tone pixels of a JPEG on its 8x8 block
+ * averages instead of its pixels.
+ *
+ * The DC coefficient of a block is eight times the average of its 64
+ * samples, so the DC coefficients of the Y, Cb and Cr blocks form an image
+ * of block averages, already in YCbCr, without any inverse DCT, upsampling
+ * or per pixel colour conversion. Only the entropy coded data is decoded: a
+ * baseline scan has to be Huffman decoded completely (the AC coefficients
+ * are decoded and dropped), of a progressive JPEG only the DC scans are
+ * decoded and the AC scans are skipped.
+ *
+ * Each block average is converted to RGB once and classified through the
+ * SmutDetectSkinToneTable, so the same RGB and YCbCr rules are applied as
+ * to decoded pixels, and counted for all pixels of the image the block
+ * covers. Within a block the pixels are not told apart, the result is an
+ * estimate.
+ *
+ * Arithmetic coded, lossless, hierarchical, 12 bit and four component
+ * (CMYK) JPEGs as well as damaged or truncated files (unless a progressive
+ * file has all its DC data) are not handled, scanImage then returns null and
+ * the image is to be decoded. So are JPEGs whose DC coefficients would take
+ * more than the decode byte limit of the options, the arrays are sized from
+ * the header and held within the decode budget.
+ *
+ * @author Rajmund Witt
+ */
+public abstract class SmutDetectJpegBlockScanner {
+
+	private static final int SOF0 = 0xC0;
+	private static final int SOF1 = 0xC1;
+	private static final int SOF2 = 0xC2;
+	private static final int DHT = 0xC4;
+	private static final int DAC = 0xCC;
+	private static final int RST0 = 0xD0;
+	private static final int RST7 = 0xD7;
+	private static final int SOI = 0xD8;
+	private static final int EOI = 0xD9;
+	private static final int SOS = 0xDA;
+	private static final int DQT = 0xDB;
+	private static final int DNL = 0xDC;
+	private static final int DRI = 0xDD;
+	private static final int APP14 = 0xEE;
+
+	private static final int LOOKAHEAD_BITS = 9;
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Decodes the DC coefficients of the JPEG and counts the skin-tone
+	 * pixels of its block averages. The position and byte order of the
+	 * stream are restored.
+	 *
+	 * @param stream stream of the JPEG, seekable back to its start
+	 * @param options with skin regions, they are found on the grid of the
+	 * 			blocks
+	 * @param trace records the timings and the blocks scanned
+	 * @return the result container without percentages or null if the JPEG
+	 * 			is not supported or damaged
+	 * @throws IOException if the stream can not be read
+	 */
+	public static SmutDetectCategorisedImage scanImage(ImageInputStream stream,
+			SmutDetectScanOptions options, SmutDetectScanTrace trace)
+			throws IOException {
+		long position = stream.getStreamPosition();
+		ByteOrder order = stream.getByteOrder();
+
+		try {
+			stream.seek(0);
+			long decodeStart = System.nanoTime();
+			Decoder decoder = new Decoder(stream, options.getDecodeByteLimit());
+			try {
+				boolean decoded = decoder.decode();
+				long scanStart = System.nanoTime();
+				trace.addDecodeNanos(scanStart - decodeStart);
+				if (!decoded) {
+					return null;
+				}
+
+				SmutDetectCategorisedImage cImage = decoder.classify(
+						options.getSkinRegions(), trace);
+				trace.addScanNanos(System.nanoTime() - scanStart);
+				return cImage;
+			} finally {
+				decoder.releaseBudget();
+			}
+		} finally {
+			stream.setByteOrder(order);
+			stream.seek(position);
+		}
+	}
+
+
+	/**
+	 * One colour component of the frame and the DC coefficients of its
+	 * blocks, padded to whole MCUs.
+	 */
+	private static final class Component {
+
+		final int id_;
+		final int h_;
+		final int v_;
+		final int quantTable_;
+		int blocksPerLine_;
+		int blocksPerColumn_;
+		int[] dc_;
+		int predictor_;
+		boolean dcComplete_;
+		Huffman dcTable_;
+		Huffman acTable_;
+
+		Component(int id, int h, int v, int quantTable) {
+			id_ = id;
+			h_ = h;
+			v_ = v;
+			quantTable_ = quantTable;
+		}
+	}
+
+
+	/**
+	 * Huffman table with a lookahead table for the codes of up to 9 bits,
+	 * longer codes are decoded as in Annex F.2.2.3 of the JPEG standard.
+	 */
+	private static final class Huffman {
+
+		// (code length << 8) | symbol, 0 for longer codes
+		final int[] lookahead_ = new int[1 << LOOKAHEAD_BITS];
+		final int[] maxCode_ = new int[18];
+		final int[] valueOffset_ = new int[17];
+		final int[] symbols_;
+
+		Huffman(int[] counts, int[] symbols) throws IOException {
+			symbols_ = symbols;
+			int code = 0;
+			int k = 0;
+			for (int length = 1; length <= 16; length++) {
+				valueOffset_[length] = k - code;
+				for (int i = 0; i < counts[length]; i++) {
+					if (length <= LOOKAHEAD_BITS) {
+						int shift = LOOKAHEAD_BITS - length;
+						for (int j = 0; j < (1 << shift); j++) {
+							lookahead_[(code << shift) | j] =
+								(length << 8) | symbols[k];
+						}
+					}
+					code++;
+					k++;
+				}
+				if (code > (1 << length)) {
+					throw new IOException("bad Huffman table");
+				}
+				maxCode_[length] = (counts[length] > 0) ? code - 1 : -1;
+				code <<= 1;
+			}
+			maxCode_[17] = Integer.MAX_VALUE;
+		}
+	}
+
+
+	/**
+	 * Reads the markers and the entropy coded data of one JPEG.
+	 */
+	private static final class Decoder {
+
+		private final ImageInputStream stream_;
+		private final byte[] buffer_ = new byte[8192];
+		private int bufferPosition_;
+		private int bufferLength_;
+
+		private final int[] quantDc_ = new int[4];
+		private final boolean[] quantDefined_ = new boolean[4];
+		private final Huffman[] dcTables_ = new Huffman[4];
+		private final Huffman[] acTables_ = new Huffman[4];
+		private Component[] components_;
+		private boolean progressive_;
+		private int width_;
+		private int height_;
+		private int hMax_;
+		private int vMax_;
+		private int mcusPerLine_;
+		private int mcusPerColumn_;
+		private int restartInterval_;
+		private int adobeTransform_ = -1;
+		// most bytes of the DC arrays and the permits held for them
+		private final long maxBytes_;
+		private int permits_;
+
+		// entropy decoder state, bits left aligned
+		private int bits_;
+		private int bitCount_;
+		private int pendingMarker_;
+		private boolean endOfFile_;
+
+		Decoder(ImageInputStream stream, long maxBytes) {
+			stream_ = stream;
+			maxBytes_ = maxBytes;
+			permits_ = 0;
+		}
+
+		/**
+		 * Returns the decode budget held for the DC arrays.
+		 */
+		void releaseBudget() {
+			if (permits_ > 0) {
+				SmutDetectDecodeBudget.release(permits_);
+				permits_ = 0;
+			}
+		}
+
+		/**
+		 * @return true if the DC coefficients of all components were
+		 * 			decoded
+		 */
+		boolean decode() throws IOException {
+			if ((readByte() != 0xFF) || (readByte() != SOI)) {
+				return false;
+			}
+
+			int marker = nextMarker();
+			while (marker >= 0) {
+				switch (marker) {
+					case SOF0:
+					case SOF1:
+						if (!readFrame(false)) {
+							return false;
+						}
+						break;
+					case SOF2:
+						if (!readFrame(true)) {
+							return false;
+						}
+						break;
+					case DHT:
+						readHuffmanTables();
+						break;
+					case DQT:
+						readQuantTables();
+						break;
+					case DRI:
+						readUnsignedShort();
+						restartInterval_ = readUnsignedShort();
+						break;
+					case APP14:
+						readAdobe();
+						break;
+					case SOS:
+						if (components_ == null) {
+							return false;
+						}
+						marker = readScan();
+						if (marker == -2) {
+							return false;
+						}
+						continue;
+					case EOI:
+						return isDcComplete();
+					case DNL:
+					case DAC:
+						return false;
+					default:
+						if ((marker >= 0xC3) && (marker <= 0xCF)) {
+							// lossless, hierarchical or arithmetic coding
+							return false;
+						}
+						skipSegment();
+				}
+				marker = nextMarker();
+			}
+			// end of file, enough if a progressive JPEG has all its DC data
+			return isDcComplete();
+		}
+
+		/**
+		 * Classifies the block averages of the first component's blocks,
+		 * each counted for the pixels it covers. The skin regions are found
+		 * with a block as a pixel.
+		 */
+		SmutDetectCategorisedImage classify(boolean skinRegions,
+				SmutDetectScanTrace trace) {
+			Component first = components_[0];
+			int blockWidth = 8 * hMax_ / first.h_;
+			int blockHeight = 8 * vMax_ / first.v_;
+			boolean rgb = (components_.length == 3) && ((adobeTransform_ == 0) ||
+					((components_[0].id_ == 'R') && (components_[1].id_ == 'G') &&
+					(components_[2].id_ == 'B')));
+			long rgbHits = 0;
+			long yCbCrHits = 0;
+			long blocks = 0;
+			SmutDetectSkinRegions regions = null;
+			if (skinRegions) {
+				regions = new SmutDetectSkinRegions(
+						(width_ + blockWidth - 1) / blockWidth,
+						(height_ + blockHeight - 1) / blockHeight);
+			}
+
+			for (int y0 = 0; y0 < height_; y0 += blockHeight) {
+				int rows = Math.min(blockHeight, height_ - y0);
+				for (int x0 = 0; x0 < width_; x0 += blockWidth) {
+					int pixels = rows * Math.min(blockWidth, width_ - x0);
+					int color;
+					if (components_.length == 1) {
+						int gray = average(first, x0, y0);
+						color = (gray << 16) | (gray << 8) | gray;
+					} else if (rgb) {
+						color = (average(components_[0], x0, y0) << 16) |
+								(average(components_[1], x0, y0) << 8) |
+								average(components_[2], x0, y0);
+					} else {
+						color = toRgb(average(components_[0], x0, y0),
+								average(components_[1], x0, y0),
+								average(components_[2], x0, y0));
+					}
+
+					int hit = SmutDetectSkinToneTable.lookup(color);
+					if ((hit & SmutDetectSkinToneTable.RGB_HIT) != 0) {
+						rgbHits += pixels;
+					}
+					if ((hit & SmutDetectSkinToneTable.YCBCR_HIT) != 0) {
+						yCbCrHits += pixels;
+					}
+					if (regions != null) {
+						regions.addPixel(x0 / blockWidth, y0 / blockHeight, hit);
+					}
+					blocks++;
+				}
+			}
+
+			SmutDetectCategorisedImage cImage =
+				new SmutDetectCategorisedImage(width_, height_);
+			cImage.setSource(
+					SmutDetectCategorisedImage.ImageSource.BLOCK_AVERAGES);
+			cImage.addRgbSkinToneHits(rgbHits);
+			cImage.addYCbCrSkinToneHits(yCbCrHits);
+			cImage.setSkinRegions(regions);
+			trace.addPixelsScanned(blocks);
+			return cImage;
+		}
+
+		/**
+		 * @return the average sample of the component's block covering the
+		 * 			pixel
+		 */
+		private int average(Component component, int x, int y) {
+			int column = Math.min((x * component.h_ / hMax_) >> 3,
+					component.blocksPerLine_ - 1);
+			int row = Math.min((y * component.v_ / vMax_) >> 3,
+					component.blocksPerColumn_ - 1);
+			int dc = component.dc_[row * component.blocksPerLine_ + column];
+			int value = 128 + Math.round(
+					dc * quantDc_[component.quantTable_] / 8.0f);
+			return clamp(value);
+		}
+
+		/**
+		 * JFIF YCbCr to RGB conversion.
+		 */
+		private static int toRgb(int y, int cb, int cr) {
+			float cbf = cb - 128;
+			float crf = cr - 128;
+			int r = clamp(Math.round(y + 1.402f * crf));
+			int g = clamp(Math.round(y - 0.344136f * cbf - 0.714136f * crf));
+			int b = clamp(Math.round(y + 1.772f * cbf));
+			return (r << 16) | (g << 8) | b;
+		}
+
+		private static int clamp(int value) {
+			return (value < 0) ? 0 : ((value > 255) ? 255 : value);
+		}
+
+		private boolean isDcComplete() {
+			if (components_ == null) {
+				return false;
+			}
+			for (Component component : components_) {
+				if (!component.dcComplete_) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean readFrame(boolean progressive) throws IOException {
+			if (components_ != null) {
+				return false;
+			}
+			readUnsignedShort();
+			int precision = readByte();
+			height_ = readUnsignedShort();
+			width_ = readUnsignedShort();
+			int count = readByte();
+			if ((precision != 8) || (height_ <= 0) || (width_ <= 0) ||
+					((count != 1) && (count != 3))) {
+				return false;
+			}
+
+			progressive_ = progressive;
+			components_ = new Component[count];
+			hMax_ = 1;
+			vMax_ = 1;
+			for (int i = 0; i < count; i++) {
+				int id = readByte();
+				int sampling = readByte();
+				int quantTable = readByte();
+				int h = sampling >> 4;
+				int v = sampling & 15;
+				if ((h < 1) || (h > 4) || (v < 1) || (v > 4) ||
+						(quantTable < 0) || (quantTable > 3)) {
+					return false;
+				}
+				components_[i] = new Component(id, h, v, quantTable);
+				hMax_ = Math.max(hMax_, h);
+				vMax_ = Math.max(vMax_, v);
+			}
+
+			mcusPerLine_ = (width_ + 8 * hMax_ - 1) / (8 * hMax_);
+			mcusPerColumn_ = (height_ + 8 * vMax_ - 1) / (8 * vMax_);
+			long bytes = 0;
+			for (Component component : components_) {
+				if ((hMax_ % component.h_ != 0) || (vMax_ % component.v_ != 0)) {
+					return false;
+				}
+				component.blocksPerLine_ = mcusPerLine_ * component.h_;
+				component.blocksPerColumn_ = mcusPerColumn_ * component.v_;
+				bytes += 4L * component.blocksPerLine_ *
+						component.blocksPerColumn_;
+			}
+
+			// the header alone must not allocate more than a decode may, a
+			// second frame is not supported either
+			if ((bytes > maxBytes_) || (permits_ > 0)) {
+				return false;
+			}
+			try {
+				permits_ = SmutDetectDecodeBudget.acquire(bytes);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted waiting for the decode budget");
+			}
+			for (Component component : components_) {
+				component.dc_ = new int[component.blocksPerLine_ *
+						component.blocksPerColumn_];
+			}
+			return true;
+		}
+
+		private void readQuantTables() throws IOException {
+			int length = readUnsignedShort() - 2;
+			while (length > 0) {
+				int info = readByte();
+				int precision = info >> 4;
+				int id = info & 15;
+				int entries = (precision == 0) ? 64 : 128;
+				int dc = (precision == 0) ? readByte() : readUnsignedShort();
+				skipBytes(entries - ((precision == 0) ? 1 : 2));
+				if (id < 4) {
+					quantDc_[id] = dc;
+					quantDefined_[id] = true;
+				}
+				length -= 1 + entries;
+			}
+		}
+
+		private void readHuffmanTables() throws IOException {
+			int length = readUnsignedShort() - 2;
+			while (length > 0) {
+				int info = readByte();
+				int[] counts = new int[17];
+				int total = 0;
+				for (int i = 1; i <= 16; i++) {
+					counts[i] = readByte();
+					if (counts[i] < 0) {
+						throw new IOException("truncated segment");
+					}
+					total += counts[i];
+				}
+				if (total > 256) {
+					throw new IOException("bad Huffman table");
+				}
+				int[] symbols = new int[total];
+				for (int i = 0; i < total; i++) {
+					symbols[i] = readByte();
+					if (symbols[i] < 0) {
+						throw new IOException("truncated segment");
+					}
+				}
+				Huffman table = new Huffman(counts, symbols);
+				if ((info >> 4) == 0) {
+					dcTables_[info & 3] = table;
+				} else {
+					acTables_[info & 3] = table;
+				}
+				length -= 17 + total;
+			}
+		}
+
+		private void readAdobe() throws IOException {
+			int length = readUnsignedShort() - 2;
+			if (length >= 12) {
+				byte[] data = new byte[length];
+				for (int i = 0; i < length; i++) {
+					data[i] = (byte) readByte();
+				}
+				if ((data[0] == 'A') && (data[1] == 'd') && (data[2] == 'o') &&
+						(data[3] == 'b') && (data[4] == 'e')) {
+					adobeTransform_ = data[11] & 0xFF;
+				}
+			} else {
+				skipBytes(length);
+			}
+		}
+
+		/**
+		 * Decodes the DC coefficients of a scan.
+		 *
+		 * @return the marker after the scan, -1 at the end of the file or -2
+		 * 			if the scan can not be decoded
+		 */
+		private int readScan() throws IOException {
+			readUnsignedShort();
+			int count = readByte();
+			if ((count < 1) || (count > 4)) {
+				return -2;
+			}
+			Component[] scan = new Component[count];
+			for (int i = 0; i < count; i++) {
+				int id = readByte();
+				int tables = readByte();
+				for (Component component : components_) {
+					if (component.id_ == id) {
+						scan[i] = component;
+					}
+				}
+				if (scan[i] == null) {
+					return -2;
+				}
+				scan[i].dcTable_ = dcTables_[(tables >> 4) & 3];
+				scan[i].acTable_ = acTables_[tables & 3];
+			}
+			int spectralStart = readByte();
+			readByte();
+			int approximation = readByte();
+			int high = approximation >> 4;
+			int low = approximation & 15;
+
+			if (progressive_ && (spectralStart != 0)) {
+				// AC coefficients are not needed
+				return skipEntropyData();
+			}
+			for (Component component : scan) {
+				if (!quantDefined_[component.quantTable_] ||
+						((high == 0) && (component.dcTable_ == null)) ||
+						(!progressive_ && (component.acTable_ == null))) {
+					return -2;
+				}
+				component.predictor_ = 0;
+			}
+
+			bits_ = 0;
+			bitCount_ = 0;
+			pendingMarker_ = -1;
+			int restartsLeft = restartInterval_;
+
+			if (count == 1) {
+				// non-interleaved, the blocks of the component in raster order
+				Component component = scan[0];
+				int columns = ((width_ * component.h_ + hMax_ - 1) / hMax_ +
+						7) >> 3;
+				int rows = ((height_ * component.v_ + vMax_ - 1) / vMax_ +
+						7) >> 3;
+				for (int row = 0; row < rows; row++) {
+					for (int column = 0; column < columns; column++) {
+						if (restartInterval_ > 0) {
+							if (restartsLeft == 0) {
+								if (!restart(scan)) {
+									return -2;
+								}
+								restartsLeft = restartInterval_;
+							}
+							restartsLeft--;
+						}
+						decodeBlock(component, row * component.blocksPerLine_ +
+								column, high, low);
+					}
+				}
+			} else {
+				for (int mcuRow = 0; mcuRow < mcusPerColumn_; mcuRow++) {
+					for (int mcuColumn = 0; mcuColumn < mcusPerLine_;
+							mcuColumn++) {
+						if (restartInterval_ > 0) {
+							if (restartsLeft == 0) {
+								if (!restart(scan)) {
+									return -2;
+								}
+								restartsLeft = restartInterval_;
+							}
+							restartsLeft--;
+						}
+						for (Component component : scan) {
+							for (int v = 0; v < component.v_; v++) {
+								int index = (mcuRow * component.v_ + v) *
+										component.blocksPerLine_ +
+										mcuColumn * component.h_;
+								for (int h = 0; h < component.h_; h++) {
+									decodeBlock(component, index + h, high,
+											low);
+								}
+							}
+						}
+					}
+				}
+			}
+
+			if (endOfFile_) {
+				return -2;
+			}
+			if ((high == 0) || !progressive_) {
+				for (Component component : scan) {
+					component.dcComplete_ = true;
+				}
+			}
+			if (pendingMarker_ >= 0) {
+				int marker = pendingMarker_;
+				pendingMarker_ = -1;
+				return marker;
+			}
+			return nextMarker();
+		}
+
+		private void decodeBlock(Component component, int index, int high,
+				int low) throws IOException {
+			if (!progressive_) {
+				component.predictor_ += receiveExtend(
+						decodeHuffman(component.dcTable_));
+				component.dc_[index] = component.predictor_;
+
+				// decode and drop the AC coefficients
+				Huffman acTable = component.acTable_;
+				for (int k = 1; k < 64; k++) {
+					int rs = decodeHuffman(acTable);
+					int size = rs & 15;
+					if (size == 0) {
+						if ((rs >> 4) != 15) {
+							break;
+						}
+						k += 15;
+					} else {
+						k += rs >> 4;
+						getBits(size);
+					}
+				}
+			} else if (high == 0) {
+				component.predictor_ += receiveExtend(
+						decodeHuffman(component.dcTable_));
+				component.dc_[index] = component.predictor_ << low;
+			} else if (getBits(1) != 0) {
+				component.dc_[index] |= 1 << low;
+			}
+		}
+
+		/**
+		 * Consumes the restart marker expected after a restart interval.
+		 */
+		private boolean restart(Component[] scan) throws IOException {
+			bits_ = 0;
+			bitCount_ = 0;
+			if (pendingMarker_ < 0) {
+				pendingMarker_ = nextMarker();
+			}
+			if ((pendingMarker_ < RST0) || (pendingMarker_ > RST7)) {
+				return false;
+			}
+			pendingMarker_ = -1;
+			for (Component component : scan) {
+				component.predictor_ = 0;
+			}
+			return true;
+		}
+
+		private int decodeHuffman(Huffman table) throws IOException {
+			if (bitCount_ < 16) {
+				fillBits();
+			}
+			int entry = table.lookahead_[bits_ >>> (32 - LOOKAHEAD_BITS)];
+			if (entry != 0) {
+				int length = entry >> 8;
+				bits_ <<= length;
+				bitCount_ -= length;
+				return entry & 0xFF;
+			}
+
+			int length = LOOKAHEAD_BITS + 1;
+			int code = bits_ >>> (32 - length);
+			while (code > table.maxCode_[length]) {
+				length++;
+				code = bits_ >>> (32 - length);
+			}
+			if (length > 16) {
+				throw new IOException("bad Huffman code");
+			}
+			int index = table.valueOffset_[length] + code;
+			if ((index < 0) || (index >= table.symbols_.length)) {
+				throw new IOException("bad Huffman code");
+			}
+			bits_ <<= length;
+			bitCount_ -= length;
+			return table.symbols_[index];
+		}
+
+		/**
+		 * @param size number of bits of the value, the category
+		 * @return the signed value of Annex F.2.2.1
+		 */
+		private int receiveExtend(int size) throws IOException {
+			if (size == 0) {
+				return 0;
+			}
+			if (size > 16) {
+				throw new IOException("bad DC difference");
+			}
+			int value = getBits(size);
+			if (value < (1 << (size - 1))) {
+				value += (-1 << size) + 1;
+			}
+			return value;
+		}
+
+		private int getBits(int count) throws IOException {
+			if (bitCount_ < count) {
+				fillBits();
+			}
+			int value = bits_ >>> (32 - count);
+			bits_ <<= count;
+			bitCount_ -= count;
+			return value;
+		}
+
+		/**
+		 * Fills the bit buffer to more than 24 bits, removing stuffed zero
+		 * bytes. After a marker or the end of the file zero bits are added.
+		 */
+		private void fillBits() throws IOException {
+			while (bitCount_ <= 24) {
+				int b = 0;
+				if ((pendingMarker_ < 0) && !endOfFile_) {
+					b = readByte();
+					if (b < 0) {
+						endOfFile_ = true;
+						b = 0;
+					} else if (b == 0xFF) {
+						int next = readByte();
+						while (next == 0xFF) {
+							next = readByte();
+						}
+						if (next < 0) {
+							endOfFile_ = true;
+							b = 0;
+						} else if (next != 0) {
+							pendingMarker_ = next;
+							b = 0;
+						}
+					}
+				}
+				bits_ |= b << (24 - bitCount_);
+				bitCount_ += 8;
+			}
+		}
+
+		/**
+		 * @return the marker after the entropy coded data of a skipped scan
+		 */
+		private int skipEntropyData() throws IOException {
+			int b = readByte();
+			while (b >= 0) {
+				if (b == 0xFF) {
+					int next = readByte();
+					while (next == 0xFF) {
+						next = readByte();
+					}
+					if ((next != 0) && ((next < RST0) || (next > RST7))) {
+						return next;
+					}
+					b = (next < 0) ? -1 : readByte();
+				} else {
+					b = readByte();
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the code of the next marker or -1 at the end of the file
+		 */
+		private int nextMarker() throws IOException {
+			int b = readByte();
+			while ((b >= 0) && (b != 0xFF)) {
+				b = readByte();
+			}
+			while (b == 0xFF) {
+				b = readByte();
+			}
+			return b;
+		}
+
+		private void skipSegment() throws IOException {
+			skipBytes(readUnsignedShort() - 2);
+		}
+
+		private void skipBytes(int count) throws IOException {
+			// a segment length below 2 does not even cover the length field
+			if (count < 0) {
+				throw new IOException("bad segment length");
+			}
+			int inBuffer = Math.min(count, bufferLength_ - bufferPosition_);
+			bufferPosition_ += inBuffer;
+			if (count > inBuffer) {
+				stream_.seek(stream_.getStreamPosition() + count - inBuffer);
+			}
+		}
+
+		private int readUnsignedShort() throws IOException {
+			int high = readByte();
+			int low = readByte();
+			if ((high | low) < 0) {
+				throw new IOException("truncated segment");
+			}
+			return (high << 8) | low;
+		}
+
+		private int readByte() throws IOException {
+			if (bufferPosition_ == bufferLength_) {
+				bufferLength_ = stream_.read(buffer_, 0, buffer_.length);
+				bufferPosition_ = 0;
+				if (bufferLength_ <= 0) {
+					bufferLength_ = 0;
+					return -1;
+				}
+			}
+			return buffer_[bufferPosition_++] & 0xFF;
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Engine counting the skin-tone pixels of a row of packed sRGB values with
+ * both detectors.
+ *
+ * The default engine looks every pixel up in the SmutDetectSkinToneTable.
+ * On a JVM providing the jdk.incubator.vector module an engine evaluating
+ * both rules on whole vectors of pixels can be used instead. It is compiled
+ * separately (src-vector, Java 16 or later) and loaded by name, so this
+ * class and the rest of the scanner still run on Java 8. The engine is
+ * chosen once per JVM with the system property
+ * uk.co.smutdetect.pixelClassifier:
+ * <ul>
+ * <li>auto (default) - vector engine if it can be loaded, the table
+ * otherwise</li>
+ * <li>table - precomputed table</li>
+ * </ul>
+ * A loaded vector engine is only used if its counts match the table for a
+ * sample of colours.
+ *
+ * @author Rajmund Witt
+ * @see SmutDetectSkinToneTable
+ */
+public abstract class SmutDetectPixelClassifier {
+
+	/** System property choosing the engine. */
+	public static final String ENGINE_PROPERTY =
+		"uk.co.smutdetect.pixelClassifier";
+
+	private static final String VECTOR_CLASSIFIER_CLASS =
+		"uk.co.smutdetect.SmutDetectVectorClassifier";
+
+	private static final int NUMBER_OF_CHECKED_COLORS = 1 << 14;
+
+	/**
+	 * Lazy holder - the engine is only chosen when the first image is
+	 * scanned.
+	 */
+	private static final class Holder {
+		static final SmutDetectPixelClassifier INSTANCE = selectClassifier();
+	}
+
+
+	/**
+	 * @return the engine chosen for this JVM
+	 */
+	public static SmutDetectPixelClassifier getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * @return the engine looking the pixels up in the precomputed table
+	 */
+	public static SmutDetectPixelClassifier getTableClassifier() {
+		return TableClassifier.INSTANCE;
+	}
+
+	/**
+	 * @return the vector engine, null if it is not available or its counts
+	 * 			do not match the table
+	 */
+	public static SmutDetectPixelClassifier getVectorClassifier() {
+		return VectorHolder.INSTANCE;
+	}
+
+	/**
+	 * @return name of the engine for logs and reports
+	 */
+	public abstract String getName();
+
+	/**
+	 * Classifies a row of packed sRGB values with both detectors.
+	 *
+	 * @param row packed sRGB values, the alpha channel is ignored
+	 * @param length number of values to check
+	 * @param hits [0] is increased by the RGB hits, [1] by the YCbCr hits
+	 */
+	public abstract void countRow(int[] row, int length, long[] hits);
+
+	/**
+	 * Checks the engine against the reference detectors for every colour.
+	 *
+	 * @return true if the counts match for all 16,777,216 colours
+	 */
+	public boolean verify() {
+		int[] row = new int[1 << 12];
+		long[] hits = new long[2];
+
+		for (int first = 0; first < (1 << 24); first += row.length) {
+			long rgbHits = 0;
+			long yCbCrHits = 0;
+			for (int i = 0; i < row.length; i++) {
+				row[i] = first + i;
+				if (RgbSkinToneDetector.checkColor(row[i])) {
+					rgbHits++;
+				}
+				if (YCbCrSkinToneDetector.checkColor(row[i])) {
+					yCbCrHits++;
+				}
+			}
+
+			hits[0] = 0;
+			hits[1] = 0;
+			countRow(row, row.length, hits);
+			if ((hits[0] != rgbHits) || (hits[1] != yCbCrHits)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static SmutDetectPixelClassifier selectClassifier() {
+		String engine = System.getProperty(ENGINE_PROPERTY, "auto");
+
+		if (!"table".equalsIgnoreCase(engine) &&
+				(getVectorClassifier() != null)) {
+			return getVectorClassifier();
+		}
+		return getTableClassifier();
+	}
+
+	/**
+	 * Loads the vector engine and compares it with the table for a fixed
+	 * sample of colours, each colour in a different lane position.
+	 */
+	private static SmutDetectPixelClassifier loadVectorClassifier() {
+		Logger logger = Logger.getLogger(
+				SmutDetectPixelClassifier.class.getName());
+		SmutDetectPixelClassifier classifier;
+
+		try {
+			classifier = (SmutDetectPixelClassifier) Class.forName(
+					VECTOR_CLASSIFIER_CLASS).getDeclaredConstructor()
+					.newInstance();
+		} catch (Throwable exc) {
+			// not compiled in or jdk.incubator.vector not added to the JVM
+			logger.log(Level.INFO, "Vector pixel classifier not available: " +
+					exc);
+			return null;
+		}
+
+		Random random = new Random(NUMBER_OF_CHECKED_COLORS);
+		int[] colors = new int[NUMBER_OF_CHECKED_COLORS];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = random.nextInt();
+		}
+
+		// odd lengths exercise the tail handling as well
+		for (int length = colors.length - 7; length <= colors.length;
+				length += 7) {
+			long[] expected = new long[2];
+			long[] actual = new long[2];
+			getTableClassifier().countRow(colors, length, expected);
+			classifier.countRow(colors, length, actual);
+			if ((expected[0] != actual[0]) || (expected[1] != actual[1])) {
+				logger.log(Level.WARNING, "Vector pixel classifier does " +
+						"not match the skin-tone table, not used");
+				return null;
+			}
+		}
+		return classifier;
+	}
+
+
+
+	/**
+	 * Lazy holder of the vector engine, loaded on first request only.
+	 */
+	private static final class VectorHolder {
+		static final SmutDetectPixelClassifier INSTANCE =
+			loadVectorClassifier();
+	}
+
+	/**
+	 * One lookup in the precomputed table per pixel.
+	 */
+	static final class TableClassifier extends SmutDetectPixelClassifier {
+		static final TableClassifier INSTANCE = new TableClassifier();
+
+		@Override
+		public String getName() {
+			return "table";
+		}
+
+		@Override
+		public void countRow(int[] row, int length, long[] hits) {
+			byte[] table = SmutDetectSkinToneTable.getTable();
+			int rgbHits = 0;
+			int yCbCrHits = 0;
+
+			for (int i = 0; i < length; i++) {
+				int bits = SmutDetectSkinToneTable.lookup(table, row[i]);
+				rgbHits += bits & SmutDetectSkinToneTable.RGB_HIT;
+				yCbCrHits += bits >>> 1;
+			}
+
+			hits[0] += rgbHits;
+			hits[1] += yCbCrHits;
+		}
+	}
+
+}
@@ -0,0 +1,543 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Scan engine which counts the skin-tone pixels of a decoded image row by row.
+ *
+ * Instead of asking the BufferedImage for every pixel through getRGB (which
+ * converts through the ColorModel on every call) the rows are pulled in bulk
+ * straight from the DataBuffer of the Raster and converted to packed sRGB
+ * values once. Both detectors are then fed from that single read through the
+ * SmutDetectPixelClassifier (by default the precomputed skin-tone table).
+ *
+ * Specialised readers exist for the layouts ImageIO produces most often:
+ * packed int (TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR), interleaved bytes
+ * (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR and the interleaved RGB(A) of PNG) and
+ * single band images (TYPE_BYTE_GRAY and indexed/palette images) which are
+ * resolved through a lookup table built from the ColorModel. Everything else
+ * falls back to a row-wise getRGB.
+ *
+ * Very large images can optionally be split into row bands which are counted
+ * on a ForkJoinPool shared by all ingest threads, see SmutDetectScanOptions.
+ *
+ * The colour channels handed to the detectors are identical to the values
+ * BufferedImage.getRGB returns, so the hit counts do not change.
+ *
+ * @author Rajmund Witt
+ */
+public abstract class SmutDetectRasterScanner {
+
+	/**
+	 * Pixels per band below which a band is not split any further when an
+	 * image is scanned on all cores.
+	 */
+	private static final int MIN_BAND_PIXELS = 1 << 20;
+
+	/**
+	 * Pool shared by all ingest threads for scanning very large images,
+	 * created on first use.
+	 */
+	private static final class PoolHolder {
+		static final ForkJoinPool POOL = new ForkJoinPool(
+				Runtime.getRuntime().availableProcessors());
+	}
+
+
+	/**
+	 * Scans all pixels of the image with the calling thread and adds the
+	 * skin-tone hits of both detectors to the result container.
+	 *
+	 * @param image decoded image
+	 * @param cImage result container the hits are added to
+	 */
+	public static void scanImage(BufferedImage image,
+			SmutDetectCategorisedImage cImage) {
+		scanImage(image, cImage, null);
+	}
+
+	/**
+	 * Scans all pixels of the image and adds the skin-tone hits of both
+	 * detectors to the result container. Images above the parallel pixel
+	 * threshold of the options are split into row bands which are counted on
+	 * a ForkJoinPool.
+	 *
+	 * If the result container has skin regions, the skin of the rows is
+	 * added to them, the image being the next strip of the rows of the
+	 * container.
+	 *
+	 * @param image decoded image
+	 * @param cImage result container the hits are added to
+	 * @param options scan options, null for a single-threaded scan
+	 */
+	public static void scanImage(BufferedImage image,
+			SmutDetectCategorisedImage cImage, SmutDetectScanOptions options) {
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		RowReader reader = createRowReader(image);
+		SmutDetectSkinRegions regions = cImage.getSkinRegions();
+		int rowOffset = (regions != null) ? regions.reserveRows(height) : 0;
+		long[] hits;
+
+		if ((options != null) &&
+				options.useParallelScan((long) width * height) &&
+				!(reader instanceof GenericRowReader)) {
+			// getRGB may go through colour conversions which are not safe
+			// to share between threads, only the raster readers are split
+			int bandRows = Math.max(1, MIN_BAND_PIXELS / width);
+			hits = PoolHolder.POOL.invoke(new BandTask(reader, width, 0,
+					height, bandRows, regions, rowOffset));
+		} else {
+			hits = new long[2];
+			countRows(reader, width, 0, height, regions, rowOffset, hits);
+		}
+
+		cImage.addRgbSkinToneHits(hits[0]);
+		cImage.addYCbCrSkinToneHits(hits[1]);
+	}
+
+	/**
+	 * Counts the hits of a band of rows.
+	 *
+	 * @param reader reader of the image
+	 * @param width pixels per row
+	 * @param firstRow first row of the band
+	 * @param endRow row after the last row of the band
+	 * @param regions skin regions the rows are added to or null
+	 * @param rowOffset row of the regions of the first row of the image
+	 * @param hits [0] is increased by the RGB hits, [1] by the YCbCr hits
+	 */
+	static void countRows(RowReader reader, int width, int firstRow,
+			int endRow, SmutDetectSkinRegions regions, int rowOffset,
+			long[] hits) {
+		// scratch row of the calling thread, also of a pool thread
+		int[] row = SmutDetectScanContext.get().getRow(width);
+
+		// scan row by row - the rasters are stored row-major
+		for (int y = firstRow; y < endRow; y++) {
+			reader.readRow(y, row, width);
+			if (regions != null) {
+				regions.addRow(rowOffset + y, row, width, hits);
+			} else {
+				countRow(row, width, hits);
+			}
+		} // end scan rows
+	}
+
+	/**
+	 * Classifies a row of packed sRGB values with both detectors, using the
+	 * pixel classifier chosen for this JVM (by default the precomputed table
+	 * so each pixel is a single lookup).
+	 *
+	 * @param row packed sRGB values
+	 * @param length number of values to check
+	 * @param hits [0] is increased by the RGB hits, [1] by the YCbCr hits
+	 */
+	static void countRow(int[] row, int length, long[] hits) {
+		SmutDetectPixelClassifier.getInstance().countRow(row, length, hits);
+	}
+
+	/**
+	 * Picks the fastest row reader for the layout of the image.
+	 *
+	 * @param image decoded image
+	 * @return reader returning the same colours as BufferedImage.getRGB
+	 */
+	static RowReader createRowReader(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		ColorModel colorModel = image.getColorModel();
+		SampleModel sampleModel = raster.getSampleModel();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+
+		if (colorModel.isAlphaPremultiplied() ||
+				dataBuffer.getNumBanks() != 1) {
+			// getRGB has to un-premultiply, leave that to the ColorModel
+			return new GenericRowReader(image);
+		}
+
+		if ((colorModel instanceof DirectColorModel) &&
+				(sampleModel instanceof SinglePixelPackedSampleModel) &&
+				(dataBuffer instanceof DataBufferInt) &&
+				colorModel.getColorSpace().isCS_sRGB()) {
+
+			DirectColorModel directModel = (DirectColorModel) colorModel;
+			if (directModel.getRedMask() == 0x00ff0000 &&
+					directModel.getGreenMask() == 0x0000ff00 &&
+					directModel.getBlueMask() == 0x000000ff) {
+				return new IntRgbRowReader(raster, false);
+			} else if (directModel.getRedMask() == 0x000000ff &&
+					directModel.getGreenMask() == 0x0000ff00 &&
+					directModel.getBlueMask() == 0x00ff0000) {
+				return new IntRgbRowReader(raster, true);
+			}
+
+		} else if ((colorModel instanceof ComponentColorModel) &&
+				(sampleModel instanceof PixelInterleavedSampleModel) &&
+				(dataBuffer instanceof DataBufferByte) &&
+				colorModel.getColorSpace().isCS_sRGB() &&
+				(sampleModel.getNumBands() == 3 ||
+					sampleModel.getNumBands() == 4) &&
+				colorModel.getComponentSize(0) == 8 &&
+				colorModel.getComponentSize(1) == 8 &&
+				colorModel.getComponentSize(2) == 8) {
+
+			return new ByteInterleavedRowReader(raster);
+
+		} else if ((sampleModel.getNumBands() == 1) &&
+				(sampleModel.getSampleSize(0) <= 16)) {
+
+			// gray and palette images, TYPE_BYTE_GRAY, TYPE_BYTE_INDEXED,
+			// TYPE_BYTE_BINARY and GIF
+			return new LookupRowReader(image);
+		}
+
+		return new GenericRowReader(image);
+	}
+
+
+
+	/**
+	 * Splits the rows of an image in halves until the bands are small enough
+	 * and merges the counters of the bands. With skin regions the bands are
+	 * split at the rows of the cells, so no two bands count the same cell.
+	 */
+	static final class BandTask extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final RowReader reader_;
+		private final int width_;
+		private final int firstRow_;
+		private final int endRow_;
+		private final int bandRows_;
+		private final SmutDetectSkinRegions regions_;
+		private final int rowOffset_;
+
+		BandTask(RowReader reader, int width, int firstRow, int endRow,
+				int bandRows, SmutDetectSkinRegions regions, int rowOffset) {
+			reader_ = reader;
+			width_ = width;
+			firstRow_ = firstRow;
+			endRow_ = endRow;
+			bandRows_ = bandRows;
+			regions_ = regions;
+			rowOffset_ = rowOffset;
+		}
+
+		@Override
+		protected long[] compute() {
+			int middleRow = (firstRow_ + endRow_) >>> 1;
+			if (regions_ != null) {
+				int cellSize = regions_.getCellSize();
+				middleRow = (rowOffset_ + middleRow) / cellSize * cellSize -
+						rowOffset_;
+			}
+
+			if ((endRow_ - firstRow_ <= bandRows_) ||
+					(middleRow <= firstRow_)) {
+				long[] hits = new long[2];
+				countRows(reader_, width_, firstRow_, endRow_, regions_,
+						rowOffset_, hits);
+				return hits;
+			}
+
+			BandTask upper = new BandTask(reader_, width_, firstRow_,
+					middleRow, bandRows_, regions_, rowOffset_);
+			BandTask lower = new BandTask(reader_, width_, middleRow,
+					endRow_, bandRows_, regions_, rowOffset_);
+
+			upper.fork();
+			long[] hits = lower.compute();
+			long[] upperHits = upper.join();
+			hits[0] += upperHits[0];
+			hits[1] += upperHits[1];
+			return hits;
+		}
+	}
+
+	/**
+	 * Reads a row of the image as packed sRGB values. Implementations only
+	 * read from the raster and may be shared by the threads of a BandTask.
+	 */
+	static abstract class RowReader {
+
+		/**
+		 * @param y row to read
+		 * @param row destination of the packed sRGB values
+		 * @param width number of pixels to read starting at x = 0
+		 */
+		abstract void readRow(int y, int[] row, int width);
+
+		/**
+		 * Reads every step-th pixel of a row.
+		 *
+		 * @param y row to read
+		 * @param firstX first pixel to read
+		 * @param step distance between the pixels read
+		 * @param pixels destination of the packed sRGB values
+		 * @param count number of pixels to read
+		 */
+		abstract void readPixels(int y, int firstX, int step, int[] pixels,
+				int count);
+	}
+
+	/**
+	 * Fallback for layouts without a specialised reader, still reads a whole
+	 * row per call.
+	 */
+	static final class GenericRowReader extends RowReader {
+		private final BufferedImage image_;
+
+		GenericRowReader(BufferedImage image) {
+			image_ = image;
+		}
+
+		@Override
+		void readRow(int y, int[] row, int width) {
+			image_.getRGB(0, y, width, 1, row, 0, width);
+		}
+
+		@Override
+		void readPixels(int y, int firstX, int step, int[] pixels, int count) {
+			for (int i = 0, x = firstX; i < count; i++, x += step) {
+				pixels[i] = image_.getRGB(x, y);
+			}
+		}
+	}
+
+	/**
+	 * Packed int layouts (TYPE_INT_RGB, TYPE_INT_ARGB and TYPE_INT_BGR).
+	 */
+	static final class IntRgbRowReader extends RowReader {
+		private final int[] data_;
+		private final int offset_;
+		private final int scanlineStride_;
+		private final boolean swapRedBlue_;
+
+		IntRgbRowReader(Raster raster, boolean swapRedBlue) {
+			SinglePixelPackedSampleModel sampleModel =
+				(SinglePixelPackedSampleModel) raster.getSampleModel();
+			DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+
+			data_ = dataBuffer.getData();
+			scanlineStride_ = sampleModel.getScanlineStride();
+			offset_ = dataBuffer.getOffset() -
+					raster.getSampleModelTranslateY() * scanlineStride_ -
+					raster.getSampleModelTranslateX();
+			swapRedBlue_ = swapRedBlue;
+		}
+
+		@Override
+		void readRow(int y, int[] row, int width) {
+			int index = offset_ + y * scanlineStride_;
+
+			if (swapRedBlue_) {
+				for (int x = 0; x < width; x++) {
+					int pixel = data_[index + x];
+					row[x] = ((pixel & 0xff) << 16) | (pixel & 0xff00) |
+							((pixel >> 16) & 0xff);
+				}
+			} else {
+				System.arraycopy(data_, index, row, 0, width);
+			}
+		}
+
+		@Override
+		void readPixels(int y, int firstX, int step, int[] pixels, int count) {
+			int index = offset_ + y * scanlineStride_ + firstX;
+
+			for (int i = 0; i < count; i++) {
+				int pixel = data_[index];
+				if (swapRedBlue_) {
+					pixel = ((pixel & 0xff) << 16) | (pixel & 0xff00) |
+							((pixel >> 16) & 0xff);
+				}
+				pixels[i] = pixel;
+				index += step;
+			}
+		}
+	}
+
+	/**
+	 * Interleaved 8 bit sRGB layouts (TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR and the
+	 * custom RGB/RGBA layouts of the PNG reader).
+	 */
+	static final class ByteInterleavedRowReader extends RowReader {
+		private final byte[] data_;
+		private final int offset_;
+		private final int scanlineStride_;
+		private final int pixelStride_;
+		private final int redOffset_;
+		private final int greenOffset_;
+		private final int blueOffset_;
+
+		ByteInterleavedRowReader(Raster raster) {
+			ComponentSampleModel sampleModel =
+				(ComponentSampleModel) raster.getSampleModel();
+			DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+			int[] bandOffsets = sampleModel.getBandOffsets();
+
+			data_ = dataBuffer.getData();
+			scanlineStride_ = sampleModel.getScanlineStride();
+			pixelStride_ = sampleModel.getPixelStride();
+			offset_ = dataBuffer.getOffset() -
+					raster.getSampleModelTranslateY() * scanlineStride_ -
+					raster.getSampleModelTranslateX() * pixelStride_;
+			redOffset_ = bandOffsets[0];
+			greenOffset_ = bandOffsets[1];
+			blueOffset_ = bandOffsets[2];
+		}
+
+		@Override
+		void readRow(int y, int[] row, int width) {
+			int index = offset_ + y * scanlineStride_;
+
+			for (int x = 0; x < width; x++) {
+				row[x] = ((data_[index + redOffset_] & 0xff) << 16) |
+						((data_[index + greenOffset_] & 0xff) << 8) |
+						(data_[index + blueOffset_] & 0xff);
+				index += pixelStride_;
+			}
+		}
+
+		@Override
+		void readPixels(int y, int firstX, int step, int[] pixels, int count) {
+			int index = offset_ + y * scanlineStride_ + firstX * pixelStride_;
+			int indexStep = step * pixelStride_;
+
+			for (int i = 0; i < count; i++) {
+				pixels[i] = ((data_[index + redOffset_] & 0xff) << 16) |
+						((data_[index + greenOffset_] & 0xff) << 8) |
+						(data_[index + blueOffset_] & 0xff);
+				index += indexStep;
+			}
+		}
+	}
+
+	/**
+	 * Single band layouts (gray and palette images). Every possible sample
+	 * value is converted once through the ColorModel, after that each pixel
+	 * is a table lookup.
+	 */
+	static final class LookupRowReader extends RowReader {
+		private final Raster raster_;
+		private final int[] lookup_;
+		private final byte[] data_;
+		private final int offset_;
+		private final int scanlineStride_;
+		private final int pixelStride_;
+
+		LookupRowReader(BufferedImage image) {
+			raster_ = image.getRaster();
+			lookup_ = createLookup(image);
+
+			SampleModel sampleModel = raster_.getSampleModel();
+			DataBuffer dataBuffer = raster_.getDataBuffer();
+
+			if ((sampleModel instanceof PixelInterleavedSampleModel) &&
+					(dataBuffer instanceof DataBufferByte)) {
+				ComponentSampleModel componentModel =
+					(ComponentSampleModel) sampleModel;
+				data_ = ((DataBufferByte) dataBuffer).getData();
+				scanlineStride_ = componentModel.getScanlineStride();
+				pixelStride_ = componentModel.getPixelStride();
+				offset_ = dataBuffer.getOffset() +
+						componentModel.getBandOffsets()[0] -
+						raster_.getSampleModelTranslateY() * scanlineStride_ -
+						raster_.getSampleModelTranslateX() * pixelStride_;
+			} else {
+				// bit packed or short samples are unpacked by the raster
+				data_ = null;
+				scanlineStride_ = 0;
+				pixelStride_ = 0;
+				offset_ = 0;
+			}
+		}
+
+		/**
+		 * Converts every possible sample value the way getRGB would.
+		 */
+		private static int[] createLookup(BufferedImage image) {
+			ColorModel colorModel = image.getColorModel();
+			int[] lookup =
+				new int[1 << image.getSampleModel().getSampleSize(0)];
+			WritableRaster pixel =
+				image.getRaster().createCompatibleWritableRaster(1, 1);
+			Object dataElements = null;
+
+			for (int value = 0; value < lookup.length; value++) {
+				pixel.setSample(0, 0, 0, value);
+				dataElements = pixel.getDataElements(0, 0, dataElements);
+				lookup[value] = colorModel.getRGB(dataElements);
+			}
+			return lookup;
+		}
+
+		@Override
+		void readRow(int y, int[] row, int width) {
+			if (data_ != null) {
+				int index = offset_ + y * scanlineStride_;
+				for (int x = 0; x < width; x++) {
+					row[x] = lookup_[data_[index] & 0xff];
+					index += pixelStride_;
+				}
+			} else {
+				raster_.getSamples(0, y, width, 1, 0, row);
+				for (int x = 0; x < width; x++) {
+					row[x] = lookup_[row[x]];
+				}
+			}
+		}
+
+		@Override
+		void readPixels(int y, int firstX, int step, int[] pixels, int count) {
+			if (data_ != null) {
+				int index = offset_ + y * scanlineStride_ +
+						firstX * pixelStride_;
+				int indexStep = step * pixelStride_;
+				for (int i = 0; i < count; i++) {
+					pixels[i] = lookup_[data_[index] & 0xff];
+					index += indexStep;
+				}
+			} else {
+				for (int i = 0, x = firstX; i < count; i++, x += step) {
+					pixels[i] = lookup_[raster_.getSample(x, y, 0)];
+				}
+			}
+		}
+	}
+
+}
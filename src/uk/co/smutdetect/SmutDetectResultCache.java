@@ -0,0 +1,173 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of scan results keyed by the MD5 hash of the image content,
+ * so duplicates of an image (browser caches, copied thumbnails, backups) are
+ * decoded and scanned once.
+ *
+ * Only the hit counts, dimensions and sampling are kept per entry, the least recently
+ * used entry is evicted once the maximum number of entries is reached. The
+ * cache is safe to share between the ingest threads of a job.
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectResultCache {
+
+	/** Default number of entries, roughly 10 MB of heap. */
+	public static final int DEFAULT_MAX_ENTRIES = 50000;
+
+
+	private final LinkedHashMap<String, CachedResult> entries_;
+	private final AtomicLong hits_;
+	private final AtomicLong misses_;
+
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	public SmutDetectResultCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param maxEntries number of results kept before the least recently
+	 * 			used one is evicted
+	 */
+	public SmutDetectResultCache(final int maxEntries) {
+		entries_ = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CachedResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		hits_ = new AtomicLong();
+		misses_ = new AtomicLong();
+	}
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	public long getHits() {
+		return hits_.get();
+	}
+
+	public long getMisses() {
+		return misses_.get();
+	}
+
+	public synchronized int getSize() {
+		return entries_.size();
+	}
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Looks up the result of an earlier scan of the same content.
+	 *
+	 * @param md5Hash hex encoded MD5 hash of the content
+	 * @return a new result container with the stored values, null if the
+	 * 			content has not been scanned yet
+	 */
+	public SmutDetectCategorisedImage get(String md5Hash) {
+		CachedResult entry;
+
+		synchronized (this) {
+			entry = entries_.get(md5Hash.toLowerCase());
+		}
+
+		if (entry == null) {
+			misses_.incrementAndGet();
+			return null;
+		}
+		hits_.incrementAndGet();
+		return entry.toCategorisedImage();
+	}
+
+	/**
+	 * Stores the result of a scan.
+	 *
+	 * @param md5Hash hex encoded MD5 hash of the content
+	 * @param cImage result of the scan
+	 */
+	public void put(String md5Hash, SmutDetectCategorisedImage cImage) {
+		CachedResult entry = new CachedResult(cImage);
+
+		synchronized (this) {
+			entries_.put(md5Hash.toLowerCase(), entry);
+		}
+	}
+
+
+
+	/**
+	 * The values needed to rebuild a result container.
+	 */
+	private static final class CachedResult {
+		private final int width_;
+		private final int height_;
+		private final long rgbHits_;
+		private final long yCbCrHits_;
+		private final int samplingFactor_;
+		private final long numberOfSampledPixels_;
+		private final boolean isProcessedCorrectly_;
+		private final SmutDetectCategorisedImage.ImageSource source_;
+		// found once the percentages were computed, shared by the copies
+		private final SmutDetectSkinRegions skinRegions_;
+
+		CachedResult(SmutDetectCategorisedImage cImage) {
+			width_ = cImage.getWidth();
+			height_ = cImage.getHeight();
+			rgbHits_ = cImage.getNumberOfRgbSkinToneHits();
+			yCbCrHits_ = cImage.getNumberOfYCbCrSkinToneHits();
+			samplingFactor_ = cImage.getSamplingFactor();
+			numberOfSampledPixels_ = cImage.getNumberOfSampledPixels();
+			isProcessedCorrectly_ = cImage.getIsProcessedCorrectly();
+			source_ = cImage.getSource();
+			skinRegions_ = cImage.getSkinRegions();
+		}
+
+		SmutDetectCategorisedImage toCategorisedImage() {
+			SmutDetectCategorisedImage cImage =
+				new SmutDetectCategorisedImage(width_, height_);
+
+			cImage.setSamplingFactor(samplingFactor_);
+			cImage.setNumberOfSampledPixels(numberOfSampledPixels_);
+			cImage.setSource(source_);
+			cImage.setSkinRegions(skinRegions_);
+			if (isProcessedCorrectly_) {
+				cImage.addRgbSkinToneHits(rgbHits_);
+				cImage.addYCbCrSkinToneHits(yCbCrHits_);
+				cImage.computePercentages(true, true);
+			} else {
+				cImage.flagForManualCheck();
+			}
+			return cImage;
+		}
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Scan engine which samples the pixels of a decoded image and stops as soon
+ * as the 10% band of the average percentage is statistically certain.
+ *
+ * The image is divided into cells of 16x16 pixels. Every pass classifies one
+ * pixel per cell, the position within the cell follows a fixed shuffled
+ * order which is rotated from one row of cells to the next, so each pass is
+ * a stratified sample spread over the whole image. After each pass a Wilson
+ * score interval (with finite population correction) is computed for the
+ * average percentage; once both ends of the interval fall into the same 10%
+ * band the scan stops. After 256 passes every pixel has been classified
+ * exactly once and the counts equal those of a full scan.
+ *
+ * The hits added to the result container are estimates for the whole image,
+ * the number of pixels actually classified is recorded as its sampled
+ * pixels. The interval is checked after every pass, the high confidence
+ * level keeps the band stable despite the repeated looks.
+ *
+ * @author Rajmund Witt
+ * @see SmutDetectRasterScanner
+ */
+public abstract class SmutDetectSampledScanner {
+
+	/** Width and height of a cell, one pixel of each is sampled per pass. */
+	static final int CELL_SIZE = 16;
+
+	/** Two-sided 99.9% confidence. */
+	static final double Z = 3.29;
+
+	/** Images with fewer pixels are scanned completely. */
+	static final long MIN_IMAGE_PIXELS = 1 << 16;
+
+	/** Pixels to classify before the interval is trusted. */
+	static final long MIN_SAMPLED_PIXELS = 4096;
+
+	private static final int OFFSETS_PER_CELL = CELL_SIZE * CELL_SIZE;
+
+	/** Odd, so every row of cells visits each offset once. */
+	private static final int CELL_ROW_ROTATION = 97;
+
+	private static final int[] OFFSET_ORDER = createOffsetOrder();
+
+
+	/**
+	 * Samples the pixels of the image until the band of the average
+	 * percentage is certain and adds the estimated hits of both detectors to
+	 * the result container.
+	 *
+	 * @param image decoded image
+	 * @param cImage result container the estimated hits are added to
+	 */
+	public static void scanImage(BufferedImage image,
+			SmutDetectCategorisedImage cImage) {
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long numberOfPixels = (long) width * height;
+
+		if (numberOfPixels < MIN_IMAGE_PIXELS) {
+			SmutDetectRasterScanner.scanImage(image, cImage);
+			return;
+		}
+
+		SmutDetectRasterScanner.RowReader reader =
+			SmutDetectRasterScanner.createRowReader(image);
+		int cellRows = (height + CELL_SIZE - 1) / CELL_SIZE;
+		int[] pixels = SmutDetectScanContext.get().getRow(
+				(width + CELL_SIZE - 1) / CELL_SIZE);
+		long[] hits = new long[2];
+		long sampledPixels = 0;
+
+		for (int pass = 0; pass < OFFSETS_PER_CELL; pass++) {
+			for (int cellRow = 0; cellRow < cellRows; cellRow++) {
+				int offset = OFFSET_ORDER[(pass + cellRow * CELL_ROW_ROTATION)
+						% OFFSETS_PER_CELL];
+				int x = offset % CELL_SIZE;
+				int y = cellRow * CELL_SIZE + offset / CELL_SIZE;
+
+				if ((x < width) && (y < height)) {
+					int count = (width - x + CELL_SIZE - 1) / CELL_SIZE;
+					reader.readPixels(y, x, CELL_SIZE, pixels, count);
+					SmutDetectRasterScanner.countRow(pixels, count, hits);
+					sampledPixels += count;
+				}
+			} // end sample cell rows
+
+			if ((sampledPixels >= MIN_SAMPLED_PIXELS) &&
+					(sampledPixels < numberOfPixels) &&
+					isBandCertain(hits[0] + hits[1], sampledPixels,
+							numberOfPixels)) {
+				break;
+			}
+		} // end passes
+
+		cImage.addRgbSkinToneHits(estimateHits(hits[0], sampledPixels,
+				numberOfPixels));
+		cImage.addYCbCrSkinToneHits(estimateHits(hits[1], sampledPixels,
+				numberOfPixels));
+		cImage.setNumberOfSampledPixels(sampledPixels);
+	}
+
+	/**
+	 * Checks whether the confidence interval of the average percentage lies
+	 * within a single 10% band.
+	 *
+	 * @param hits RGB plus YCbCr hits of the sampled pixels
+	 * @param sampledPixels number of pixels classified
+	 * @param numberOfPixels number of pixels of the image
+	 * @return true if more samples can not change the band
+	 */
+	static boolean isBandCertain(long hits, long sampledPixels,
+			long numberOfPixels) {
+		double n = sampledPixels;
+		double average = hits / (2.0 * n);
+		double zSquared = Z * Z;
+		double populationCorrection = 1.0 - n / numberOfPixels;
+
+		// a pixel counts 0, 0.5 or 1 - its variance is at most the
+		// variance of a Bernoulli variable with the same mean
+		double denominator = 1.0 + zSquared / n;
+		double centre = (average + zSquared / (2.0 * n)) / denominator;
+		double halfWidth = Z * Math.sqrt(populationCorrection *
+				(average * (1.0 - average) / n + zSquared / (4.0 * n * n))) /
+				denominator;
+
+		// the estimate has to agree as well, a sample of hits only is
+		// 100% but its interval never reaches that band
+		int band = toBand(average);
+		return (toBand(Math.max(0.0, centre - halfWidth)) == band) &&
+				(toBand(Math.min(1.0, centre + halfWidth)) == band);
+	}
+
+	/**
+	 * @return the band as the ingest module derives it from the readable
+	 * 			percentage
+	 */
+	private static int toBand(double percentage) {
+		return ((int) (percentage * 100)) / 10;
+	}
+
+	private static long estimateHits(long hits, long sampledPixels,
+			long numberOfPixels) {
+		if (sampledPixels == numberOfPixels) {
+			return hits;
+		}
+		return Math.round((double) hits * numberOfPixels /
+				sampledPixels);
+	}
+
+	/**
+	 * Fixed shuffle of the offsets within a cell, fixed so repeated scans of
+	 * an image return the same numbers.
+	 */
+	private static int[] createOffsetOrder() {
+		int[] order = new int[OFFSETS_PER_CELL];
+		Random random = new Random(OFFSETS_PER_CELL);
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = order[i];
+			order[i] = order[j];
+			order[j] = swap;
+		}
+		return order;
+	}
+
+}
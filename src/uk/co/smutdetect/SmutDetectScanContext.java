@@ -0,0 +1,363 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Objects a thread reuses from one scan to the next so that scanning a stream
+ * of images allocates little more than the result of each image.
+ *
+ * One image reader per format is kept and reset between files instead of
+ * being created and disposed for every file, the readers of the format the
+ * file signature names are asked before the others. The last destination image is
+ * kept and handed to the reader through ImageReadParam.setDestination when
+ * the next image has the same type and fits into it, it is cleared first so
+ * a truncated file still decodes to the black pixels a fresh image would
+ * have. Scratch rows for the scanners grow to the widest row seen.
+ *
+ * Every thread has its own context, nothing in it is shared.
+ *
+ * @author Rajmund Witt
+ */
+final class SmutDetectScanContext {
+
+	/**
+	 * Largest destination image kept for the next file, a 16 MP photo in 3
+	 * bytes per pixel. Larger images are decoded into a fresh image.
+	 */
+	static final long MAX_POOLED_DESTINATION_BYTES = 48L << 20;
+
+	private static final ThreadLocal<SmutDetectScanContext> contexts_ =
+		new ThreadLocal<SmutDetectScanContext>() {
+			@Override
+			protected SmutDetectScanContext initialValue() {
+				return new SmutDetectScanContext();
+			}
+		};
+
+	private List<ImageReaderSpi> readerSpis_;
+	private final Map<String, List<ImageReaderSpi>> formatSpis_;
+	private final Map<ImageReaderSpi, ImageReader> readers_;
+	private final Map<ImageReaderSpi, ImageReader> thumbnailReaders_;
+	private BufferedImage destination_;
+	private ImageTypeSpecifier destinationType_;
+	private int[] row_;
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	private SmutDetectScanContext() {
+		readerSpis_ = null;
+		formatSpis_ = new HashMap<String, List<ImageReaderSpi>>();
+		readers_ = new HashMap<ImageReaderSpi, ImageReader>();
+		thumbnailReaders_ = new HashMap<ImageReaderSpi, ImageReader>();
+		destination_ = null;
+		destinationType_ = null;
+		row_ = new int[0];
+	}
+
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	/**
+	 * @return the context of the calling thread
+	 */
+	static SmutDetectScanContext get() {
+		return contexts_.get();
+	}
+
+	/**
+	 * @param length pixels needed
+	 * @return scratch row of at least the length, overwritten by the next
+	 * 			call on this thread
+	 */
+	int[] getRow(int length) {
+		if (row_.length < length) {
+			row_ = new int[length];
+		}
+		return row_;
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Finds the reader for the stream the way ImageIO.getImageReaders does,
+	 * asking the registered readers in their registry order, but returns
+	 * the reader this thread already created for the format. The readers of
+	 * the given format are asked first, so a file whose signature is known
+	 * is not offered to every other reader.
+	 *
+	 * @param stream stream positioned at the start of the image
+	 * @param readerFormat ImageIO format name of the image or null if
+	 * 			unknown
+	 * @return reader without input or null if no reader can decode the
+	 * 			stream
+	 */
+	ImageReader acquireReader(ImageInputStream stream, String readerFormat) {
+		if (readerSpis_ == null) {
+			readerSpis_ = new ArrayList<ImageReaderSpi>();
+			Iterator<ImageReaderSpi> spis = IIORegistry.getDefaultInstance()
+					.getServiceProviders(ImageReaderSpi.class, true);
+			while (spis.hasNext()) {
+				readerSpis_.add(spis.next());
+			}
+		}
+
+		List<ImageReaderSpi> formatSpis = null;
+		if (readerFormat != null) {
+			formatSpis = getFormatSpis(readerFormat);
+			for (ImageReaderSpi spi : formatSpis) {
+				ImageReader reader = acquireReader(stream, spi);
+				if (reader != null) {
+					return reader;
+				}
+			}
+		}
+
+		// the signature may be wrong about the format
+		for (ImageReaderSpi spi : readerSpis_) {
+			if ((formatSpis == null) || !formatSpis.contains(spi)) {
+				ImageReader reader = acquireReader(stream, spi);
+				if (reader != null) {
+					return reader;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the reader of the provider if it can decode the stream,
+	 * 			otherwise null
+	 */
+	private ImageReader acquireReader(ImageInputStream stream,
+			ImageReaderSpi spi) {
+		boolean canDecode;
+		try {
+			stream.mark();
+			canDecode = spi.canDecodeInput(stream);
+			stream.reset();
+		} catch (IOException e) {
+			// like ImageIO, a reader failing to look is not a match
+			canDecode = false;
+		}
+		if (!canDecode) {
+			return null;
+		}
+		ImageReader reader = readers_.get(spi);
+		if (reader == null) {
+			try {
+				reader = spi.createReaderInstance();
+			} catch (IOException e) {
+				return null;
+			}
+			readers_.put(spi, reader);
+		}
+		return reader;
+	}
+
+	/**
+	 * @return the reader providers naming the format, in registry order
+	 */
+	private List<ImageReaderSpi> getFormatSpis(String readerFormat) {
+		List<ImageReaderSpi> formatSpis = formatSpis_.get(readerFormat);
+		if (formatSpis == null) {
+			formatSpis = new ArrayList<ImageReaderSpi>();
+			for (ImageReaderSpi spi : readerSpis_) {
+				String[] names = spi.getFormatNames();
+				for (int i = 0; (names != null) && (i < names.length); i++) {
+					if (readerFormat.equalsIgnoreCase(names[i])) {
+						formatSpis.add(spi);
+						break;
+					}
+				}
+			}
+			formatSpis_.put(readerFormat, formatSpis);
+		}
+		return formatSpis;
+	}
+
+	/**
+	 * A second reader of the same format, to decode a thumbnail embedded in
+	 * the image while the reader of the image keeps its input.
+	 *
+	 * @param reader reader returned by acquireReader
+	 * @return reader without input or null if it can not be created
+	 */
+	ImageReader acquireThumbnailReader(ImageReader reader) {
+		ImageReaderSpi spi = reader.getOriginatingProvider();
+		if (spi == null) {
+			return null;
+		}
+		ImageReader thumbnailReader = thumbnailReaders_.get(spi);
+		if (thumbnailReader == null) {
+			try {
+				thumbnailReader = spi.createReaderInstance();
+			} catch (IOException e) {
+				return null;
+			}
+			thumbnailReaders_.put(spi, thumbnailReader);
+		}
+		return thumbnailReader;
+	}
+
+	/**
+	 * Resets the reader for the next file, a reader which fails to reset is
+	 * disposed and replaced on next use.
+	 *
+	 * @param reader reader returned by acquireReader or
+	 * 			acquireThumbnailReader
+	 */
+	void releaseReader(ImageReader reader) {
+		try {
+			reader.reset();
+		} catch (RuntimeException e) {
+			readers_.values().remove(reader);
+			thumbnailReaders_.values().remove(reader);
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Sets the kept destination image on the read parameter if the reader
+	 * decodes into the same type and the decoded image fits without leaving
+	 * most of it unused, after clearing it. Otherwise a new destination of
+	 * the reader's default type is created and kept if it is small enough.
+	 * Palette images are never decoded into a kept destination, on Java 8
+	 * IndexColorModel.equals ignores the palette (JDK-7107905), so the next
+	 * file would keep the colours of the last one.
+	 *
+	 * @param reader reader with its input set
+	 * @param param read parameter of the decode
+	 * @param width width of the decoded image
+	 * @param height height of the decoded image
+	 * @throws IOException if the reader can not tell its image types
+	 */
+	void setDestination(ImageReader reader, ImageReadParam param, int width,
+			int height) throws IOException {
+		param.setDestination(null);
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		ImageTypeSpecifier type = (types != null && types.hasNext()) ?
+				types.next() : null;
+		if ((type == null) ||
+				(type.getColorModel() instanceof IndexColorModel)) {
+			return;
+		}
+
+		if ((destination_ != null) && type.equals(destinationType_) &&
+				(destination_.getWidth() >= width) &&
+				(destination_.getHeight() >= height) &&
+				((long) destination_.getWidth() * destination_.getHeight() <=
+					4L * width * height) &&
+				clear(destination_)) {
+			param.setDestination(destination_);
+			return;
+		}
+
+		long bytes = (long) width * height *
+				((type.getSampleModel().getNumDataElements() *
+				DataBuffer.getDataTypeSize(
+					type.getSampleModel().getDataType()) + 7) / 8);
+		if (bytes > MAX_POOLED_DESTINATION_BYTES) {
+			return;
+		}
+		// drop the old image before allocating the new one
+		destination_ = null;
+		destinationType_ = null;
+		BufferedImage destination = type.createBufferedImage(width, height);
+		if (!canClear(destination)) {
+			return;
+		}
+		destination_ = destination;
+		destinationType_ = type;
+		param.setDestination(destination_);
+	}
+
+	/**
+	 * @param image image decoded into the destination set by setDestination
+	 * @param width width of the decoded image
+	 * @param height height of the decoded image
+	 * @return the decoded part of a kept destination larger than the image,
+	 * 			otherwise the image
+	 */
+	BufferedImage decodedRegion(BufferedImage image, int width, int height) {
+		if ((image != destination_) ||
+				((image.getWidth() == width) &&
+				(image.getHeight() == height))) {
+			return image;
+		}
+		return image.getSubimage(0, 0, Math.min(width, image.getWidth()),
+				Math.min(height, image.getHeight()));
+	}
+
+	private static boolean canClear(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (buffer.getNumBanks() == 1) &&
+				((buffer instanceof DataBufferByte) ||
+				(buffer instanceof DataBufferInt) ||
+				(buffer instanceof DataBufferShort) ||
+				(buffer instanceof DataBufferUShort));
+	}
+
+	/**
+	 * Zeroes the data of the image.
+	 *
+	 * @return false if the layout of the image is not supported
+	 */
+	private static boolean clear(BufferedImage image) {
+		if (!canClear(image)) {
+			return false;
+		}
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+
+		if (buffer instanceof DataBufferByte) {
+			Arrays.fill(((DataBufferByte) buffer).getData(), (byte) 0);
+		} else if (buffer instanceof DataBufferInt) {
+			Arrays.fill(((DataBufferInt) buffer).getData(), 0);
+		} else if (buffer instanceof DataBufferShort) {
+			Arrays.fill(((DataBufferShort) buffer).getData(), (short) 0);
+		} else {
+			Arrays.fill(((DataBufferUShort) buffer).getData(), (short) 0);
+		}
+		return true;
+	}
+
+}
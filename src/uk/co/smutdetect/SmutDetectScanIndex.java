@@ -0,0 +1,399 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of scan results shared by all cases, so evidence and
+ * reference collections which are ingested again are not scanned again.
+ *
+ * The index is a single memory-mapped file: a header followed by an append-
+ * only log of fixed size records (content MD5, options fingerprint,
+ * dimensions and hit counts). On opening the records are read into an open
+ * addressing table of record numbers, lookups then read the record from the
+ * mapping.
+ *
+ * The header carries a fingerprint of the detectors, computed from the
+ * precomputed skin-tone table, and of the scan engine version. If either
+ * changes the log is discarded when it is opened, so a change to the
+ * RgbSkinToneDetector or YCbCrSkinToneDetector logic never serves stale
+ * numbers.
+ *
+ * The file is locked while it is open. Within the JVM one instance is shared
+ * by reference counting, see acquire and release.
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectScanIndex {
+
+	/**
+	 * Version of the scan engine, to be increased whenever the scanner
+	 * changes how pixels are counted.
+	 */
+	public static final int SCAN_ENGINE_VERSION = 1;
+
+	private static final int MAGIC = 0x53445349; // SDSI
+	private static final int FORMAT_VERSION = 3;
+	private static final int HEADER_SIZE = 32;
+	private static final int COUNT_POSITION = 16;
+	// record: MD5 (16 bytes), options fingerprint, width, height, sampling
+	// factor, processed correctly, image source (4 bytes each, the source
+	// was padding written as 0 before), RGB hits, YCbCr hits, sampled pixels
+	// (8 bytes each, 0 if all pixels were scanned), skin region count (-1 if
+	// the regions were not analysed), largest region ratio and bounding box
+	// coverage (4 byte floats) and padding
+	private static final int RECORD_SIZE = 80;
+	private static final long MAPPING_INCREMENT = 1L << 20;
+
+	private static SmutDetectScanIndex instance_;
+	private static int references_;
+
+
+	private final RandomAccessFile file_;
+	private final FileChannel channel_;
+	private final FileLock lock_;
+	private MappedByteBuffer mapping_;
+	private int numberOfRecords_;
+	private int[] slots_;
+
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	private SmutDetectScanIndex(File indexFile) throws IOException {
+		File directory = indexFile.getParentFile();
+		if ((directory != null) && !directory.isDirectory() &&
+				!directory.mkdirs()) {
+			throw new IOException("Can not create " + directory);
+		}
+
+		file_ = new RandomAccessFile(indexFile, "rw");
+		channel_ = file_.getChannel();
+		try {
+			lock_ = channel_.tryLock();
+			if (lock_ == null) {
+				throw new IOException(indexFile + " is in use");
+			}
+			open();
+		} catch (IOException exc) {
+			file_.close();
+			throw exc;
+		}
+	}
+
+////////////////////////////////////SHARING/////////////////////////////////////
+
+	/**
+	 * Opens the index or returns the instance already open in this JVM.
+	 *
+	 * @param indexFile file of the index, created if missing
+	 * @return the shared index, to be released by calling release
+	 * @throws IOException if the file can not be opened or is locked by
+	 * 			another process
+	 */
+	public static synchronized SmutDetectScanIndex acquire(File indexFile)
+			throws IOException {
+		if (instance_ == null) {
+			instance_ = new SmutDetectScanIndex(indexFile);
+		}
+		references_++;
+		return instance_;
+	}
+
+	/**
+	 * Releases a reference obtained by acquire, the file is closed once the
+	 * last reference is released.
+	 */
+	public static synchronized void release() {
+		if (references_ > 0 && --references_ == 0) {
+			instance_.close();
+			instance_ = null;
+		}
+	}
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Looks up the result of a scan of the same content with the same
+	 * options in this or an earlier case.
+	 *
+	 * @param md5Hash hex encoded MD5 hash of the content
+	 * @param optionsFingerprint fingerprint of the scan options
+	 * @return a new result container, null if not in the index
+	 */
+	public synchronized SmutDetectCategorisedImage get(String md5Hash,
+			int optionsFingerprint) {
+		if (md5Hash.length() != 32) {
+			return null;
+		}
+
+		long high = parseHex(md5Hash, 0);
+		long low = parseHex(md5Hash, 16);
+		int slot = findSlot(high, low, optionsFingerprint);
+
+		if (slots_[slot] == 0) {
+			return null;
+		}
+
+		int position = recordPosition(slots_[slot] - 1);
+		SmutDetectCategorisedImage cImage = new SmutDetectCategorisedImage(
+				mapping_.getInt(position + 20), mapping_.getInt(position + 24));
+		cImage.setSamplingFactor(mapping_.getInt(position + 28));
+		long sampledPixels = mapping_.getLong(position + 56);
+		if (sampledPixels > 0) {
+			cImage.setNumberOfSampledPixels(sampledPixels);
+		}
+		int source = mapping_.getInt(position + 36);
+		if ((source > 0) && (source <
+				SmutDetectCategorisedImage.ImageSource.values().length)) {
+			cImage.setSource(
+					SmutDetectCategorisedImage.ImageSource.values()[source]);
+		}
+		int regionCount = mapping_.getInt(position + 64);
+		if (regionCount >= 0) {
+			cImage.setSkinRegions(SmutDetectSkinRegions.restore(regionCount,
+					mapping_.getFloat(position + 68),
+					mapping_.getFloat(position + 72)));
+		}
+
+		if (mapping_.getInt(position + 32) != 0) {
+			cImage.addRgbSkinToneHits(mapping_.getLong(position + 40));
+			cImage.addYCbCrSkinToneHits(mapping_.getLong(position + 48));
+			cImage.computePercentages(true, true);
+		} else {
+			cImage.flagForManualCheck();
+		}
+		return cImage;
+	}
+
+	/**
+	 * Appends the result of a scan to the log unless it is already known.
+	 *
+	 * @param md5Hash hex encoded MD5 hash of the content
+	 * @param optionsFingerprint fingerprint of the scan options
+	 * @param cImage result of the scan
+	 * @throws IOException if the file can not be grown
+	 */
+	public synchronized void put(String md5Hash, int optionsFingerprint,
+			SmutDetectCategorisedImage cImage) throws IOException {
+		if (md5Hash.length() != 32) {
+			return;
+		}
+
+		long high = parseHex(md5Hash, 0);
+		long low = parseHex(md5Hash, 16);
+		int slot = findSlot(high, low, optionsFingerprint);
+
+		if (slots_[slot] != 0) {
+			return;
+		}
+
+		int position = recordPosition(numberOfRecords_);
+		ensureMapped(position + RECORD_SIZE);
+
+		mapping_.putLong(position, high);
+		mapping_.putLong(position + 8, low);
+		mapping_.putInt(position + 16, optionsFingerprint);
+		mapping_.putInt(position + 20, cImage.getWidth());
+		mapping_.putInt(position + 24, cImage.getHeight());
+		mapping_.putInt(position + 28, cImage.getSamplingFactor());
+		mapping_.putInt(position + 32, cImage.getIsProcessedCorrectly() ? 1 : 0);
+		mapping_.putInt(position + 36, cImage.getSource().ordinal());
+		mapping_.putLong(position + 40, cImage.getNumberOfRgbSkinToneHits());
+		mapping_.putLong(position + 48, cImage.getNumberOfYCbCrSkinToneHits());
+		mapping_.putLong(position + 56, cImage.getNumberOfSampledPixels() <
+				cImage.getNumberOfPixels() ?
+				cImage.getNumberOfSampledPixels() : 0);
+		SmutDetectSkinRegions regions = cImage.getSkinRegions();
+		mapping_.putInt(position + 64,
+				(regions != null) ? regions.getRegionCount() : -1);
+		mapping_.putFloat(position + 68,
+				(regions != null) ? (float) regions.getLargestRegionRatio() : 0);
+		mapping_.putFloat(position + 72,
+				(regions != null) ? (float) regions.getBoundingBoxCoverage() : 0);
+		mapping_.putInt(position + 76, 0);
+
+		// the record is complete before the header counts it
+		numberOfRecords_++;
+		mapping_.putInt(COUNT_POSITION, numberOfRecords_);
+		insert(slot, numberOfRecords_ - 1);
+	}
+
+	/**
+	 * @return number of results in the index
+	 */
+	public synchronized int getNumberOfRecords() {
+		return numberOfRecords_;
+	}
+
+	/**
+	 * @return fingerprint of the detectors and the scan engine, results
+	 * 			stored under a different fingerprint are discarded
+	 */
+	static long computeAlgorithmFingerprint() {
+		CRC32 checksum = new CRC32();
+		checksum.update(SmutDetectSkinToneTable.getTable());
+		return ((long) SCAN_ENGINE_VERSION << 32) | checksum.getValue();
+	}
+
+	/**
+	 * Validates the header, starts a new log if the file is new or was
+	 * written by other detectors and loads the records into the table.
+	 */
+	private void open() throws IOException {
+		long fingerprint = computeAlgorithmFingerprint();
+		long length = channel_.size();
+
+		mapping_ = channel_.map(FileChannel.MapMode.READ_WRITE, 0,
+				roundToIncrement(Math.max(length, HEADER_SIZE)));
+
+		if ((length < HEADER_SIZE) ||
+				(mapping_.getInt(0) != MAGIC) ||
+				(mapping_.getInt(4) != FORMAT_VERSION) ||
+				(mapping_.getLong(8) != fingerprint)) {
+			// new file or results of other detectors - start over
+			for (int i = 0; i < HEADER_SIZE; i++) {
+				mapping_.put(i, (byte) 0);
+			}
+			mapping_.putInt(0, MAGIC);
+			mapping_.putInt(4, FORMAT_VERSION);
+			mapping_.putLong(8, fingerprint);
+			mapping_.putInt(COUNT_POSITION, 0);
+		}
+
+		// a record cut short by a crash is not counted in the header
+		numberOfRecords_ = Math.min(mapping_.getInt(COUNT_POSITION),
+				(mapping_.capacity() - HEADER_SIZE) / RECORD_SIZE);
+		slots_ = new int[tableSize(numberOfRecords_)];
+
+		for (int record = 0; record < numberOfRecords_; record++) {
+			int position = recordPosition(record);
+			int slot = findSlot(mapping_.getLong(position),
+					mapping_.getLong(position + 8),
+					mapping_.getInt(position + 16));
+			if (slots_[slot] == 0) {
+				slots_[slot] = record + 1;
+			}
+		}
+	}
+
+	private void close() {
+		try {
+			mapping_.force();
+			lock_.release();
+		} catch (IOException exc) {
+			// the mapping is written back by the operating system anyway
+		} finally {
+			try {
+				file_.close();
+			} catch (IOException exc) {
+				// nothing left to release
+			}
+		}
+	}
+
+	/**
+	 * Linear probing for the slot holding the record of the key, or the
+	 * empty slot where it belongs.
+	 */
+	private int findSlot(long high, long low, int optionsFingerprint) {
+		int mask = slots_.length - 1;
+		long hash = (high ^ low ^ optionsFingerprint) * 0x9e3779b97f4a7c15L;
+		int slot = (int) (hash >>> 32) & mask;
+
+		while (slots_[slot] != 0) {
+			int position = recordPosition(slots_[slot] - 1);
+			if ((mapping_.getLong(position) == high) &&
+					(mapping_.getLong(position + 8) == low) &&
+					(mapping_.getInt(position + 16) == optionsFingerprint)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void insert(int slot, int record) {
+		slots_[slot] = record + 1;
+
+		// keep the table at most half full
+		if (numberOfRecords_ * 2 > slots_.length) {
+			int[] oldSlots = slots_;
+			slots_ = new int[oldSlots.length * 2];
+			for (int oldSlot : oldSlots) {
+				if (oldSlot != 0) {
+					int position = recordPosition(oldSlot - 1);
+					slots_[findSlot(mapping_.getLong(position),
+							mapping_.getLong(position + 8),
+							mapping_.getInt(position + 16))] = oldSlot;
+				}
+			}
+		}
+	}
+
+	private void ensureMapped(long size) throws IOException {
+		if (size > mapping_.capacity()) {
+			long newSize = roundToIncrement(Math.max(size,
+					2L * mapping_.capacity()));
+			if (newSize > Integer.MAX_VALUE) {
+				throw new IOException("Scan index is full");
+			}
+			mapping_.force();
+			mapping_ = channel_.map(FileChannel.MapMode.READ_WRITE, 0,
+					newSize);
+		}
+	}
+
+	private static int recordPosition(int record) {
+		return HEADER_SIZE + record * RECORD_SIZE;
+	}
+
+	private static long roundToIncrement(long size) {
+		return ((size + MAPPING_INCREMENT - 1) / MAPPING_INCREMENT) *
+				MAPPING_INCREMENT;
+	}
+
+	private static int tableSize(int numberOfRecords) {
+		int size = 1024;
+		while (size < numberOfRecords * 2 + 2) {
+			size *= 2;
+		}
+		return size;
+	}
+
+	/**
+	 * @return 16 hex digits starting at offset as a long
+	 */
+	private static long parseHex(String hex, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 16; i++) {
+			value = (value << 4) | Character.digit(hex.charAt(i), 16);
+		}
+		return value;
+	}
+
+}
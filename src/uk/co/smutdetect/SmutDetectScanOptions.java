@@ -0,0 +1,438 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.io.Serializable;
+
+/**
+ * Options controlling how SmutDetectImageScanner decodes and scans an image.
+ *
+ * The options are serialised as part of the ingest job settings, fields added
+ * later have to treat their Java default value (0 / false) as "feature off".
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectScanOptions implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Images with more pixels than this are scanned on all cores. */
+	public static final long DEFAULT_PARALLEL_PIXEL_THRESHOLD = 20000000L;
+
+	/** Pixel budget of a subsampled decode, 24 MP photos are read at 1/4. */
+	public static final long DEFAULT_MAX_DECODE_PIXELS = 2000000L;
+
+	/** Largest raster a single image may be decoded into. */
+	public static final long DEFAULT_MAX_DECODE_BYTES = 256L << 20;
+
+	/** Largest file read into memory in one go before it is decoded. */
+	public static final long DEFAULT_MAX_BUFFERED_FILE_BYTES = 16L << 20;
+
+	/** Skin-tone percentage the triage of a thumbnail decides against. */
+	public static final int DEFAULT_TRIAGE_THRESHOLD_PERCENT = 30;
+
+	/**
+	 * Thumbnails scoring within this many percentage points of the triage
+	 * threshold are not trusted, the image itself is decoded.
+	 */
+	public static final int DEFAULT_TRIAGE_MARGIN_PERCENT = 10;
+
+	/**
+	 * What to do with an image whose decoded raster would exceed the maximum
+	 * decode bytes.
+	 */
+	public enum OversizePolicy {
+		/** Decode with a sampling factor large enough to fit. */
+		SUBSAMPLE,
+		/** Decode and scan the image in strips of source rows. */
+		TILE,
+		/** Do not decode, flag the image for a manual check. */
+		SKIP
+	}
+
+	/**
+	 * How the skin-tone pixels of a JPEG are counted.
+	 */
+	public enum JpegEngine {
+		/** Decode the pixels. */
+		PIXELS,
+		/**
+		 * Classify the 8x8 block averages of the DC coefficients, decode the
+		 * pixels only if the JPEG is not supported, see
+		 * SmutDetectJpegBlockScanner.
+		 */
+		BLOCK_AVERAGES,
+		/**
+		 * Classify the block averages, decode the pixels as well if the
+		 * result is not clear of the triage threshold.
+		 */
+		BLOCK_AVERAGES_CHECKED
+	}
+
+
+	private boolean parallelScan_;
+	private long parallelPixelThreshold_;
+	private boolean subsampledDecode_;
+	private int subsamplingFactor_;
+	private long maxDecodePixels_;
+	private long maxDecodeBytes_;
+	private OversizePolicy oversizePolicy_;
+	private boolean earlyExitScan_;
+	private long maxBufferedFileBytes_;
+	private boolean thumbnailTriage_;
+	private int triageThresholdPercent_;
+	private int triageMarginPercent_;
+	private JpegEngine jpegEngine_;
+	// false (the default of settings saved before) streams PNG and BMP
+	private boolean bufferedPngBmpDecode_;
+	private boolean skinRegions_;
+
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	public SmutDetectScanOptions() {
+		parallelScan_ = false;
+		parallelPixelThreshold_ = DEFAULT_PARALLEL_PIXEL_THRESHOLD;
+		subsampledDecode_ = false;
+		subsamplingFactor_ = 0;
+		maxDecodePixels_ = DEFAULT_MAX_DECODE_PIXELS;
+		maxDecodeBytes_ = DEFAULT_MAX_DECODE_BYTES;
+		oversizePolicy_ = OversizePolicy.SUBSAMPLE;
+		earlyExitScan_ = false;
+		maxBufferedFileBytes_ = DEFAULT_MAX_BUFFERED_FILE_BYTES;
+		thumbnailTriage_ = false;
+		triageThresholdPercent_ = DEFAULT_TRIAGE_THRESHOLD_PERCENT;
+		triageMarginPercent_ = DEFAULT_TRIAGE_MARGIN_PERCENT;
+		jpegEngine_ = JpegEngine.PIXELS;
+		bufferedPngBmpDecode_ = false;
+		skinRegions_ = false;
+	}
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	public boolean getParallelScan() {
+		return parallelScan_;
+	}
+
+	public long getParallelPixelThreshold() {
+		return parallelPixelThreshold_;
+	}
+
+	public boolean getSubsampledDecode() {
+		return subsampledDecode_;
+	}
+
+	public int getSubsamplingFactor() {
+		return subsamplingFactor_;
+	}
+
+	public long getMaxDecodePixels() {
+		return maxDecodePixels_;
+	}
+
+	public long getMaxDecodeBytes() {
+		return maxDecodeBytes_;
+	}
+
+	public OversizePolicy getOversizePolicy() {
+		if (oversizePolicy_ == null) {
+			return OversizePolicy.SUBSAMPLE;
+		}
+		return oversizePolicy_;
+	}
+
+	public boolean getEarlyExitScan() {
+		return earlyExitScan_;
+	}
+
+	public long getMaxBufferedFileBytes() {
+		if (maxBufferedFileBytes_ <= 0) {
+			// also settings saved before the field was added
+			return DEFAULT_MAX_BUFFERED_FILE_BYTES;
+		}
+		return maxBufferedFileBytes_;
+	}
+
+	public boolean getThumbnailTriage() {
+		return thumbnailTriage_;
+	}
+
+	public int getTriageThresholdPercent() {
+		if (triageThresholdPercent_ <= 0) {
+			return DEFAULT_TRIAGE_THRESHOLD_PERCENT;
+		}
+		return triageThresholdPercent_;
+	}
+
+	public int getTriageMarginPercent() {
+		if (triageMarginPercent_ <= 0) {
+			return DEFAULT_TRIAGE_MARGIN_PERCENT;
+		}
+		return triageMarginPercent_;
+	}
+
+	public JpegEngine getJpegEngine() {
+		if (jpegEngine_ == null) {
+			return JpegEngine.PIXELS;
+		}
+		return jpegEngine_;
+	}
+
+	public boolean getStreamingScan() {
+		return !bufferedPngBmpDecode_;
+	}
+
+	public boolean getSkinRegions() {
+		return skinRegions_;
+	}
+
+/////////////////////////////////////SETTERS////////////////////////////////////
+
+	/**
+	 * @param parallelScan true to split images above the pixel threshold into
+	 * 			row bands which are scanned on all cores
+	 */
+	public void setParallelScan(boolean parallelScan) {
+		parallelScan_ = parallelScan;
+	}
+
+	/**
+	 * @param parallelPixelThreshold minimum number of pixels before an image
+	 * 			is scanned on all cores, smaller images are scanned by the
+	 * 			calling thread only
+	 */
+	public void setParallelPixelThreshold(long parallelPixelThreshold) {
+		parallelPixelThreshold_ = parallelPixelThreshold;
+	}
+
+	/**
+	 * @param subsampledDecode true to decode images at a reduced resolution
+	 * 			using source subsampling, the percentages are computed on the
+	 * 			reduced image
+	 */
+	public void setSubsampledDecode(boolean subsampledDecode) {
+		subsampledDecode_ = subsampledDecode;
+	}
+
+	/**
+	 * @param subsamplingFactor fixed factor to use for a subsampled decode
+	 * 			(4 reads every 4th pixel of every 4th row), 0 to derive the
+	 * 			factor from the maximum decode pixels
+	 */
+	public void setSubsamplingFactor(int subsamplingFactor) {
+		subsamplingFactor_ = subsamplingFactor;
+	}
+
+	/**
+	 * @param maxDecodePixels pixel budget of a subsampled decode, used if no
+	 * 			fixed subsampling factor is set
+	 */
+	public void setMaxDecodePixels(long maxDecodePixels) {
+		maxDecodePixels_ = maxDecodePixels;
+	}
+
+	/**
+	 * @param maxDecodeBytes estimated raster size above which the oversize
+	 * 			policy is applied, 0 for no limit (the global decode budget
+	 * 			still applies)
+	 */
+	public void setMaxDecodeBytes(long maxDecodeBytes) {
+		maxDecodeBytes_ = maxDecodeBytes;
+	}
+
+	/**
+	 * @param oversizePolicy policy for images exceeding the maximum decode
+	 * 			bytes
+	 */
+	public void setOversizePolicy(OversizePolicy oversizePolicy) {
+		oversizePolicy_ = oversizePolicy;
+	}
+
+	/**
+	 * @param earlyExitScan true to sample the pixels of an image in a
+	 * 			stratified order and stop once the 10% band of the average
+	 * 			percentage is certain, see SmutDetectSampledScanner
+	 */
+	public void setEarlyExitScan(boolean earlyExitScan) {
+		earlyExitScan_ = earlyExitScan;
+	}
+
+	/**
+	 * @param maxBufferedFileBytes largest file which is read completely into
+	 * 			memory and decoded from there, larger files are streamed to
+	 * 			the decoder in chunks, 0 for the default, see
+	 * 			SmutDetectEvidenceReader
+	 */
+	public void setMaxBufferedFileBytes(long maxBufferedFileBytes) {
+		maxBufferedFileBytes_ = maxBufferedFileBytes;
+	}
+
+	/**
+	 * @param thumbnailTriage true to scan the thumbnail embedded in a JPEG
+	 * 			instead of the image when its score is clear of the triage
+	 * 			threshold
+	 */
+	public void setThumbnailTriage(boolean thumbnailTriage) {
+		thumbnailTriage_ = thumbnailTriage;
+	}
+
+	/**
+	 * @param triageThresholdPercent skin-tone percentage the triage decides
+	 * 			against, 0 for the default
+	 */
+	public void setTriageThresholdPercent(int triageThresholdPercent) {
+		triageThresholdPercent_ = triageThresholdPercent;
+	}
+
+	/**
+	 * @param triageMarginPercent percentage points around the threshold in
+	 * 			which the image itself is decoded, 0 for the default
+	 */
+	public void setTriageMarginPercent(int triageMarginPercent) {
+		triageMarginPercent_ = triageMarginPercent;
+	}
+
+	/**
+	 * @param jpegEngine how JPEGs are scanned, the block averages trade
+	 * 			the pixel detail within each 8x8 block for not decoding the
+	 * 			pixels
+	 */
+	public void setJpegEngine(JpegEngine jpegEngine) {
+		jpegEngine_ = jpegEngine;
+	}
+
+	/**
+	 * @param streamingScan true to scan PNG and uncompressed BMP images row
+	 * 			by row while reading them instead of decoding them into an
+	 * 			image, the oversize policy is not needed for them then, see
+	 * 			SmutDetectStreamingScanner
+	 */
+	public void setStreamingScan(boolean streamingScan) {
+		bufferedPngBmpDecode_ = !streamingScan;
+	}
+
+	/**
+	 * @param skinRegions true to find the connected skin regions of the
+	 * 			scanned images, see SmutDetectSkinRegions, an early exit
+	 * 			scan is not used then
+	 */
+	public void setSkinRegions(boolean skinRegions) {
+		skinRegions_ = skinRegions;
+	}
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * @param percentage skin-tone percentage of a thumbnail or of the block
+	 * 			averages
+	 * @return true if the percentage is far enough from the triage threshold
+	 * 			to stand for the image
+	 */
+	public boolean isClearTriageResult(double percentage) {
+		return Math.abs(percentage - getTriageThresholdPercent()) >=
+				getTriageMarginPercent();
+	}
+
+	/**
+	 * @param numberOfPixels pixels of the decoded image
+	 * @return true if the image is large enough to be scanned on all cores
+	 */
+	public boolean useParallelScan(long numberOfPixels) {
+		return parallelScan_ && numberOfPixels >= parallelPixelThreshold_;
+	}
+
+	/**
+	 * @return bytes a single decode may allocate, the maximum decode bytes
+	 * 			but never more than the whole decode budget
+	 */
+	public long getDecodeByteLimit() {
+		if ((maxDecodeBytes_ <= 0) ||
+				(maxDecodeBytes_ > SmutDetectDecodeBudget.getTotalBytes())) {
+			return SmutDetectDecodeBudget.getTotalBytes();
+		}
+		return maxDecodeBytes_;
+	}
+
+	/**
+	 * Fingerprint of the options which change the counted hits, results
+	 * stored with a different fingerprint are not reused.
+	 *
+	 * @return hash of the options affecting the result
+	 */
+	public int getResultFingerprint() {
+		int fingerprint = subsampledDecode_ ? 1 : 0;
+
+		if (subsampledDecode_) {
+			fingerprint = 31 * fingerprint + subsamplingFactor_;
+			fingerprint = 31 * fingerprint + (int) (maxDecodePixels_ ^
+					(maxDecodePixels_ >>> 32));
+		}
+		fingerprint = 31 * fingerprint + (int) (maxDecodeBytes_ ^
+				(maxDecodeBytes_ >>> 32));
+		fingerprint = 31 * fingerprint + getOversizePolicy().ordinal();
+		if (earlyExitScan_) {
+			fingerprint = 31 * fingerprint + 1;
+		}
+		if (thumbnailTriage_) {
+			fingerprint = 31 * fingerprint + 2;
+			fingerprint = 31 * fingerprint + getTriageThresholdPercent();
+			fingerprint = 31 * fingerprint + getTriageMarginPercent();
+		}
+		if (getJpegEngine() != JpegEngine.PIXELS) {
+			fingerprint = 31 * fingerprint + 3 + getJpegEngine().ordinal();
+			fingerprint = 31 * fingerprint + getTriageThresholdPercent();
+			fingerprint = 31 * fingerprint + getTriageMarginPercent();
+		}
+		if (bufferedPngBmpDecode_) {
+			fingerprint = 31 * fingerprint + 7;
+		}
+		if (skinRegions_) {
+			fingerprint = 31 * fingerprint + 11;
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Computes the subsampling factor for a subsampled decode, either the
+	 * fixed factor or the smallest factor which keeps the decoded image
+	 * within the pixel budget.
+	 *
+	 * @param width width of the encoded image
+	 * @param height height of the encoded image
+	 * @return sampling factor, 1 to decode at full resolution
+	 */
+	public int computeSamplingFactor(int width, int height) {
+		if (subsamplingFactor_ > 0) {
+			return subsamplingFactor_;
+		}
+		if (maxDecodePixels_ <= 0) {
+			return 1;
+		}
+
+		int factor = 1;
+		while (((long) ((width + factor - 1) / factor)) *
+				((height + factor - 1) / factor) > maxDecodePixels_) {
+			factor++;
+		}
+		return factor;
+	}
+
+}
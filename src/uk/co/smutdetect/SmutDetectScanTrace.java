@@ -0,0 +1,175 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Records where the time of a single scan went: opening the stream and
+ * finding a reader, decoding, scanning the pixels and computing the
+ * percentages, together with the bytes read from the evidence and the pixels
+ * scanned. Strips decoded one after another add up.
+ *
+ * A trace belongs to one scan on one thread and is not thread-safe.
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectScanTrace {
+
+	private String formatName_;
+	private long openNanos_;
+	private long decodeNanos_;
+	private long scanNanos_;
+	private long percentagesNanos_;
+	private long bytesRead_;
+	private long pixelsScanned_;
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	public SmutDetectScanTrace() {
+
+	}
+
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	/**
+	 * @return format name of the image reader or null if no reader was found
+	 */
+	public String getFormatName() {
+		return formatName_;
+	}
+
+	/**
+	 * @return nanoseconds to cache the stream, find a reader and parse the
+	 *         header
+	 */
+	public long getOpenNanos() {
+		return openNanos_;
+	}
+
+	/**
+	 * @return nanoseconds spent in the image reader decoding pixel data
+	 */
+	public long getDecodeNanos() {
+		return decodeNanos_;
+	}
+
+	/**
+	 * @return nanoseconds spent classifying the decoded pixels
+	 */
+	public long getScanNanos() {
+		return scanNanos_;
+	}
+
+	/**
+	 * @return nanoseconds spent computing the percentages
+	 */
+	public long getPercentagesNanos() {
+		return percentagesNanos_;
+	}
+
+	/**
+	 * @return bytes read from the evidence for the file
+	 */
+	public long getBytesRead() {
+		return bytesRead_;
+	}
+
+	/**
+	 * @return pixels classified, less than the decoded pixels if the scan
+	 *         stopped early
+	 */
+	public long getPixelsScanned() {
+		return pixelsScanned_;
+	}
+
+
+/////////////////////////////////////SETTERS////////////////////////////////////
+
+	void setFormatName(String formatName) {
+		formatName_ = formatName;
+	}
+
+	void addOpenNanos(long nanos) {
+		openNanos_ += nanos;
+	}
+
+	void addDecodeNanos(long nanos) {
+		decodeNanos_ += nanos;
+	}
+
+	void addScanNanos(long nanos) {
+		scanNanos_ += nanos;
+	}
+
+	void addPercentagesNanos(long nanos) {
+		percentagesNanos_ += nanos;
+	}
+
+	void addBytesRead(long bytes) {
+		bytesRead_ += bytes;
+	}
+
+	void addPixelsScanned(long pixels) {
+		pixelsScanned_ += pixels;
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * @param iStream stream of the encoded image
+	 * @return the stream counting the bytes read from it into this trace
+	 */
+	InputStream countBytes(InputStream iStream) {
+		return new FilterInputStream(iStream) {
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					bytesRead_++;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					bytesRead_ += n;
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				bytesRead_ += skipped;
+				return skipped;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,429 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.util.Arrays;
+
+/**
+ * Finds the connected skin regions of an image while it is scanned, to tell
+ * a body apart from skin tones spread over the whole picture such as sand,
+ * wood or a wall, which have the same percentage.
+ *
+ * The image is divided into square cells, at most 256 along a side, so a
+ * cell is a single pixel of a thumbnail and a block of pixels of a photo.
+ * While the rows are scanned, the pixels both detectors classify as skin
+ * are counted per cell. When the scan is finished, the cells of which at
+ * least half the pixels are skin go into a bitmask of one bit per cell. The
+ * bitmask is labelled in a single pass over its rows, 8-connected, with a
+ * union-find on int arrays that merges the area and bounding box of regions
+ * as they join.
+ *
+ * Reported are the regions of at least 1/1000 of the cells, the share of the
+ * skin cells in the largest region and the share of the image covered by the
+ * bounding box of the largest region. The counters and the bitmask are
+ * bounded by the grid of cells whatever the size of the image, and dropped
+ * once the regions are found.
+ *
+ * Rows may be added by the threads of a parallel scan as long as no two of
+ * them add rows of the same row of cells at a time, see getCellSize.
+ *
+ * @author Rajmund Witt
+ */
+public class SmutDetectSkinRegions {
+
+	/** Largest number of cells along a side of the image. */
+	public static final int MAX_CELLS_PER_SIDE = 256;
+
+	// a pixel is skin for the regions if both detectors agree
+	private static final int SKIN = SmutDetectSkinToneTable.RGB_HIT |
+			SmutDetectSkinToneTable.YCBCR_HIT;
+	// regions of fewer cells than this part of the grid are not counted
+	private static final int MIN_REGION_PART = 1000;
+
+	private final int width_;
+	private final int height_;
+	private final int cellSize_;
+	private final int gridWidth_;
+	private final int gridHeight_;
+	// skin pixels per cell while scanning, null once the regions are found
+	private int[] cellSkin_;
+	private int nextRow_;
+	private int regionCount_;
+	private double largestRegionRatio_;
+	private double boundingBoxCoverage_;
+
+
+//////////////////////////////////CONSTRUCTORS//////////////////////////////////
+
+	/**
+	 * @param width width of the image the rows are added of
+	 * @param height height of the image
+	 */
+	public SmutDetectSkinRegions(int width, int height) {
+		width_ = Math.max(1, width);
+		height_ = Math.max(1, height);
+		cellSize_ = Math.max(1, (Math.max(width_, height_) +
+				MAX_CELLS_PER_SIDE - 1) / MAX_CELLS_PER_SIDE);
+		gridWidth_ = (width_ + cellSize_ - 1) / cellSize_;
+		gridHeight_ = (height_ + cellSize_ - 1) / cellSize_;
+		cellSkin_ = new int[gridWidth_ * gridHeight_];
+		nextRow_ = 0;
+		regionCount_ = 0;
+		largestRegionRatio_ = 0;
+		boundingBoxCoverage_ = 0;
+	}
+
+	/**
+	 * Regions found earlier, restored from the scan index.
+	 */
+	private SmutDetectSkinRegions(int regionCount, double largestRegionRatio,
+			double boundingBoxCoverage) {
+		width_ = 0;
+		height_ = 0;
+		cellSize_ = 1;
+		gridWidth_ = 0;
+		gridHeight_ = 0;
+		cellSkin_ = null;
+		nextRow_ = 0;
+		regionCount_ = regionCount;
+		largestRegionRatio_ = largestRegionRatio;
+		boundingBoxCoverage_ = boundingBoxCoverage;
+	}
+
+	/**
+	 * @param regionCount number of regions
+	 * @param largestRegionRatio share of the skin in the largest region
+	 * @param boundingBoxCoverage share of the image covered by the bounding
+	 * 			box of the largest region
+	 * @return regions as found by an earlier scan
+	 */
+	public static SmutDetectSkinRegions restore(int regionCount,
+			double largestRegionRatio, double boundingBoxCoverage) {
+		return new SmutDetectSkinRegions(regionCount, largestRegionRatio,
+				boundingBoxCoverage);
+	}
+
+
+/////////////////////////////////////GETTERS////////////////////////////////////
+
+	/**
+	 * @return pixels along a side of a cell, rows of the same row of cells
+	 * 			must not be added by two threads at a time
+	 */
+	int getCellSize() {
+		return cellSize_;
+	}
+
+	/**
+	 * @return number of skin regions of at least 1/1000 of the image
+	 */
+	public int getRegionCount() {
+		return regionCount_;
+	}
+
+	/**
+	 * @return share (0 to 1) of the skin in the largest region, 1 if all
+	 * 			skin is connected
+	 */
+	public double getLargestRegionRatio() {
+		return largestRegionRatio_;
+	}
+
+	/**
+	 * @return share (0 to 1) of the image covered by the bounding box of the
+	 * 			largest region
+	 */
+	public double getBoundingBoxCoverage() {
+		return boundingBoxCoverage_;
+	}
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * Hands the next rows of the image to the scan of a strip, the strips
+	 * of an image are scanned top to bottom.
+	 *
+	 * @param rows rows of the strip
+	 * @return row of the image of the first row of the strip
+	 */
+	synchronized int reserveRows(int rows) {
+		int first = nextRow_;
+		nextRow_ += rows;
+		return first;
+	}
+
+	/**
+	 * Classifies a row with the precomputed table, counting the hits of both
+	 * detectors like SmutDetectPixelClassifier.countRow, and counts the
+	 * skin pixels of its cells.
+	 *
+	 * @param y row of the image
+	 * @param row packed sRGB values
+	 * @param length number of values to check
+	 * @param hits [0] is increased by the RGB hits, [1] by the YCbCr hits
+	 */
+	void addRow(int y, int[] row, int length, long[] hits) {
+		byte[] table = SmutDetectSkinToneTable.getTable();
+		int[] cellSkin = cellSkin_;
+		long rgbHits = 0;
+		long yCbCrHits = 0;
+		int x = 0;
+
+		if ((cellSkin != null) && (y >= 0) && (y < height_)) {
+			int cell = (y / cellSize_) * gridWidth_;
+			int width = Math.min(length, width_);
+			while (x < width) {
+				int cellEnd = Math.min(x + cellSize_, width);
+				int skin = 0;
+				for (; x < cellEnd; x++) {
+					int hit = SmutDetectSkinToneTable.lookup(table, row[x]);
+					rgbHits += hit & SmutDetectSkinToneTable.RGB_HIT;
+					yCbCrHits += hit >>> 1;
+					if (hit == SKIN) {
+						skin++;
+					}
+				}
+				cellSkin[cell++] += skin;
+			}
+		}
+		// pixels outside the image only count as hits
+		for (; x < length; x++) {
+			int hit = SmutDetectSkinToneTable.lookup(table, row[x]);
+			rgbHits += hit & SmutDetectSkinToneTable.RGB_HIT;
+			yCbCrHits += hit >>> 1;
+		}
+
+		hits[0] += rgbHits;
+		hits[1] += yCbCrHits;
+	}
+
+	/**
+	 * Adds a single pixel already classified, for scanners which do not
+	 * classify whole rows.
+	 *
+	 * @param x column of the pixel
+	 * @param y row of the pixel
+	 * @param hit combination of SmutDetectSkinToneTable.RGB_HIT and YCBCR_HIT
+	 */
+	void addPixel(int x, int y, int hit) {
+		if ((cellSkin_ != null) && (hit == SKIN) && (x >= 0) &&
+				(x < width_) && (y >= 0) && (y < height_)) {
+			cellSkin_[(y / cellSize_) * gridWidth_ + x / cellSize_]++;
+		}
+	}
+
+	/**
+	 * Packs the skin cells into the bitmask and finds the regions, once all
+	 * rows are added. Later calls do nothing.
+	 */
+	synchronized void finish() {
+		if (cellSkin_ == null) {
+			return;
+		}
+		int wordsPerRow = (gridWidth_ + 63) >>> 6;
+		long[] mask = new long[wordsPerRow * gridHeight_];
+
+		for (int cy = 0; cy < gridHeight_; cy++) {
+			int cellHeight = Math.min(cellSize_, height_ - cy * cellSize_);
+			for (int cx = 0; cx < gridWidth_; cx++) {
+				int cellWidth = Math.min(cellSize_, width_ - cx * cellSize_);
+				int skin = cellSkin_[cy * gridWidth_ + cx];
+				if ((skin > 0) && (2 * skin >= cellWidth * cellHeight)) {
+					mask[cy * wordsPerRow + (cx >>> 6)] |= 1L << (cx & 63);
+				}
+			}
+		}
+		cellSkin_ = null;
+		label(mask, wordsPerRow);
+	}
+
+	/**
+	 * Labels the bitmask in one pass over its rows. Each skin cell joins the
+	 * regions of its neighbours already visited (left, upper left, above and
+	 * upper right) or starts a new one, only the labels of the row above are
+	 * kept.
+	 */
+	private void label(long[] mask, int wordsPerRow) {
+		int[] above = new int[gridWidth_];
+		int[] current = new int[gridWidth_];
+		UnionFind regions = new UnionFind();
+		long skinCells = 0;
+
+		for (int cy = 0; cy < gridHeight_; cy++) {
+			for (int word = 0; word < wordsPerRow; word++) {
+				long bits = mask[cy * wordsPerRow + word];
+				int first = word << 6;
+				int end = Math.min(first + 64, gridWidth_);
+				if (bits == 0) {
+					Arrays.fill(current, first, end, 0);
+					continue;
+				}
+				for (int cx = first; cx < end; cx++) {
+					if ((bits & (1L << (cx & 63))) == 0) {
+						current[cx] = 0;
+						continue;
+					}
+					int label = 0;
+					if (cx > 0) {
+						label = regions.join(label, current[cx - 1]);
+						label = regions.join(label, above[cx - 1]);
+					}
+					label = regions.join(label, above[cx]);
+					if (cx + 1 < gridWidth_) {
+						label = regions.join(label, above[cx + 1]);
+					}
+					current[cx] = regions.addCell(label, cx, cy);
+					skinCells++;
+				}
+			}
+			int[] swap = above;
+			above = current;
+			current = swap;
+		}
+
+		long minCells = Math.max(1,
+				(long) gridWidth_ * gridHeight_ / MIN_REGION_PART);
+		int count = 0;
+		int largest = 0;
+		for (int label = 1; label <= regions.count_; label++) {
+			if (regions.parent_[label] != label) {
+				continue;
+			}
+			if (regions.area_[label] >= minCells) {
+				count++;
+			}
+			if ((largest == 0) ||
+					(regions.area_[label] > regions.area_[largest])) {
+				largest = label;
+			}
+		}
+
+		regionCount_ = count;
+		if (largest > 0) {
+			largestRegionRatio_ = (double) regions.area_[largest] / skinCells;
+			boundingBoxCoverage_ = (double)
+					(regions.maxX_[largest] - regions.minX_[largest] + 1) *
+					(regions.maxY_[largest] - regions.minY_[largest] + 1) /
+					((double) gridWidth_ * gridHeight_);
+		}
+	}
+
+
+	/**
+	 * Regions as a union-find forest on primitive arrays, indexed by label
+	 * (0 is no region). The area and bounding box of a region are kept at
+	 * its root.
+	 */
+	private static final class UnionFind {
+
+		int count_;
+		int[] parent_;
+		int[] area_;
+		int[] minX_;
+		int[] minY_;
+		int[] maxX_;
+		int[] maxY_;
+
+		UnionFind() {
+			count_ = 0;
+			parent_ = new int[64];
+			area_ = new int[64];
+			minX_ = new int[64];
+			minY_ = new int[64];
+			maxX_ = new int[64];
+			maxY_ = new int[64];
+		}
+
+		int find(int label) {
+			while (parent_[label] != label) {
+				// path halving
+				parent_[label] = parent_[parent_[label]];
+				label = parent_[label];
+			}
+			return label;
+		}
+
+		/**
+		 * @param label label so far, 0 if none
+		 * @param neighbour label of a neighbour, 0 if it is no skin
+		 * @return root of the union of both
+		 */
+		int join(int label, int neighbour) {
+			if (neighbour == 0) {
+				return label;
+			}
+			int b = find(neighbour);
+			if (label == 0) {
+				return b;
+			}
+			int a = find(label);
+			if (a == b) {
+				return a;
+			}
+			// the smaller region joins the larger one
+			if (area_[a] < area_[b]) {
+				int swap = a;
+				a = b;
+				b = swap;
+			}
+			parent_[b] = a;
+			area_[a] += area_[b];
+			minX_[a] = Math.min(minX_[a], minX_[b]);
+			minY_[a] = Math.min(minY_[a], minY_[b]);
+			maxX_[a] = Math.max(maxX_[a], maxX_[b]);
+			maxY_[a] = Math.max(maxY_[a], maxY_[b]);
+			return a;
+		}
+
+		/**
+		 * @param label root of the region of the cell, 0 for a new region
+		 * @return label of the cell
+		 */
+		int addCell(int label, int x, int y) {
+			if (label == 0) {
+				label = ++count_;
+				if (label == parent_.length) {
+					int length = 2 * parent_.length;
+					parent_ = Arrays.copyOf(parent_, length);
+					area_ = Arrays.copyOf(area_, length);
+					minX_ = Arrays.copyOf(minX_, length);
+					minY_ = Arrays.copyOf(minY_, length);
+					maxX_ = Arrays.copyOf(maxX_, length);
+					maxY_ = Arrays.copyOf(maxY_, length);
+				}
+				parent_[label] = label;
+				area_[label] = 1;
+				minX_[label] = x;
+				minY_[label] = y;
+				maxX_[label] = x;
+				maxY_[label] = y;
+				return label;
+			}
+			area_[label]++;
+			minX_[label] = Math.min(minX_[label], x);
+			minY_[label] = Math.min(minY_[label], y);
+			maxX_[label] = Math.max(maxX_[label], x);
+			maxY_[label] = Math.max(maxY_[label], y);
+			return label;
+		}
+	}
+
+}
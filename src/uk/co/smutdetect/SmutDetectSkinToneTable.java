@@ -0,0 +1,124 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+/**
+ * Precomputed classification of all 16,777,216 sRGB colours by both skin-tone
+ * detectors.
+ *
+ * Every colour is stored with 2 bits (RGB hit and YCbCr hit), packed four
+ * colours to a byte which results in a table of 4 MB. The table is built once
+ * per JVM on first use from the reference implementations
+ * RgbSkinToneDetector.checkColor and YCbCrSkinToneDetector.checkColor, after
+ * that classifying a pixel costs a single memory lookup.
+ *
+ * @author Rajmund Witt
+ * @see RgbSkinToneDetector
+ * @see YCbCrSkinToneDetector
+ */
+public abstract class SmutDetectSkinToneTable {
+
+	/** Bit set if the colour is detected as skin-tone in RGB. */
+	public static final int RGB_HIT = 1;
+
+	/** Bit set if the colour is detected as skin-tone in YCbCr. */
+	public static final int YCBCR_HIT = 2;
+
+	private static final int NUMBER_OF_COLORS = 1 << 24;
+
+	/**
+	 * Lazy holder - the table is only built when the first image is scanned.
+	 */
+	private static final class Holder {
+		static final byte[] TABLE = buildTable();
+	}
+
+
+	/**
+	 * Looks up the classification of a colour.
+	 *
+	 * @param color color in sRGB encoding, the alpha channel is ignored
+	 * @return combination of RGB_HIT and YCBCR_HIT
+	 */
+	public static int lookup(int color) {
+		return lookup(Holder.TABLE, color);
+	}
+
+	/**
+	 * Looks up the classification of a colour in a table obtained by
+	 * getTable, allows hot loops to keep the table in a local variable.
+	 *
+	 * @param table table obtained by getTable
+	 * @param color color in sRGB encoding, the alpha channel is ignored
+	 * @return combination of RGB_HIT and YCBCR_HIT
+	 */
+	static int lookup(byte[] table, int color) {
+		int rgb = color & 0x00ffffff;
+		return (table[rgb >>> 2] >> ((rgb & 3) << 1)) & 3;
+	}
+
+	/**
+	 * @return the packed table, building it if not done yet
+	 */
+	static byte[] getTable() {
+		return Holder.TABLE;
+	}
+
+	/**
+	 * Checks every entry of the table against the reference implementations.
+	 *
+	 * @return true if the table matches the detectors for all colours
+	 */
+	public static boolean verify() {
+		byte[] table = Holder.TABLE;
+
+		for (int rgb = 0; rgb < NUMBER_OF_COLORS; rgb++) {
+			if (lookup(table, rgb) != classify(rgb)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Classifies a colour with the reference implementations.
+	 */
+	private static int classify(int color) {
+		int bits = 0;
+
+		if (RgbSkinToneDetector.checkColor(color)) {
+			bits |= RGB_HIT;
+		}
+		if (YCbCrSkinToneDetector.checkColor(color)) {
+			bits |= YCBCR_HIT;
+		}
+		return bits;
+	}
+
+	private static byte[] buildTable() {
+		byte[] table = new byte[NUMBER_OF_COLORS / 4];
+
+		for (int rgb = 0; rgb < NUMBER_OF_COLORS; rgb++) {
+			table[rgb >>> 2] |= classify(rgb) << ((rgb & 3) << 1);
+		}
+		return table;
+	}
+
+}
@@ -0,0 +1,672 @@
+/**
+ * SmutDetect
+ * Copyright (C) 2014 Rajmund Witt
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package uk.co.smutdetect;
+
+import java.awt.image.DirectColorModel;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteOrder;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Scan engine which counts the skin-tone pixels of PNG and uncompressed BMP
+ * images while reading them, one row at a time, without decoding the image
+ * into a BufferedImage.
+ *
+ * A PNG row is inflated and unfiltered against the previous row, a BMP row
+ * is read as stored, both into buffers reused for the whole image. The
+ * sampled pixels of the row are converted to packed sRGB values and
+ * classified through the SmutDetectPixelClassifier, the row is then
+ * dropped. The memory needed grows with the width of the image only, so
+ * images too large to decode are scanned in full. The width is taken from
+ * the header though, images whose row buffers would take more than the
+ * decode byte limit of the options are left to the decoder and its oversize
+ * policy.
+ *
+ * The colours are the ones BufferedImage.getRGB returns for the image
+ * ImageIO decodes: palettes are padded as the PNG reader pads them, 16 bit
+ * samples are scaled as the ComponentColorModel scales them and BMP bit
+ * fields are converted through a DirectColorModel of the same masks.
+ *
+ * Interlaced PNGs, RLE compressed and OS/2 BMPs, BMPs with an embedded
+ * colour profile and damaged or truncated files are not handled, scanImage
+ * then returns null and the image is to be decoded.
+ *
+ * @author Rajmund Witt
+ */
+public abstract class SmutDetectStreamingScanner {
+
+	private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454E44;
+
+	private static final int BMP_SIGNATURE = 0x4D42;
+	private static final int BI_RGB = 0;
+	private static final int BI_BITFIELDS = 3;
+	private static final int BI_ALPHABITFIELDS = 6;
+	private static final int PROFILE_EMBEDDED = 0x4D424544;
+
+	private static final int INFLATE_BUFFER_BYTES = 1 << 16;
+
+
+/////////////////////////////////////OTHERS/////////////////////////////////////
+
+	/**
+	 * @param formatName ImageIO format name of the image
+	 * @return true if images of the format can be streamed
+	 */
+	public static boolean canStream(String formatName) {
+		return "png".equalsIgnoreCase(formatName) ||
+				"bmp".equalsIgnoreCase(formatName);
+	}
+
+	/**
+	 * Reads the image row by row and counts its skin-tone pixels. With a
+	 * subsampled decode in the options only the rows and columns which are
+	 * a multiple of the sampling factor are counted, the pixels the decode
+	 * would read. The position and byte order of the stream are restored.
+	 *
+	 * @param stream stream of the image, seekable back to its start
+	 * @param formatName ImageIO format name of the image
+	 * @param options options giving the sampling factor
+	 * @param trace records the timings and pixels scanned
+	 * @return the result container without percentages or null if the
+	 * 			image can not be streamed
+	 * @throws IOException if the stream can not be read
+	 */
+	public static SmutDetectCategorisedImage scanImage(ImageInputStream stream,
+			String formatName, SmutDetectScanOptions options,
+			SmutDetectScanTrace trace) throws IOException {
+		long position = stream.getStreamPosition();
+		ByteOrder order = stream.getByteOrder();
+		long start = System.nanoTime();
+
+		try {
+			stream.seek(0);
+			RowCounter counter;
+			if ("png".equalsIgnoreCase(formatName)) {
+				counter = scanPng(stream, options);
+			} else if ("bmp".equalsIgnoreCase(formatName)) {
+				counter = scanBmp(stream, options);
+			} else {
+				counter = null;
+			}
+			if (counter == null) {
+				return null;
+			}
+
+			trace.addDecodeNanos(System.nanoTime() - start -
+					counter.scanNanos_);
+			trace.addScanNanos(counter.scanNanos_);
+			SmutDetectCategorisedImage cImage = new SmutDetectCategorisedImage(
+					scaledSize(counter.width_, counter.factor_),
+					scaledSize(counter.height_, counter.factor_));
+			cImage.setSamplingFactor(counter.factor_);
+			cImage.addRgbSkinToneHits(counter.hits_[0]);
+			cImage.addYCbCrSkinToneHits(counter.hits_[1]);
+			cImage.setSkinRegions(counter.regions_);
+			trace.addPixelsScanned(cImage.getNumberOfSampledPixels());
+			return cImage;
+		} catch (EOFException e) {
+			// truncated, left to the decoder
+			return null;
+		} catch (ZipException e) {
+			// damaged image data, left to the decoder
+			return null;
+		} finally {
+			stream.setByteOrder(order);
+			stream.seek(position);
+		}
+	}
+
+	private static int scaledSize(int size, int factor) {
+		return (size + factor - 1) / factor;
+	}
+
+	/**
+	 * @param width width of the image
+	 * @param rowBufferBytes bytes of the buffers of the encoded rows
+	 * @param options decode byte limit
+	 * @return true if the buffers and the packed row fit the limit
+	 */
+	private static boolean fitsDecodeLimit(int width, long rowBufferBytes,
+			SmutDetectScanOptions options) {
+		return rowBufferBytes + 4L * width <= options.getDecodeByteLimit();
+	}
+
+
+	/**
+	 * Classifies the sampled pixels of the rows handed to it.
+	 */
+	private static final class RowCounter {
+
+		final int width_;
+		final int height_;
+		final int factor_;
+		final int[] row_;
+		final long[] hits_;
+		// of the sampled rows, null if not requested
+		final SmutDetectSkinRegions regions_;
+		long scanNanos_;
+
+		RowCounter(int width, int height, SmutDetectScanOptions options) {
+			width_ = width;
+			height_ = height;
+			factor_ = options.getSubsampledDecode() ?
+					options.computeSamplingFactor(width, height) : 1;
+			row_ = SmutDetectScanContext.get().getRow(scaledSize(width,
+					factor_));
+			hits_ = new long[2];
+			regions_ = options.getSkinRegions() ? new SmutDetectSkinRegions(
+					scaledSize(width, factor_), scaledSize(height, factor_)) :
+					null;
+			scanNanos_ = 0;
+		}
+
+		boolean isSampled(int y) {
+			return y % factor_ == 0;
+		}
+
+		/**
+		 * @param y row of the image, the rows may come bottom up
+		 * @param length sampled pixels in the packed row
+		 */
+		void countRow(int y, int length) {
+			long start = System.nanoTime();
+			if (regions_ != null) {
+				regions_.addRow(y / factor_, row_, length, hits_);
+			} else {
+				SmutDetectPixelClassifier.getInstance().countRow(row_, length,
+						hits_);
+			}
+			scanNanos_ += System.nanoTime() - start;
+		}
+	}
+
+
+///////////////////////////////////////PNG//////////////////////////////////////
+
+	private static RowCounter scanPng(ImageInputStream stream,
+			SmutDetectScanOptions options)
+			throws IOException {
+		stream.setByteOrder(ByteOrder.BIG_ENDIAN);
+		if ((stream.readLong() != PNG_SIGNATURE) || (stream.readInt() != 13) ||
+				(stream.readInt() != IHDR)) {
+			return null;
+		}
+		int width = stream.readInt();
+		int height = stream.readInt();
+		int bitDepth = stream.readUnsignedByte();
+		int colorType = stream.readUnsignedByte();
+		int compression = stream.readUnsignedByte();
+		int filter = stream.readUnsignedByte();
+		int interlace = stream.readUnsignedByte();
+		stream.readInt();
+		if ((width <= 0) || (height <= 0) || (compression != 0) ||
+				(filter != 0) || (interlace != 0)) {
+			return null;
+		}
+
+		int channels;
+		switch (colorType) {
+			case 0:
+				channels = 1;
+				break;
+			case 2:
+				channels = 3;
+				break;
+			case 3:
+				channels = 1;
+				break;
+			case 4:
+				channels = 2;
+				break;
+			case 6:
+				channels = 4;
+				break;
+			default:
+				return null;
+		}
+		boolean validDepth = ((colorType == 0) || (colorType == 3)) ?
+				((bitDepth == 1) || (bitDepth == 2) || (bitDepth == 4) ||
+					(bitDepth == 8) || ((bitDepth == 16) && (colorType == 0))) :
+				((bitDepth == 8) || (bitDepth == 16));
+		long rowBytes = ((long) width * channels * bitDepth + 7) / 8;
+		if (!validDepth || (rowBytes >= Integer.MAX_VALUE) ||
+				!fitsDecodeLimit(width, 2 * rowBytes, options)) {
+			return null;
+		}
+
+		// chunks before the image data, only the palette is needed
+		int[] palette = null;
+		int length = stream.readInt();
+		int type = stream.readInt();
+		while (type != IDAT) {
+			if ((length < 0) || (type == IEND)) {
+				return null;
+			}
+			if ((type == PLTE) && (colorType == 3)) {
+				palette = readPngPalette(stream, length, bitDepth);
+				if (palette == null) {
+					return null;
+				}
+			} else {
+				stream.seek(stream.getStreamPosition() + length);
+			}
+			stream.readInt();
+			length = stream.readInt();
+			type = stream.readInt();
+		}
+		if ((length < 0) || ((colorType == 3) && (palette == null))) {
+			return null;
+		}
+
+		RowCounter counter = new RowCounter(width, height, options);
+		int bytesPerPixel = Math.max(1, channels * bitDepth / 8);
+		byte[] previous = new byte[(int) rowBytes];
+		byte[] current = new byte[(int) rowBytes];
+		Inflater inflater = new Inflater();
+		try {
+			InputStream data = new InflaterInputStream(
+					new IdatInputStream(stream, length), inflater,
+					INFLATE_BUFFER_BYTES);
+			for (int y = 0; y < height; y++) {
+				int filterType = data.read();
+				if (filterType < 0) {
+					throw new EOFException();
+				}
+				readFully(data, current);
+				if (!unfilter(filterType, current, previous, bytesPerPixel)) {
+					return null;
+				}
+				if (counter.isSampled(y)) {
+					counter.countRow(y, convertPngRow(current, width, colorType,
+							bitDepth, channels, palette, counter.factor_,
+							counter.row_));
+				}
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+		} finally {
+			inflater.end();
+		}
+		return counter;
+	}
+
+	/**
+	 * Reads the palette padded to the size of the bit depth with its last
+	 * entry, as the ImageIO PNG reader does.
+	 */
+	private static int[] readPngPalette(ImageInputStream stream, int length,
+			int bitDepth) throws IOException {
+		int entries = length / 3;
+		if ((length % 3 != 0) || (entries == 0) || (entries > 256)) {
+			return null;
+		}
+		int[] palette = new int[Math.max(entries, 1 << bitDepth)];
+		for (int i = 0; i < entries; i++) {
+			palette[i] = (stream.readUnsignedByte() << 16) |
+					(stream.readUnsignedByte() << 8) | stream.readUnsignedByte();
+		}
+		for (int i = entries; i < palette.length; i++) {
+			palette[i] = palette[entries - 1];
+		}
+		return palette;
+	}
+
+	/**
+	 * Reverses the filter of a PNG row in place.
+	 *
+	 * @return false for an unknown filter type
+	 */
+	private static boolean unfilter(int filterType, byte[] row,
+			byte[] previous, int bytesPerPixel) {
+		int length = row.length;
+		switch (filterType) {
+			case 0:
+				break;
+			case 1:
+				for (int i = bytesPerPixel; i < length; i++) {
+					row[i] += row[i - bytesPerPixel];
+				}
+				break;
+			case 2:
+				for (int i = 0; i < length; i++) {
+					row[i] += previous[i];
+				}
+				break;
+			case 3:
+				for (int i = 0; i < bytesPerPixel; i++) {
+					row[i] += (previous[i] & 0xFF) >>> 1;
+				}
+				for (int i = bytesPerPixel; i < length; i++) {
+					row[i] += ((row[i - bytesPerPixel] & 0xFF) +
+							(previous[i] & 0xFF)) >>> 1;
+				}
+				break;
+			case 4:
+				for (int i = 0; i < bytesPerPixel; i++) {
+					row[i] += previous[i];
+				}
+				for (int i = bytesPerPixel; i < length; i++) {
+					int a = row[i - bytesPerPixel] & 0xFF;
+					int b = previous[i] & 0xFF;
+					int c = previous[i - bytesPerPixel] & 0xFF;
+					int pa = Math.abs(b - c);
+					int pb = Math.abs(a - c);
+					int pc = Math.abs(a + b - c - c);
+					row[i] += ((pa <= pb) && (pa <= pc)) ? a :
+						((pb <= pc) ? b : c);
+				}
+				break;
+			default:
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of sampled pixels written to the packed row
+	 */
+	private static int convertPngRow(byte[] data, int width, int colorType,
+			int bitDepth, int channels, int[] palette, int factor,
+			int[] row) {
+		int count = 0;
+		if (colorType == 3) {
+			for (int x = 0; x < width; x += factor) {
+				row[count++] = palette[sample(data, x, bitDepth)];
+			}
+		} else if ((colorType == 0) || (colorType == 4)) {
+			// gray, the alpha of gray with alpha is ignored
+			for (int x = 0; x < width; x += factor) {
+				int gray = (bitDepth == 16) ?
+						scale16(data, 2 * channels * x) :
+						((bitDepth == 8) ? data[channels * x] & 0xFF :
+							sample(data, x, bitDepth) * 255 /
+								((1 << bitDepth) - 1));
+				row[count++] = (gray << 16) | (gray << 8) | gray;
+			}
+		} else if (bitDepth == 8) {
+			// RGB and RGBA, the alpha is ignored
+			for (int x = 0; x < width; x += factor) {
+				int i = channels * x;
+				row[count++] = ((data[i] & 0xFF) << 16) |
+						((data[i + 1] & 0xFF) << 8) | (data[i + 2] & 0xFF);
+			}
+		} else {
+			for (int x = 0; x < width; x += factor) {
+				int i = 2 * channels * x;
+				row[count++] = (scale16(data, i) << 16) |
+						(scale16(data, i + 2) << 8) | scale16(data, i + 4);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the x-th sample of a row packed in 1, 2, 4 or 8 bits
+	 */
+	private static int sample(byte[] data, int x, int bitDepth) {
+		if (bitDepth == 8) {
+			return data[x] & 0xFF;
+		}
+		int bit = x * bitDepth;
+		return ((data[bit >>> 3] & 0xFF) >>> (8 - bitDepth - (bit & 7))) &
+				((1 << bitDepth) - 1);
+	}
+
+	/**
+	 * @return the big endian 16 bit sample scaled to 8 bits as the
+	 * 			ComponentColorModel of the decoded image scales it
+	 */
+	private static int scale16(byte[] data, int i) {
+		int value = ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+		return (int) ((value / 65535.0f) * 255.0f + 0.5f);
+	}
+
+	private static void readFully(InputStream data, byte[] buffer)
+			throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = data.read(buffer, offset, buffer.length - offset);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			offset += read;
+		}
+	}
+
+
+	/**
+	 * The content of consecutive IDAT chunks as one stream.
+	 */
+	private static final class IdatInputStream extends InputStream {
+
+		private final ImageInputStream stream_;
+		private int remaining_;
+		private boolean end_;
+
+		/**
+		 * @param stream stream positioned at the data of the first IDAT
+		 * @param length length of the first IDAT
+		 */
+		IdatInputStream(ImageInputStream stream, int length) {
+			stream_ = stream;
+			remaining_ = length;
+			end_ = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			while (remaining_ == 0) {
+				if (end_) {
+					return -1;
+				}
+				stream_.readInt();
+				remaining_ = stream_.readInt();
+				if ((stream_.readInt() != IDAT) || (remaining_ < 0)) {
+					remaining_ = 0;
+					end_ = true;
+				}
+			}
+			int read = stream_.read(buffer, offset, Math.min(length,
+					remaining_));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			remaining_ -= read;
+			return read;
+		}
+	}
+
+
+///////////////////////////////////////BMP//////////////////////////////////////
+
+	private static RowCounter scanBmp(ImageInputStream stream,
+			SmutDetectScanOptions options)
+			throws IOException {
+		stream.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		if (stream.readUnsignedShort() != BMP_SIGNATURE) {
+			return null;
+		}
+		stream.readInt();
+		stream.readInt();
+		long dataOffset = stream.readUnsignedInt();
+		int headerSize = stream.readInt();
+		if ((headerSize != 40) && (headerSize != 52) && (headerSize != 56) &&
+				(headerSize != 108) && (headerSize != 124)) {
+			// OS/2 and unknown headers
+			return null;
+		}
+		int width = stream.readInt();
+		int height = stream.readInt();
+		stream.readUnsignedShort();
+		int bitCount = stream.readUnsignedShort();
+		int compression = stream.readInt();
+		stream.readInt();
+		stream.readInt();
+		stream.readInt();
+		int colorsUsed = stream.readInt();
+		stream.readInt();
+
+		boolean topDown = height < 0;
+		height = Math.abs(height);
+		long stride = (((long) width * bitCount + 31) / 32) * 4;
+		if ((width <= 0) || (height <= 0) || (stride >= Integer.MAX_VALUE) ||
+				(dataOffset < 14 + headerSize) ||
+				!fitsDecodeLimit(width, stride, options)) {
+			return null;
+		}
+
+		int redMask;
+		int greenMask;
+		int blueMask;
+		if ((compression == BI_BITFIELDS) ||
+				(compression == BI_ALPHABITFIELDS)) {
+			if ((bitCount != 16) && (bitCount != 32)) {
+				return null;
+			}
+			// after a 40 byte header or inside the longer headers
+			redMask = stream.readInt();
+			greenMask = stream.readInt();
+			blueMask = stream.readInt();
+		} else if (compression == BI_RGB) {
+			if (bitCount == 16) {
+				redMask = 0x7C00;
+				greenMask = 0x03E0;
+				blueMask = 0x001F;
+			} else if ((bitCount == 1) || (bitCount == 4) || (bitCount == 8) ||
+					(bitCount == 24) || (bitCount == 32)) {
+				redMask = 0x00FF0000;
+				greenMask = 0x0000FF00;
+				blueMask = 0x000000FF;
+			} else {
+				return null;
+			}
+		} else {
+			// RLE, JPEG and PNG compressed
+			return null;
+		}
+
+		if (headerSize >= 108) {
+			stream.seek(14 + 56);
+			if (stream.readInt() == PROFILE_EMBEDDED) {
+				// decoded through the profile
+				return null;
+			}
+		}
+
+		int[] palette = null;
+		if (bitCount <= 8) {
+			int entries = ((colorsUsed <= 0) || (colorsUsed > 256)) ?
+					1 << bitCount : colorsUsed;
+			// indices beyond the palette decode to black
+			palette = new int[Math.max(entries, 1 << bitCount)];
+			stream.seek(14 + headerSize);
+			for (int i = 0; i < entries; i++) {
+				int bgrx = stream.readInt();
+				palette[i] = bgrx & 0x00FFFFFF;
+			}
+		}
+
+		int[] colors = null;
+		DirectColorModel colorModel = null;
+		if ((bitCount == 16) || ((bitCount == 32) &&
+				((redMask != 0x00FF0000) || (greenMask != 0x0000FF00) ||
+				(blueMask != 0x000000FF)))) {
+			try {
+				colorModel = new DirectColorModel(bitCount, redMask, greenMask,
+						blueMask);
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+			if (bitCount == 16) {
+				colors = new int[1 << 16];
+				for (int i = 0; i < colors.length; i++) {
+					colors[i] = colorModel.getRGB(i);
+				}
+			}
+		}
+
+		RowCounter counter = new RowCounter(width, height, options);
+		byte[] line = new byte[(int) stride];
+		stream.seek(dataOffset);
+		for (int fileRow = 0; fileRow < height; fileRow++) {
+			stream.readFully(line);
+			int y = topDown ? fileRow : height - 1 - fileRow;
+			if (counter.isSampled(y)) {
+				counter.countRow(y, convertBmpRow(line, width, bitCount, palette,
+						colors, colorModel, counter.factor_, counter.row_));
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the number of sampled pixels written to the packed row
+	 */
+	private static int convertBmpRow(byte[] data, int width, int bitCount,
+			int[] palette, int[] colors, DirectColorModel colorModel,
+			int factor, int[] row) {
+		int count = 0;
+		if (palette != null) {
+			for (int x = 0; x < width; x += factor) {
+				row[count++] = palette[sample(data, x, bitCount)];
+			}
+		} else if (bitCount == 24) {
+			for (int x = 0; x < width; x += factor) {
+				int i = 3 * x;
+				row[count++] = ((data[i + 2] & 0xFF) << 16) |
+						((data[i + 1] & 0xFF) << 8) | (data[i] & 0xFF);
+			}
+		} else if (bitCount == 16) {
+			for (int x = 0; x < width; x += factor) {
+				int i = 2 * x;
+				row[count++] = colors[((data[i + 1] & 0xFF) << 8) |
+						(data[i] & 0xFF)];
+			}
+		} else {
+			for (int x = 0; x < width; x += factor) {
+				int i = 4 * x;
+				int pixel = ((data[i + 3] & 0xFF) << 24) |
+						((data[i + 2] & 0xFF) << 16) |
+						((data[i + 1] & 0xFF) << 8) | (data[i] & 0xFF);
+				row[count++] = (colorModel == null) ? pixel :
+						colorModel.getRGB(pixel);
+			}
+		}
+		return count;
+	}
+
+}
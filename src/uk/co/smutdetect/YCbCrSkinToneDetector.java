@@ -52,14 +52,56 @@ package uk.co.smutdetect;
 public abstract class YCbCrSkinToneDetector {
 	
 	
+	// JFIF coefficients scaled by 10,000 - the chroma values are only
+	// compared with the thresholds, so they are never divided back
+	private static final int CB_RED = -1687;
+	private static final int CB_GREEN = -3313;
+	private static final int CB_BLUE = 5000;
+	private static final int CR_RED = 5000;
+	private static final int CR_GREEN = -4187;
+	private static final int CR_BLUE = -813;
+	
+	// thresholds minus the offset of 128, scaled by 10,000
+	private static final int CB_MIN = (77 - 128) * 10000;
+	private static final int CB_LIMIT = (127 + 1 - 128) * 10000;
+	private static final int CR_MIN = (133 - 128) * 10000;
+	private static final int CR_LIMIT = (173 + 1 - 128) * 10000;
+	
+	
 	/**
 	 * Checks if the provided Color is detected as skin-tone in the YCrCb
 	 * encoding.
 	 * 
+	 * The chroma values are computed in fixed point: with the coefficients
+	 * scaled by 10,000 the scaled Cb and Cr are exact integers and 
+	 * Cb &gt;= 77 becomes scaled Cb &gt;= 770,000 and so on. The result is 
+	 * identical to checkColorReference for all colours, see verify.
+	 * 
 	 * @param color color in sRGB encoding
 	 * @return ifDetectedAsSkin
 	 */
 	public static boolean checkColor(int color) {
+		
+		int red = (color & 0x00ff0000) >> 16;
+		int green = (color & 0x0000ff00) >> 8;
+		int blue = color & 0x000000ff;
+		
+		int cb = (CB_RED * red) + (CB_GREEN * green) + (CB_BLUE * blue);
+		int cr = (CR_RED * red) + (CR_GREEN * green) + (CR_BLUE * blue);
+		
+		return (cb >= CB_MIN) && (cb < CB_LIMIT) && 
+				(cr >= CR_MIN) && (cr < CR_LIMIT);
+		
+	}
+	
+	/**
+	 * The original floating point implementation, kept as reference for 
+	 * verify.
+	 * 
+	 * @param color color in sRGB encoding
+	 * @return ifDetectedAsSkin
+	 */
+	public static boolean checkColorReference(int color) {
 	
 		// redesign of this implementation is discussed here:
 		// http://old4ensics.grap3.net/blog
@@ -82,6 +124,23 @@ public abstract class YCbCrSkinToneDetector {
 		
 	}
 	
+	/**
+	 * Checks the fixed point implementation against the floating point 
+	 * reference for every colour. The chroma values themselves differ for a
+	 * few hundred colours whose exact Cr is an integer below 129 (the double
+	 * arithmetic ends just below it), never at a threshold.
+	 * 
+	 * @return true if both agree for all 16,777,216 colours
+	 */
+	public static boolean verify() {
+		for (int color = 0; color < (1 << 24); color++) {
+			if (checkColor(color) != checkColorReference(color)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	
 	
 
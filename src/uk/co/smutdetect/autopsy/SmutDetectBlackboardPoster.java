@@ -0,0 +1,247 @@
+/**
+ * SmutDetect4Autopsy
+ * Copyright (C) 2014 Rajmund Witt
+ * 
+ * Derived from Sample Module provided with Autopsy 3.1.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package uk.co.smutdetect.autopsy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.ingest.IngestServices;
+import org.sleuthkit.autopsy.ingest.ModuleDataEvent;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.BlackboardArtifact;
+import org.sleuthkit.datamodel.BlackboardAttribute;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Buffers the blackboard postings of an ingest job and writes them in
+ * batches, so the result viewers are refreshed once per batch instead of once
+ * per image.
+ * 
+ * A batch is written once it holds the maximum number of postings or its 
+ * oldest posting has waited for the maximum delay (checked whenever a posting
+ * is added and by a timer started with the first posting of a batch, so a
+ * lone hit is not held until the next one), and whenever flush is called - on
+ * shut down and when the job is cancelled. A single ModuleDataEvent carrying all artifacts of the batch is
+ * fired after it is written. The Sleuth Kit API of this Autopsy version has 
+ * no bulk insert, the artifacts of a batch are still created one by one but 
+ * off the per image path of the other ingest threads.
+ * 
+ * Written and failed postings are counted in the counters of the job, the
+ * batch statistics are kept here.
+ * 
+ * Shared by the module instances of an ingest job.
+ */
+class SmutDetectBlackboardPoster {
+
+    static final int DEFAULT_BATCH_SIZE = 200;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+    private final String moduleName;
+    private final SmutDetectJobCounters counters;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private List<PendingPost> pending = new ArrayList<>();
+    private long oldestPendingNanos;
+    private final ScheduledExecutorService flushTimer;
+
+    // statistics, guarded by this
+    private long batchCount = 0;
+    private int largestBatch = 0;
+    private long totalFlushNanos = 0;
+    private long longestFlushNanos = 0;
+
+    SmutDetectBlackboardPoster(String moduleName, SmutDetectJobCounters counters) {
+        this(moduleName, counters, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    SmutDetectBlackboardPoster(String moduleName, SmutDetectJobCounters counters, int batchSize, long maxDelayMillis) {
+        this.moduleName = moduleName;
+        this.counters = counters;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelayMillis * 1000000L;
+        this.flushTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, moduleName + "-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues an interesting file hit for the file, writes the batch if it is
+     * full or old enough.
+     *
+     * @param file file the artifact is created for
+     * @param attributes attributes of the artifact
+     */
+    void post(AbstractFile file, Collection<BlackboardAttribute> attributes) {
+        List<PendingPost> batch = null;
+        boolean firstPending;
+
+        synchronized (this) {
+            firstPending = pending.isEmpty();
+            if (firstPending) {
+                oldestPendingNanos = System.nanoTime();
+            }
+            pending.add(new PendingPost(file, attributes));
+            if ((pending.size() >= batchSize)
+                    || (System.nanoTime() - oldestPendingNanos >= maxDelayNanos)) {
+                batch = takePending();
+            }
+        }
+
+        if (batch != null) {
+            write(batch);
+        } else if (firstPending) {
+            try {
+                flushTimer.schedule(this::flushIfDue, maxDelayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // shut down, the batch is written by the final flush
+            }
+        }
+    }
+
+    /**
+     * Writes the queued postings if the oldest has waited for the maximum
+     * delay. A timer of a batch already written finds a younger one and
+     * leaves it to its own timer.
+     */
+    private void flushIfDue() {
+        List<PendingPost> batch;
+
+        synchronized (this) {
+            if (pending.isEmpty()
+                    || (System.nanoTime() - oldestPendingNanos < maxDelayNanos)) {
+                return;
+            }
+            batch = takePending();
+        }
+        try {
+            write(batch);
+        } catch (RuntimeException ex) {
+            Logger logger = IngestServices.getInstance().getLogger(moduleName);
+            logger.log(Level.SEVERE, "Error writing a batch to the blackboard", ex);
+        }
+    }
+
+    /**
+     * Writes all queued postings.
+     */
+    void flush() {
+        List<PendingPost> batch;
+
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        write(batch);
+    }
+
+    /**
+     * Stops the timer and writes all queued postings. Called once the module
+     * instances of the job are done.
+     */
+    void shutDown() {
+        flushTimer.shutdownNow();
+        flush();
+    }
+
+    synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    synchronized int getLargestBatch() {
+        return largestBatch;
+    }
+
+    /**
+     * @return average time to write a batch in milliseconds
+     */
+    synchronized double getAverageFlushMillis() {
+        return (batchCount == 0) ? 0.0 : totalFlushNanos / 1e6 / batchCount;
+    }
+
+    /**
+     * @return longest time to write a batch in milliseconds
+     */
+    synchronized double getLongestFlushMillis() {
+        return longestFlushNanos / 1e6;
+    }
+
+    private List<PendingPost> takePending() {
+        List<PendingPost> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    private void write(List<PendingPost> batch) {
+        long start = System.nanoTime();
+        List<BlackboardArtifact> artifacts = new ArrayList<>(batch.size());
+        int failed = 0;
+
+        for (PendingPost post : batch) {
+            try {
+                BlackboardArtifact bba = post.file.newArtifact(BlackboardArtifact.ARTIFACT_TYPE.TSK_INTERESTING_FILE_HIT);
+                bba.addAttributes(post.attributes);
+                artifacts.add(bba);
+            } catch (TskCoreException ex) {
+                failed++;
+                Logger logger = IngestServices.getInstance().getLogger(moduleName);
+                logger.log(Level.SEVERE, "Error posting file (id = " + post.file.getId() + ") to the blackboard", ex);
+            }
+        }
+
+        if (!artifacts.isEmpty()) {
+            // one refresh of the result viewers for the whole batch
+            ModuleDataEvent event = new ModuleDataEvent(moduleName, BlackboardArtifact.ARTIFACT_TYPE.TSK_INTERESTING_FILE_HIT, artifacts);
+            IngestServices.getInstance().fireModuleDataEvent(event);
+        }
+
+        counters.addPosted(artifacts.size());
+        counters.addErrors(failed);
+
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            batchCount++;
+            largestBatch = Math.max(largestBatch, batch.size());
+            totalFlushNanos += elapsed;
+            longestFlushNanos = Math.max(longestFlushNanos, elapsed);
+        }
+    }
+
+    private static final class PendingPost {
+
+        final AbstractFile file;
+        final Collection<BlackboardAttribute> attributes;
+
+        PendingPost(AbstractFile file, Collection<BlackboardAttribute> attributes) {
+            this.file = file;
+            this.attributes = attributes;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * SmutDetect4Autopsy
+ * Copyright (C) 2014 Rajmund Witt
+ * 
+ * Derived from Sample Module provided with Autopsy 3.1.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package uk.co.smutdetect.autopsy;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.BlackboardAttribute;
+import org.sleuthkit.datamodel.TskCoreException;
+import org.sleuthkit.datamodel.TskData;
+
+/**
+ * Decides from the metadata Autopsy already holds for a file whether it can
+ * be skipped before any of its content is read: the file type, directory and
+ * virtual flags, the size, the MIME type found by the file type
+ * identification module (if it ran before this module) and, optionally, the
+ * extension.
+ *
+ * The extension is only a hint, a renamed image keeps its signature, so
+ * skipping by extension is off by default. A detected MIME type comes from
+ * the content and is trusted unless it is the generic binary type.
+ *
+ * Only the datamodel of Autopsy 3.1 is used: the MIME type is read from the
+ * file type signature attribute of the general info artifact, and the
+ * extension is taken from the file name.
+ */
+class SmutDetectFileFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Smallest file looked at, smaller files hold no useful picture. */
+    static final long DEFAULT_MIN_FILE_BYTES = 100;
+
+    private static final String GENERIC_MIME_TYPE = "application/octet-stream";
+
+    private static final Set<String> NON_IMAGE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "log", "csv", "xml", "htm", "html", "css", "js", "json", "ini", "cfg", "inf",
+            "exe", "dll", "sys", "so", "class", "jar", "mui", "cat", "manifest",
+            "mp3", "wav", "wma", "mp4", "avi", "mov", "mkv", "wmv",
+            "zip", "gz", "7z", "rar", "cab", "msi",
+            "doc", "docx", "xls", "xlsx", "ppt", "pptx", "pdf",
+            "db", "sqlite", "lnk", "pf", "evt", "evtx"));
+
+    /**
+     * Why a file was not scanned, reported per job.
+     */
+    enum SkipReason {
+
+        UNALLOCATED("unallocated or unused space"),
+        DIRECTORY("directories"),
+        VIRTUAL("virtual files"),
+        KNOWN("known files"),
+        TOO_SMALL("too small"),
+        TOO_LARGE("too large"),
+        MIME_TYPE("not an image by MIME type"),
+        EXTENSION("not an image by extension"),
+        SIGNATURE("no decodable image signature");
+
+        private final String displayName;
+
+        private SkipReason(String displayName) {
+            this.displayName = displayName;
+        }
+
+        String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private long minFileBytes = DEFAULT_MIN_FILE_BYTES;
+    private long maxFileBytes = 0;
+    private boolean skipByMimeType = true;
+    private boolean skipByExtension = false;
+
+    SmutDetectFileFilter() {
+    }
+
+    long getMinFileBytes() {
+        return minFileBytes;
+    }
+
+    /**
+     * @param minFileBytes smallest file scanned
+     */
+    void setMinFileBytes(long minFileBytes) {
+        this.minFileBytes = minFileBytes;
+    }
+
+    long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    /**
+     * @param maxFileBytes largest file scanned, 0 for no limit
+     */
+    void setMaxFileBytes(long maxFileBytes) {
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    boolean skipByMimeType() {
+        return skipByMimeType;
+    }
+
+    void setSkipByMimeType(boolean enabled) {
+        skipByMimeType = enabled;
+    }
+
+    boolean skipByExtension() {
+        return skipByExtension;
+    }
+
+    void setSkipByExtension(boolean enabled) {
+        skipByExtension = enabled;
+    }
+
+    /**
+     * Checks the metadata of the file, without reading its content.
+     *
+     * @param file file to check
+     * @param skipKnownFiles true if files known by hash (NSRL) are skipped
+     *
+     * @return the reason to skip the file or null if it is to be read
+     */
+    SkipReason check(AbstractFile file, boolean skipKnownFiles) {
+        TskData.TSK_DB_FILES_TYPE_ENUM type = file.getType();
+        if ((type == TskData.TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS)
+                || (type == TskData.TSK_DB_FILES_TYPE_ENUM.UNUSED_BLOCKS)) {
+            return SkipReason.UNALLOCATED;
+        }
+        if (file.isDir()) {
+            return SkipReason.DIRECTORY;
+        }
+        if (file.isVirtual()) {
+            return SkipReason.VIRTUAL;
+        }
+        if (skipKnownFiles && file.getKnown() == TskData.FileKnown.KNOWN) {
+            return SkipReason.KNOWN;
+        }
+
+        long size = file.getSize();
+        if (size < minFileBytes) {
+            return SkipReason.TOO_SMALL;
+        }
+        if ((maxFileBytes > 0) && (size > maxFileBytes)) {
+            return SkipReason.TOO_LARGE;
+        }
+
+        if (skipByMimeType) {
+            String mimeType = getMimeType(file);
+            if ((mimeType != null) && !mimeType.isEmpty()
+                    && !mimeType.regionMatches(true, 0, "image/", 0, 6)
+                    && !mimeType.equalsIgnoreCase(GENERIC_MIME_TYPE)) {
+                return SkipReason.MIME_TYPE;
+            }
+        }
+        if (skipByExtension) {
+            String extension = getExtension(file.getName());
+            if ((extension != null)
+                    && NON_IMAGE_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT))) {
+                return SkipReason.EXTENSION;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param file file to look up
+     *
+     * @return the MIME type posted by the file type identification module or
+     *         null if it did not run or the lookup failed
+     */
+    private static String getMimeType(AbstractFile file) {
+        try {
+            for (BlackboardAttribute attribute : file.getGenInfoAttributes(
+                    BlackboardAttribute.ATTRIBUTE_TYPE.TSK_FILE_TYPE_SIG)) {
+                return attribute.getValueString();
+            }
+        } catch (TskCoreException ex) {
+            // treated as unknown, the signature check still runs
+        }
+        return null;
+    }
+
+    /**
+     * @param name file name
+     *
+     * @return the text after the last dot or null if the name has none
+     */
+    private static String getExtension(String name) {
+        if (name == null) {
+            return null;
+        }
+        int dot = name.lastIndexOf('.');
+        if ((dot < 0) || (dot == name.length() - 1)) {
+            return null;
+        }
+        return name.substring(dot + 1);
+    }
+}
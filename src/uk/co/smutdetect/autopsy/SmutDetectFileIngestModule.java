@@ -20,26 +20,35 @@
  */
 package uk.co.smutdetect.autopsy;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.coreutils.PlatformUtil;
 import org.sleuthkit.autopsy.ingest.FileIngestModule;
 import org.sleuthkit.autopsy.ingest.IngestModule;
 import org.sleuthkit.autopsy.ingest.IngestJobContext;
 import org.sleuthkit.autopsy.ingest.IngestMessage;
 import org.sleuthkit.autopsy.ingest.IngestServices;
-import org.sleuthkit.autopsy.ingest.ModuleDataEvent;
 import org.sleuthkit.autopsy.ingest.IngestModuleReferenceCounter;
 import org.sleuthkit.datamodel.AbstractFile;
-import org.sleuthkit.datamodel.BlackboardArtifact;
-import org.sleuthkit.datamodel.BlackboardArtifact.ARTIFACT_TYPE;
 import org.sleuthkit.datamodel.BlackboardAttribute;
 import org.sleuthkit.datamodel.TskCoreException;
-import org.sleuthkit.datamodel.TskData;
 import uk.co.smutdetect.SmutDetectCategorisedImage;
+import uk.co.smutdetect.SmutDetectEvidenceReader;
+import uk.co.smutdetect.SmutDetectImagePreview;
 import uk.co.smutdetect.SmutDetectImageScanner;
+import uk.co.smutdetect.SmutDetectImageSignatures;
+import uk.co.smutdetect.SmutDetectResultCache;
+import uk.co.smutdetect.SmutDetectScanIndex;
+import uk.co.smutdetect.SmutDetectScanOptions;
+import uk.co.smutdetect.SmutDetectScanTrace;
+import uk.co.smutdetect.SmutDetectSkinRegions;
 
 /**
  * 
@@ -47,21 +56,66 @@ import uk.co.smutdetect.SmutDetectImageScanner;
  */
 class SmutDetectFileIngestModule implements FileIngestModule {
 
-    private static final HashMap<Long, Long> artifactCountsForIngestJobs = new HashMap<>();
+    private static final ConcurrentHashMap<Long, SmutDetectJobCounters> countersForIngestJobs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, SmutDetectBlackboardPoster> postersForIngestJobs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, SmutDetectResultCache> resultCachesForIngestJobs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, SmutDetectPerformanceReport> reportsForIngestJobs = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, SmutDetectScanPipeline> pipelinesForIngestJobs = new ConcurrentHashMap<>();
     private static int attrId = -1;
     private final boolean skipKnownFiles;
+    private final SmutDetectFileFilter fileFilter;
+    private final SmutDetectScanOptions scanOptions;
+    private final boolean usePersistentIndex;
+    private final boolean useScanPipeline;
+    private final int pipelineQueueDepth;
+    private final boolean prioritiseScan;
+    private final int pipelineBacklog;
+    private final SmutDetectScanPipeline.InFlight inFlight = new SmutDetectScanPipeline.InFlight();
     private IngestJobContext context = null;
+    private SmutDetectJobCounters counters = null;
+    private SmutDetectResultCache resultCache = null;
+    private SmutDetectBlackboardPoster poster = null;
+    private SmutDetectPerformanceReport performanceReport = null;
+    private SmutDetectScanIndex scanIndex = null;
+    private SmutDetectScanPipeline pipeline = null;
     private static final IngestModuleReferenceCounter refCounter = new IngestModuleReferenceCounter();
     private final static String MODULE_NAME = SmutDetectIngestModuleFactory.getModuleName();
+    private final static String SCAN_INDEX_FILE = "SmutDetect" + File.separator + "ScanIndex.dat";
+    private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     SmutDetectFileIngestModule(SmutDetectIngestJobSettings settings) {
         this.skipKnownFiles = settings.skipKnownFiles();
+        this.fileFilter = settings.getFileFilter();
+        this.scanOptions = settings.getScanOptions();
+        this.usePersistentIndex = settings.usePersistentIndex();
+        this.useScanPipeline = settings.useScanPipeline();
+        this.pipelineQueueDepth = settings.getPipelineQueueDepth();
+        // without priorities a backlog would only delay the posting
+        this.prioritiseScan = useScanPipeline && settings.prioritiseScan();
+        this.pipelineBacklog = prioritiseScan ? settings.getPipelineBacklog() : pipelineQueueDepth;
     }
 
     @Override
     public void startUp(IngestJobContext context) throws IngestModuleException {
         this.context = context;
         refCounter.incrementAndGet(context.getJobId());
+        counters = getJobCounters(context.getJobId());
+        resultCache = getResultCache(context.getJobId());
+        poster = getBlackboardPoster(context.getJobId());
+        performanceReport = getPerformanceReport(context.getJobId());
+        if (useScanPipeline) {
+            pipeline = getScanPipeline(context, pipelineQueueDepth, pipelineBacklog);
+        }
+        if (usePersistentIndex) {
+            try {
+                scanIndex = SmutDetectScanIndex.acquire(new File(PlatformUtil.getUserConfigDirectory(), SCAN_INDEX_FILE));
+            } catch (IOException ex) {
+                // scan without the index rather than failing the job
+                IngestServices ingestServices = IngestServices.getInstance();
+                Logger logger = ingestServices.getLogger(SmutDetectIngestModuleFactory.getModuleName());
+                logger.log(Level.WARNING, "Failed to open the persistent scan index", ex);
+            }
+        }
         /*
         synchronized (SmutDetectFileIngestModule.class) {
             if (attrId == -1) {
@@ -99,47 +153,270 @@ class SmutDetectFileIngestModule implements FileIngestModule {
             return IngestModule.ProcessResult.ERROR;
         }
 
-        // Skip anything other than actual file system files.
-        if ((file.getType() == TskData.TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS)
-                || (file.getType() == TskData.TSK_DB_FILES_TYPE_ENUM.UNUSED_BLOCKS)) {
+        // Skip unallocated space, directories, known files (if the config
+        // allows it :D) and files ruled out by their metadata, before any
+        // of their content is read.
+        SmutDetectFileFilter.SkipReason reason = fileFilter.check(file, skipKnownFiles);
+        if (reason != null) {
+            counters.incrementSkipped(reason);
             return IngestModule.ProcessResult.OK;
         }
-
-        // Skip NSRL / known files. if the config allows it :D
-        if (skipKnownFiles && file.getKnown() == TskData.FileKnown.KNOWN) {
+        
+        FileScan scan = new FileScan(file);
+        if (pipeline != null) {
+            // read, scanned and posted by the threads of the pipeline, waits
+            // while the pipeline is full
+            pipeline.submit(scan, inFlight);
             return IngestModule.ProcessResult.OK;
         }
+        if (scan.read() && scan.scan()) {
+            scan.post();
+        }
+        
+        return IngestModule.ProcessResult.OK;
+    }
+
+    @Override
+    public void shutDown() {
+        if (pipeline != null) {
+            // the files handed over by this instance are posted or dropped
+            // first, other instances may still be handing over theirs
+            inFlight.awaitDrained();
+        }
+        poster.flush();
         
-        //skip unsupported
-        if (!parsableFormat(file)) {
-            return ProcessResult.OK;
+        // This method is thread-safe with per ingest job reference counted
+        // management of shared data.
+        reportBlackboardPostCount(context.getJobId(), context.isJobCancelled());
+        if (scanIndex != null) {
+            SmutDetectScanIndex.release();
+            scanIndex = null;
         }
+    }
 
-        try {
-            
-            ////////////////////////DO////STUFFF/////////////////////////
+    static void reportBlackboardPostCount(long ingestJobId, boolean jobCancelled) {
+        Long refCount = refCounter.decrementAndGet(ingestJobId);
+        if (refCount == 0) {
+            SmutDetectJobCounters jobCounters = countersForIngestJobs.remove(ingestJobId);
+            SmutDetectBlackboardPoster jobPoster = postersForIngestJobs.remove(ingestJobId);
+            jobPoster.shutDown();
+            SmutDetectPerformanceReport jobReport = reportsForIngestJobs.remove(ingestJobId);
+            resultCachesForIngestJobs.remove(ingestJobId);
+            SmutDetectScanPipeline jobPipeline = pipelinesForIngestJobs.remove(ingestJobId);
+            if (jobPipeline != null) {
+                jobPipeline.shutDown();
+            }
+            if (jobCancelled) {
+                return;
+            }
+            String msgText = String.format("Scanned %d images, %d answered from the result cache or scan index, %d files skipped, %d errors. Posted %d times to the blackboard in %d batches (largest %d, %.1f ms average and %.1f ms longest write)",
+                    jobCounters.getScanned(), jobCounters.getCacheHits(), jobCounters.getSkipped(), jobCounters.getErrors(),
+                    jobCounters.getPosted(), jobPoster.getBatchCount(), jobPoster.getLargestBatch(),
+                    jobPoster.getAverageFlushMillis(), jobPoster.getLongestFlushMillis());
+            IngestMessage message = IngestMessage.createMessage(
+                    IngestMessage.MessageType.INFO,
+                    MODULE_NAME,
+                    msgText,
+                    getSkippedDetailsHtml(jobCounters));
+            IngestServices.getInstance().postMessage(message);
             
-            SmutDetectCategorisedImage cImage;
-            cImage = SmutDetectImageScanner.scanImage(file);
+            // throughput in the subject, the stage percentiles and slowest
+            // files in the details
+            IngestMessage report = IngestMessage.createMessage(
+                    IngestMessage.MessageType.INFO,
+                    MODULE_NAME,
+                    jobReport.getSummary(),
+                    jobReport.getDetailsHtml());
+            IngestServices.getInstance().postMessage(report);
+        }
+    }
+
+    /**
+     * @param jobCounters counters of the finished job
+     *
+     * @return table of the skipped files by reason
+     */
+    private static String getSkippedDetailsHtml(SmutDetectJobCounters jobCounters) {
+        StringBuilder html = new StringBuilder();
+        html.append("<p>Files skipped</p><table border='0' cellpadding='2'>");
+        html.append("<tr><th>Reason</th><th>Files</th></tr>");
+        for (SmutDetectFileFilter.SkipReason reason : SmutDetectFileFilter.SkipReason.values()) {
+            long count = jobCounters.getSkipped(reason);
+            if (count > 0) {
+                html.append("<tr><td>").append(reason.getDisplayName())
+                        .append("</td><td>").append(count)
+                        .append("</td></tr>");
+            }
+        }
+        html.append("</table>");
+        return html.toString();
+    }
+
+    /**
+     * Gets the counters shared by the module instances of an ingest job, they
+     * are released with the other shared data of the job in 
+     * reportBlackboardPostCount.
+     *
+     * @param ingestJobId id of the ingest job
+     *
+     * @return the counters of the job
+     */
+    static SmutDetectJobCounters getJobCounters(long ingestJobId) {
+        return countersForIngestJobs.computeIfAbsent(ingestJobId, id -> new SmutDetectJobCounters());
+    }
+
+    /**
+     * Gets the performance report shared by the module instances of an 
+     * ingest job, it is released with the other shared data of the job in 
+     * reportBlackboardPostCount.
+     *
+     * @param ingestJobId id of the ingest job
+     *
+     * @return the performance report of the job
+     */
+    static SmutDetectPerformanceReport getPerformanceReport(long ingestJobId) {
+        return reportsForIngestJobs.computeIfAbsent(ingestJobId, id -> new SmutDetectPerformanceReport());
+    }
+
+    /**
+     * Gets the result cache shared by the module instances of an ingest job,
+     * it is released with the other shared data of the job in 
+     * reportBlackboardPostCount.
+     *
+     * @param ingestJobId id of the ingest job
+     *
+     * @return the result cache of the job
+     */
+    static SmutDetectResultCache getResultCache(long ingestJobId) {
+        return resultCachesForIngestJobs.computeIfAbsent(ingestJobId, id -> new SmutDetectResultCache());
+    }
+
+    /**
+     * Gets the blackboard poster shared by the module instances of an ingest
+     * job, it is released with the other shared data of the job in 
+     * reportBlackboardPostCount.
+     *
+     * @param ingestJobId id of the ingest job
+     *
+     * @return the blackboard poster of the job
+     */
+    static SmutDetectBlackboardPoster getBlackboardPoster(long ingestJobId) {
+        return postersForIngestJobs.computeIfAbsent(ingestJobId, id -> new SmutDetectBlackboardPoster(MODULE_NAME, getJobCounters(id)));
+    }
+
+    /**
+     * Gets the scan pipeline shared by the module instances of an ingest job,
+     * it is shut down with the release of the other shared data of the job in
+     * reportBlackboardPostCount.
+     *
+     * @param context context of the ingest job
+     * @param queueDepth most files read or scanned at a time
+     * @param backlog most files waiting to be read
+     *
+     * @return the scan pipeline of the job
+     */
+    static SmutDetectScanPipeline getScanPipeline(IngestJobContext context, int queueDepth, int backlog) {
+        return pipelinesForIngestJobs.computeIfAbsent(context.getJobId(), id -> new SmutDetectScanPipeline(context, queueDepth, backlog));
+    }
+
+    /**
+     * The work on one file that passed the file filter, in the stages of the
+     * scan pipeline. Without the pipeline the ingest thread runs the stages
+     * one after the other.
+     */
+    private final class FileScan implements SmutDetectScanPipeline.FileTask {
+
+        private final AbstractFile file;
+        private final SmutDetectScanTrace trace = new SmutDetectScanTrace();
+        private SmutDetectEvidenceReader evidence = null;
+        private Collection<BlackboardAttribute> attributes = null;
+        private boolean cached = false;
+        private double percentage = 0;
+        private volatile int priority;
+        // time spent in the stages, not waiting between them
+        private long nanos = 0;
+
+        FileScan(AbstractFile file) {
+            this.file = file;
+            this.priority = prioritiseScan ? SmutDetectScanPriority.fromMetadata(file) : SmutDetectScanPriority.NEUTRAL;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public boolean read() {
+            //skip unsupported
+            long start = System.nanoTime();
+            // the chunk read for the signature is reused by the decoder
+            evidence = new SmutDetectEvidenceReader(file, scanOptions.getMaxBufferedFileBytes());
+            boolean parsable = parsableFormat(evidence);
+            performanceReport.recordSignatureCheck(System.nanoTime() - start);
+            if (!parsable) {
+                counters.incrementSkipped(SmutDetectFileFilter.SkipReason.SIGNATURE);
+                return false;
+            }
+            if (pipeline != null) {
+                // scanned on another thread while this one reads the next file
+                try {
+                    evidence.readAhead();
+                } catch (TskCoreException ex) {
+                    // the scanner logs the unreadable file
+                }
+            }
+            if (prioritiseScan) {
+                priority = SmutDetectScanPriority.fromPreview(priority, SmutDetectImagePreview.read(evidence));
+            }
+            nanos += System.nanoTime() - start;
+            return true;
+        }
+
+        @Override
+        public boolean scan() {
+            long start = System.nanoTime();
+            SmutDetectCategorisedImage cImage = scanImageCached(evidence, trace);
+            cached = (cImage != null) && (trace.getFormatName() == null);
+            // the content of a buffered file is not needed for posting
+            evidence = null;
             int roundedPercentage = 0;
-            
 
-            
-            if(cImage != null) {
-                
-                                // Make a result collection
-                Collection<BlackboardAttribute> attributes = new ArrayList<BlackboardAttribute>();               
-                roundedPercentage = (int)Math.floor((cImage.getReadableAveragePercentage()/10) * 10);
-                // Add file comment
-                attributes.add(new BlackboardAttribute(
-                        BlackboardAttribute.ATTRIBUTE_TYPE.TSK_COMMENT.getTypeID(), 
+            if (cImage == null) {
+                // could not be decoded
+                counters.addErrors(1);
+                performanceReport.recordImage(file, trace, cached, 0, nanos + System.nanoTime() - start);
+                return false;
+            }
+
+            percentage = cImage.getPreciseAveragePercentage() * 100;
+
+            // Make a result collection
+            attributes = new ArrayList<BlackboardAttribute>();               
+            roundedPercentage = (int)Math.floor((cImage.getReadableAveragePercentage()/10) * 10);
+            // Add file comment
+            attributes.add(new BlackboardAttribute(
+                    BlackboardAttribute.ATTRIBUTE_TYPE.TSK_COMMENT.getTypeID(), 
+                    MODULE_NAME,
+                    cImage.toString()));
+            attributes.add(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_SET_NAME.getTypeID(),
+                    MODULE_NAME,
+                    ("SmutDetect|" + String.format("%03d", roundedPercentage) + "s")));
+            // Add the skin regions, Autopsy has no ratio attribute so the
+            // ratios go into a description sortable as text
+            SmutDetectSkinRegions regions = cImage.getSkinRegions();
+            if (regions != null) {
+                attributes.add(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_COUNT.getTypeID(),
                         MODULE_NAME,
-                        cImage.toString()));
-                attributes.add(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_SET_NAME.getTypeID(),
+                        regions.getRegionCount()));
+                attributes.add(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_DESCRIPTION.getTypeID(),
                         MODULE_NAME,
-                        ("SmutDetect|" + String.format("%03d", roundedPercentage) + "s")));
-                
-                // Add  tag name
+                        String.format("SmutDetect regions|largest %03d%%|bbox %03d%%",
+                                Math.round(regions.getLargestRegionRatio() * 100),
+                                Math.round(regions.getBoundingBoxCoverage() * 100))));
+            }
+            
+            // Add  tag name
 //                attributes.add(new BlackboardAttribute(
 //                        //BlackboardAttribute.ATTRIBUTE_TYPE.TSK_SET_NAME.getTypeID(),
 //                        BlackboardAttribute.ATTRIBUTE_TYPE.TSK_TAG_NAME.getTypeID(),
@@ -149,8 +426,8 @@ class SmutDetectFileIngestModule implements FileIngestModule {
 //                attributes.add(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_CATEGORY.getTypeID(),
 //                        MODULE_NAME,
 //                        "SmutDetect_Category"));
-               
-                // testing the other attributes:
+           
+            // testing the other attributes:
 //                attributes.add(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD.getTypeID(),
 //                        MODULE_NAME,
 //                        "RW1_TSK_KEYWORD"));
@@ -158,8 +435,8 @@ class SmutDetectFileIngestModule implements FileIngestModule {
 //                        SmutDetectIngestModuleFactory.getModuleName(),
 //                        "RW1_TSK_FLAG"));
 
-                
-                // Test RW1
+            
+            // Test RW1
 //                BlackboardArtifact parent = file.newArtifact(BlackboardArtifact.ARTIFACT_TYPE.TSK_INTERESTING_FILE_HIT);
 //                parent.addAttribute(new BlackboardAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_SET_NAME.getTypeID(),
 //                        MODULE_NAME,
@@ -169,171 +446,193 @@ class SmutDetectFileIngestModule implements FileIngestModule {
 //                        MODULE_NAME,
 //                        parent.getArtifactID()));
 
-                //parent.getSleuthkitCase().
+            //parent.getSleuthkitCase().
 
-                // Add the attributes, if there are any, to a new artifact
+            // Add the attributes, if there are any, to a new artifact
 
-                // Add the to the general info artifact for the file. In a
-                // real module, you would likely have more complex data types 
-                // and be making more specific artifacts.
-                //BlackboardArtifact art = file.getGenInfoArtifact();
-                //art.addAttribute(attr);
+            // Add the to the general info artifact for the file. In a
+            // real module, you would likely have more complex data types 
+            // and be making more specific artifacts.
+            //BlackboardArtifact art = file.getGenInfoArtifact();
+            //art.addAttribute(attr);
 
-                if (!attributes.isEmpty()) {                    
-                    // add file tags to the case:
-                    BlackboardArtifact bba = file.newArtifact(BlackboardArtifact.ARTIFACT_TYPE.TSK_INTERESTING_FILE_HIT);    
-                    bba.addAttributes(attributes);              
-                }
-                
-                // This method is thread-safe with per ingest job reference counted
-                // management of shared data.
-                addToBlackboardPostCount(context.getJobId(), 1L);
-
-                // Fire an event to notify any listeners for blackboard postings.
-                ModuleDataEvent event = new ModuleDataEvent(SmutDetectIngestModuleFactory.getModuleName(), ARTIFACT_TYPE.TSK_INTERESTING_FILE_HIT);
-                IngestServices.getInstance().fireModuleDataEvent(event);
-            } // end if SmutDetectCategorisedImage is not empty 
-            
-            return IngestModule.ProcessResult.OK;
+            nanos += System.nanoTime() - start;
+            return true;
+        }
 
-        } catch (TskCoreException ex) {
-            IngestServices ingestServices = IngestServices.getInstance();
-            Logger logger = ingestServices.getLogger(SmutDetectIngestModuleFactory.getModuleName());
-            logger.log(Level.SEVERE, "Error processing file (id = " + file.getId() + ")", ex);
-            return IngestModule.ProcessResult.ERROR;
+        @Override
+        public void post() {
+            long postNanos = 0;
+            if (!attributes.isEmpty()) {                    
+                // add file tags to the case, written in batches
+                long postStart = System.nanoTime();
+                poster.post(file, attributes);
+                postNanos = System.nanoTime() - postStart;
+            }
+            
+            // write what is queued rather than wait for shut down
+            if (context.isJobCancelled()) {
+                poster.flush();
+            }
+            if (percentage >= scanOptions.getTriageThresholdPercent()) {
+                performanceReport.recordHit();
+            }
+            performanceReport.recordImage(file, trace, cached, postNanos, nanos + postNanos);
         }
     }
 
-    @Override
-    public void shutDown() {
-        if (!context.isJobCancelled()) {
-            // This method is thread-safe with per ingest job reference counted
-            // management of shared data.
-            reportBlackboardPostCount(context.getJobId());
+    /**
+     * Scans the image unless a copy of the same content has already been 
+     * scanned in this job or, if enabled, in an earlier case. Files already
+     * hashed by the hash lookup module are looked up by their MD5. Files 
+     * without a hash small enough to be buffered are hashed from memory and
+     * looked up before decoding. Larger ones are not looked up, reading them
+     * twice costs more than the scan saves; if the scan index is enabled 
+     * they are hashed while they are decoded so a later case, where the hash
+     * lookup module gives their copies an MD5, finds the result.
+     *
+     * @param evidence reader of the image file to scan
+     * @param trace records the stages of the scan, left empty if the result
+     * was cached
+     *
+     * @return the result container or null if the file could not be decoded
+     */
+    private SmutDetectCategorisedImage scanImageCached(SmutDetectEvidenceReader evidence, SmutDetectScanTrace trace) {
+        SmutDetectCategorisedImage cImage;
+        String md5Hash = evidence.getFile().getMd5Hash();
+        MessageDigest md5 = null;
+
+        if (md5Hash == null || md5Hash.isEmpty()) {
+            md5Hash = null;
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException ex) {
+                return scanImage(evidence, trace);
+            }
+            if (evidence.isBuffered()) {
+                try {
+                    evidence.updateDigest(md5);
+                } catch (TskCoreException ex) {
+                    // the scanner logs the unreadable file
+                    return scanImage(evidence, trace);
+                }
+                md5Hash = toHex(md5.digest());
+            }
+        }
+
+        if (md5Hash != null) {
+            cImage = lookUpResult(md5Hash);
+            if (cImage != null) {
+                counters.incrementCacheHits();
+                return cImage;
+            }
+            cImage = scanImage(evidence, trace);
+            if (cImage != null) {
+                storeResult(md5Hash, cImage);
+            }
+            return cImage;
+        }
+
+        if (scanIndex == null) {
+            return scanImage(evidence, trace);
+        }
+
+        // hashed by the evidence reader as the decoder reads the chunks
+        evidence.startDigest(md5);
+        cImage = scanImage(evidence, trace);
+        if (cImage != null) {
+            // the decoder may stop before the end of the file
+            try {
+                byte[] hash = evidence.finishDigest();
+                if (hash != null) {
+                    storeResult(toHex(hash), cImage);
+                }
+            } catch (TskCoreException ex) {
+                // the result is posted, just not stored in the index
+            }
         }
+        return cImage;
     }
 
-    synchronized static void addToBlackboardPostCount(long ingestJobId, long countToAdd) {
-        Long fileCount = artifactCountsForIngestJobs.get(ingestJobId);
+    private SmutDetectCategorisedImage scanImage(SmutDetectEvidenceReader evidence, SmutDetectScanTrace trace) {
+        SmutDetectCategorisedImage cImage = SmutDetectImageScanner.scanImage(evidence, scanOptions, trace);
+        if (cImage != null) {
+            counters.incrementScanned();
+        }
+        return cImage;
+    }
 
-        // Ensures that this job has an entry
-        if (fileCount == null) {
-            fileCount = 0L;
-            artifactCountsForIngestJobs.put(ingestJobId, fileCount);
+    /**
+     * Looks the content up in the result cache of the job, then in the 
+     * persistent scan index.
+     */
+    private SmutDetectCategorisedImage lookUpResult(String md5Hash) {
+        SmutDetectCategorisedImage cImage = resultCache.get(md5Hash);
+        if (cImage == null && scanIndex != null) {
+            cImage = scanIndex.get(md5Hash, scanOptions.getResultFingerprint());
+            if (cImage != null) {
+                resultCache.put(md5Hash, cImage);
+            }
         }
+        return cImage;
+    }
 
-        fileCount += countToAdd;
-        artifactCountsForIngestJobs.put(ingestJobId, fileCount);
+    private void storeResult(String md5Hash, SmutDetectCategorisedImage cImage) {
+        resultCache.put(md5Hash, cImage);
+        if (scanIndex != null) {
+            try {
+                scanIndex.put(md5Hash, scanOptions.getResultFingerprint(), cImage);
+            } catch (IOException ex) {
+                IngestServices ingestServices = IngestServices.getInstance();
+                Logger logger = ingestServices.getLogger(SmutDetectIngestModuleFactory.getModuleName());
+                logger.log(Level.WARNING, "Failed to add to the persistent scan index", ex);
+            }
+        }
     }
 
-    synchronized static void reportBlackboardPostCount(long ingestJobId) {
-        Long refCount = refCounter.decrementAndGet(ingestJobId);
-        if (refCount == 0) {
-            Long filesCount = artifactCountsForIngestJobs.remove(ingestJobId);
-            String msgText = String.format("Posted %d times to the blackboard", filesCount);
-            IngestMessage message = IngestMessage.createMessage(
-                    IngestMessage.MessageType.INFO,
-                    MODULE_NAME,
-                    msgText);
-            IngestServices.getInstance().postMessage(message);
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
         }
+        return new String(hex);
     }
     
    /**
     * Checks if should try to attempt to scan for skin tone colours.
-    * Currently checks if JPEG, BMP, PNG, GIF or TIFF
-    * image (by signature)
+    * Currently checks if the signature is that of an image format an
+    * installed image reader decodes, see SmutDetectImageSignatures.
     *
-    * @param f file to be checked
+    * @param f reader of the file to be checked
     *
     * @return true if to be processed
     */
-    private boolean parsableFormat(AbstractFile f) {
+    private boolean parsableFormat(SmutDetectEvidenceReader f) {
         return isImageFileHeader(f);
 
     }
     
     /**
-    * Check if is image file based on header, does not parse files less than 100
-    * bytes.
+    * Check if is image file based on header, the size was checked by the
+    * file filter. Images of formats without an installed image reader (WebP, HEIF,
+    * PSD and others without their ImageIO plugins) are not parsed.
     *
-    * @param file
+    * @param file reader of the file, keeps the chunk holding the header
     *
     * @return true if image file, false otherwise
     */
-    @SuppressWarnings("unchecked")
-    private static boolean isImageFileHeader(AbstractFile file) {
-        
-        // if less than 100 bytes, do not parse
-        if (file.getSize() < 100) {
-            return false;
-        }
+    private static boolean isImageFileHeader(SmutDetectEvidenceReader file) {
         
         // read bytes if unable do not parse
-        byte[] fileHeaderBuffer = new byte[6];
-        int bytesRead;
+        SmutDetectImageSignatures.Signature signature;
         try {
-            bytesRead = file.read(fileHeaderBuffer, 0, 6);
+            signature = file.getSignature();
         } catch (TskCoreException ex) {
-            //ignore if can't read the first few bytes, not a JPEG
+            //ignore if can't read the first few bytes, not an image
             return false;
         }
-        if (bytesRead != 6) {
-            return false;
-        }
-       /**
-        * Check for the Image file headers Starting with most likely image files first.
-        * Since Java bytes are signed, we cast them to an int first.
-        * @TODO add config check if all image types are to be scanned
-        * 
-        * Some more signatures from: http://www.garykessler.net/library/file_sigs.html
-        * 
-        * FF D8 FF              ÿØÿ       any JPG
-        * 00 00 00 00 6A 50     ....jP    a JPEG 2000 file
-        * 47 49 46 38 37 61     GIF87a    A Gif File
-        * 47 49 46 38 39 61 	GIF89a    A Gif File
-        * 49 20 49              I I       TIF, TIFF - Tagged Image File Format file
-        * 49 49 2A 00           II*.      TIF, TIFF - Tagged Image File Format file (little
-        *                                 endian, i.e., LSB first in the byte; Intel) 
-        * 4D 4D 00 2A 	  	MM.*      TIF, TIFF - Tagged Image File Format file (big
-        *                                 endian, i.e., LSB last in the byte; Motorola)
-        * 4D 4D 00 2B 	  	MM.+      TIF, TIFF - BigTIFF files; Tagged Image File Format files >4 GB
-        * 89 50 4E 47 0D 0A 1A 0A   ‰PNG....    PNG - Portable Network Graphics
-        * 42 4D 	  	BM        BMP - Windows Bitmap image
-        * 
-        */
-        if (
-            // if JPG [FF D8 FF]   
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0xFF) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0xD8) && 
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0xFF))
-            || //or if BMP [42 4D]
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x42) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x4d))
-            || // or if TIFF [49 20 49]
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x49) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x20) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x49))
-            || // or if PNG [89 50 4E 47]; not testing for the 4 dots
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x89) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x50) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x4E) && ((int) (fileHeaderBuffer[3] & 0xFF) == 0x47)) 
-            || // or if GIF [47 49 46 38]; not testing for subtypes 7a/9a
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x47) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x49) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x46) && ((int) (fileHeaderBuffer[3] & 0xFF) == 0x38))     
-            || // or if TIFF [49 49 2A 00]
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x49) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x49) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x2A) && ((int) (fileHeaderBuffer[3] & 0xFF) == 0x00))
-            || // or if TIFF [4D 4D 00 2A]
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x4D) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x4D) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x00) && ((int) (fileHeaderBuffer[3] & 0xFF) == 0x2A)) 
-            || // or if TIFF [4D 4D 00 2B]
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x4D) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x4D) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x00) && ((int) (fileHeaderBuffer[3] & 0xFF) == 0x2B))    
-            || // or if JPEG 2000 [00 00 00 00 6A 50]
-            (((int) (fileHeaderBuffer[0] & 0xFF) == 0x00) && ((int) (fileHeaderBuffer[1] & 0xFF) == 0x00) &&
-                ((int) (fileHeaderBuffer[2] & 0xFF) == 0x00) && ((int) (fileHeaderBuffer[3] & 0xFF) == 0x00) && 
-                ((int) (fileHeaderBuffer[4] & 0xFF) == 0x6A)&& ((int) (fileHeaderBuffer[5] & 0xFF) == 0x50))
-            ) {
-            return true;
-        } // end if is Image header
-        return false;
+        return (signature != null) && signature.isDecodable();
     }
 
 }
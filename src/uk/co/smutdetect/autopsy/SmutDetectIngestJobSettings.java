@@ -21,6 +21,7 @@
 package uk.co.smutdetect.autopsy;
 
 import org.sleuthkit.autopsy.ingest.IngestModuleIngestJobSettings;
+import uk.co.smutdetect.SmutDetectScanOptions;
 
 /**
  * Ingest job options for sample ingest module instances.
@@ -29,6 +30,13 @@ public class SmutDetectIngestJobSettings implements IngestModuleIngestJobSetting
     
     private static final long serialVersionUID = 1L;
     private boolean skipKnownFiles = true;
+    private SmutDetectScanOptions scanOptions = new SmutDetectScanOptions();
+    private boolean usePersistentIndex = false;
+    private SmutDetectFileFilter fileFilter = new SmutDetectFileFilter();
+    private boolean useScanPipeline = false;
+    private int pipelineQueueDepth = 0;
+    private boolean prioritiseScan = false;
+    private int pipelineBacklog = 0;
 
     SmutDetectIngestJobSettings() {
     }
@@ -49,4 +57,116 @@ public class SmutDetectIngestJobSettings implements IngestModuleIngestJobSetting
     boolean skipKnownFiles() {
         return skipKnownFiles;
     }
+
+    void setUsePersistentIndex(boolean enabled) {
+        usePersistentIndex = enabled;
+    }
+
+    /**
+     * Gets whether results are looked up in and stored to the scan index
+     * shared by all cases.
+     *
+     * @return True if the persistent scan index is used.
+     */
+    boolean usePersistentIndex() {
+        return usePersistentIndex;
+    }
+
+    void setUseScanPipeline(boolean enabled) {
+        useScanPipeline = enabled;
+    }
+
+    /**
+     * Gets whether the files are read, scanned and posted by the threads of
+     * the scan pipeline instead of the ingest threads.
+     *
+     * @return True if the scan pipeline is used.
+     */
+    boolean useScanPipeline() {
+        return useScanPipeline;
+    }
+
+    /**
+     * @param depth most files read or scanned by the scan pipeline at a
+     * time, 0 for the default
+     */
+    void setPipelineQueueDepth(int depth) {
+        pipelineQueueDepth = depth;
+    }
+
+    /**
+     * Gets the most files read or scanned by the scan pipeline at a time, two
+     * per core unless set. Each buffered file being read or scanned holds its
+     * content in memory.
+     *
+     * @return The queue depth of the scan pipeline.
+     */
+    int getPipelineQueueDepth() {
+        if (pipelineQueueDepth <= 0) {
+            return 2 * Runtime.getRuntime().availableProcessors();
+        }
+        return pipelineQueueDepth;
+    }
+
+    void setPrioritiseScan(boolean enabled) {
+        prioritiseScan = enabled;
+    }
+
+    /**
+     * Gets whether the scan pipeline scans the files most likely to be hits
+     * first, see SmutDetectScanPriority.
+     *
+     * @return True if the files are scanned by priority.
+     */
+    boolean prioritiseScan() {
+        return prioritiseScan;
+    }
+
+    /**
+     * @param backlog most files waiting in the scan pipeline to be read, 0
+     * for the default
+     */
+    void setPipelineBacklog(int backlog) {
+        pipelineBacklog = backlog;
+    }
+
+    /**
+     * Gets the most files handed to the scan pipeline and waiting to be
+     * read. Only the files waiting in the backlog are ordered by priority, a
+     * waiting file holds no content.
+     *
+     * @return The backlog size of the scan pipeline.
+     */
+    int getPipelineBacklog() {
+        if (pipelineBacklog <= 0) {
+            return 4096;
+        }
+        return pipelineBacklog;
+    }
+
+    /**
+     * Gets the options passed on to the image scanner. Settings saved before
+     * the options existed are deserialized without them and get the defaults.
+     *
+     * @return The scan options.
+     */
+    SmutDetectScanOptions getScanOptions() {
+        if (scanOptions == null) {
+            scanOptions = new SmutDetectScanOptions();
+        }
+        return scanOptions;
+    }
+
+    /**
+     * Gets the filter deciding from the metadata of a file whether to read
+     * it. Settings saved before the filter existed get the defaults.
+     *
+     * @return The file filter.
+     */
+    SmutDetectFileFilter getFileFilter() {
+        if (fileFilter == null) {
+            fileFilter = new SmutDetectFileFilter();
+        }
+        return fileFilter;
+    }
 }
\ No newline at end of file
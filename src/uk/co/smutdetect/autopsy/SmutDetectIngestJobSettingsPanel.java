@@ -22,22 +22,43 @@ package uk.co.smutdetect.autopsy;
 
 import org.sleuthkit.autopsy.ingest.IngestModuleIngestJobSettings;
 import org.sleuthkit.autopsy.ingest.IngestModuleIngestJobSettingsPanel;
+import uk.co.smutdetect.SmutDetectScanOptions;
 
 /**
  * UI component used to make per ingest job settings for sample ingest modules.
  */
 public class SmutDetectIngestJobSettingsPanel extends IngestModuleIngestJobSettingsPanel {
 
+    private final SmutDetectIngestJobSettings settings;
+
     /**
      * Creates new form SampleIngestModuleIngestJobSettings
      */
     public SmutDetectIngestJobSettingsPanel(SmutDetectIngestJobSettings settings) {
+        this.settings = settings;
         initComponents();
         customizeComponents(settings);
     }
 
     private void customizeComponents(SmutDetectIngestJobSettings settings) {
         skipKnownFilesCheckBox.setSelected(settings.skipKnownFiles());
+        parallelScanCheckBox.setSelected(settings.getScanOptions().getParallelScan());
+        // the spinner is in megapixels
+        long megapixels = settings.getScanOptions().getParallelPixelThreshold() / 1000000L;
+        parallelPixelThresholdSpinner.setValue((int) Math.max(1L, Math.min(1000L, megapixels)));
+        subsampledDecodeCheckBox.setSelected(settings.getScanOptions().getSubsampledDecode());
+        persistentIndexCheckBox.setSelected(settings.usePersistentIndex());
+        earlyExitScanCheckBox.setSelected(settings.getScanOptions().getEarlyExitScan());
+        skipByMimeTypeCheckBox.setSelected(settings.getFileFilter().skipByMimeType());
+        skipByExtensionCheckBox.setSelected(settings.getFileFilter().skipByExtension());
+        thumbnailTriageCheckBox.setSelected(settings.getScanOptions().getThumbnailTriage());
+        SmutDetectScanOptions.JpegEngine jpegEngine = settings.getScanOptions().getJpegEngine();
+        blockAveragesCheckBox.setSelected(jpegEngine != SmutDetectScanOptions.JpegEngine.PIXELS);
+        blockAveragesCheckedCheckBox.setSelected(jpegEngine != SmutDetectScanOptions.JpegEngine.BLOCK_AVERAGES);
+        streamingScanCheckBox.setSelected(settings.getScanOptions().getStreamingScan());
+        scanPipelineCheckBox.setSelected(settings.useScanPipeline());
+        prioritiseScanCheckBox.setSelected(settings.prioritiseScan());
+        skinRegionsCheckBox.setSelected(settings.getScanOptions().getSkinRegions());
     }
 
     /**
@@ -47,7 +68,28 @@ public class SmutDetectIngestJobSettingsPanel extends IngestModuleIngestJobSetti
      */
     @Override
     public IngestModuleIngestJobSettings getSettings() {
-        return new SmutDetectIngestJobSettings(skipKnownFilesCheckBox.isSelected());
+        settings.setSkipKnownFiles(skipKnownFilesCheckBox.isSelected());
+        settings.getScanOptions().setParallelScan(parallelScanCheckBox.isSelected());
+        settings.getScanOptions().setParallelPixelThreshold(
+                ((Number) parallelPixelThresholdSpinner.getValue()).longValue() * 1000000L);
+        settings.getScanOptions().setSubsampledDecode(subsampledDecodeCheckBox.isSelected());
+        settings.setUsePersistentIndex(persistentIndexCheckBox.isSelected());
+        settings.getScanOptions().setEarlyExitScan(earlyExitScanCheckBox.isSelected());
+        settings.getFileFilter().setSkipByMimeType(skipByMimeTypeCheckBox.isSelected());
+        settings.getFileFilter().setSkipByExtension(skipByExtensionCheckBox.isSelected());
+        settings.getScanOptions().setThumbnailTriage(thumbnailTriageCheckBox.isSelected());
+        if (!blockAveragesCheckBox.isSelected()) {
+            settings.getScanOptions().setJpegEngine(SmutDetectScanOptions.JpegEngine.PIXELS);
+        } else if (blockAveragesCheckedCheckBox.isSelected()) {
+            settings.getScanOptions().setJpegEngine(SmutDetectScanOptions.JpegEngine.BLOCK_AVERAGES_CHECKED);
+        } else {
+            settings.getScanOptions().setJpegEngine(SmutDetectScanOptions.JpegEngine.BLOCK_AVERAGES);
+        }
+        settings.getScanOptions().setStreamingScan(streamingScanCheckBox.isSelected());
+        settings.setUseScanPipeline(scanPipelineCheckBox.isSelected());
+        settings.setPrioritiseScan(prioritiseScanCheckBox.isSelected());
+        settings.getScanOptions().setSkinRegions(skinRegionsCheckBox.isSelected());
+        return settings;
     }
 
     /**
@@ -60,27 +102,136 @@ public class SmutDetectIngestJobSettingsPanel extends IngestModuleIngestJobSetti
     private void initComponents() {
 
         skipKnownFilesCheckBox = new javax.swing.JCheckBox();
+        parallelScanCheckBox = new javax.swing.JCheckBox();
+        parallelPixelThresholdLabel = new javax.swing.JLabel();
+        parallelPixelThresholdSpinner = new javax.swing.JSpinner();
+        subsampledDecodeCheckBox = new javax.swing.JCheckBox();
+        persistentIndexCheckBox = new javax.swing.JCheckBox();
+        earlyExitScanCheckBox = new javax.swing.JCheckBox();
+        skipByMimeTypeCheckBox = new javax.swing.JCheckBox();
+        skipByExtensionCheckBox = new javax.swing.JCheckBox();
+        thumbnailTriageCheckBox = new javax.swing.JCheckBox();
+        blockAveragesCheckBox = new javax.swing.JCheckBox();
+        blockAveragesCheckedCheckBox = new javax.swing.JCheckBox();
+        streamingScanCheckBox = new javax.swing.JCheckBox();
+        scanPipelineCheckBox = new javax.swing.JCheckBox();
+        prioritiseScanCheckBox = new javax.swing.JCheckBox();
+        skinRegionsCheckBox = new javax.swing.JCheckBox();
 
         org.openide.awt.Mnemonics.setLocalizedText(skipKnownFilesCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.skipKnownFilesCheckBox.text")); // NOI18N
 
+        org.openide.awt.Mnemonics.setLocalizedText(parallelScanCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.parallelScanCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(parallelPixelThresholdLabel, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.parallelPixelThresholdLabel.text")); // NOI18N
+
+        parallelPixelThresholdSpinner.setModel(new javax.swing.SpinnerNumberModel(20, 1, 1000, 1));
+
+        org.openide.awt.Mnemonics.setLocalizedText(subsampledDecodeCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.subsampledDecodeCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(persistentIndexCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.persistentIndexCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(earlyExitScanCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.earlyExitScanCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(skipByMimeTypeCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.skipByMimeTypeCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(skipByExtensionCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.skipByExtensionCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(thumbnailTriageCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.thumbnailTriageCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(blockAveragesCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.blockAveragesCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(blockAveragesCheckedCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.blockAveragesCheckedCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(streamingScanCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.streamingScanCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(scanPipelineCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.scanPipelineCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(prioritiseScanCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.prioritiseScanCheckBox.text")); // NOI18N
+
+        org.openide.awt.Mnemonics.setLocalizedText(skinRegionsCheckBox, org.openide.util.NbBundle.getMessage(SmutDetectIngestJobSettingsPanel.class, "SmutDetectIngestJobSettingsPanel.skinRegionsCheckBox.text")); // NOI18N
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(this);
         this.setLayout(layout);
         layout.setHorizontalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
-                .addComponent(skipKnownFilesCheckBox)
-                .addContainerGap(255, Short.MAX_VALUE))
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(skipKnownFilesCheckBox)
+                    .addComponent(parallelScanCheckBox)
+                    .addGroup(layout.createSequentialGroup()
+                        .addGap(21, 21, 21)
+                        .addComponent(parallelPixelThresholdLabel)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(parallelPixelThresholdSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, 60, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addComponent(subsampledDecodeCheckBox)
+                    .addComponent(persistentIndexCheckBox)
+                    .addComponent(earlyExitScanCheckBox)
+                    .addComponent(skipByMimeTypeCheckBox)
+                    .addComponent(skipByExtensionCheckBox)
+                    .addComponent(thumbnailTriageCheckBox)
+                    .addComponent(blockAveragesCheckBox)
+                    .addComponent(blockAveragesCheckedCheckBox)
+                    .addComponent(streamingScanCheckBox)
+                    .addComponent(scanPipelineCheckBox)
+                    .addComponent(prioritiseScanCheckBox)
+                    .addComponent(skinRegionsCheckBox))
+                .addContainerGap(155, Short.MAX_VALUE))
         );
         layout.setVerticalGroup(
             layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
                 .addComponent(skipKnownFilesCheckBox)
-                .addContainerGap(270, Short.MAX_VALUE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(parallelScanCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(parallelPixelThresholdLabel)
+                    .addComponent(parallelPixelThresholdSpinner, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(subsampledDecodeCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(persistentIndexCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(earlyExitScanCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(skipByMimeTypeCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(skipByExtensionCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(thumbnailTriageCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(blockAveragesCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(blockAveragesCheckedCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(streamingScanCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(scanPipelineCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(prioritiseScanCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(skinRegionsCheckBox)
+                .addContainerGap(40, Short.MAX_VALUE))
         );
     }// </editor-fold>//GEN-END:initComponents
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JCheckBox blockAveragesCheckBox;
+    private javax.swing.JCheckBox blockAveragesCheckedCheckBox;
+    private javax.swing.JCheckBox earlyExitScanCheckBox;
+    private javax.swing.JLabel parallelPixelThresholdLabel;
+    private javax.swing.JSpinner parallelPixelThresholdSpinner;
+    private javax.swing.JCheckBox parallelScanCheckBox;
+    private javax.swing.JCheckBox persistentIndexCheckBox;
+    private javax.swing.JCheckBox prioritiseScanCheckBox;
+    private javax.swing.JCheckBox scanPipelineCheckBox;
+    private javax.swing.JCheckBox skinRegionsCheckBox;
+    private javax.swing.JCheckBox skipByExtensionCheckBox;
+    private javax.swing.JCheckBox skipByMimeTypeCheckBox;
     private javax.swing.JCheckBox skipKnownFilesCheckBox;
+    private javax.swing.JCheckBox streamingScanCheckBox;
+    private javax.swing.JCheckBox subsampledDecodeCheckBox;
+    private javax.swing.JCheckBox thumbnailTriageCheckBox;
     // End of variables declaration//GEN-END:variables
 }
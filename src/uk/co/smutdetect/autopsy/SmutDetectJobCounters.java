@@ -0,0 +1,112 @@
+/**
+ * SmutDetect4Autopsy
+ * Copyright (C) 2014 Rajmund Witt
+ * 
+ * Derived from Sample Module provided with Autopsy 3.1.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package uk.co.smutdetect.autopsy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what happened to the files of an ingest job. The counters are
+ * striped, the ingest threads update them without contending on a lock and
+ * they are only summed for the message at the end of the job.
+ *
+ * Shared by the module instances of an ingest job.
+ */
+class SmutDetectJobCounters {
+
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder[] skipped = new LongAdder[SmutDetectFileFilter.SkipReason.values().length];
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder posted = new LongAdder();
+
+    SmutDetectJobCounters() {
+        for (int i = 0; i < skipped.length; i++) {
+            skipped[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * An image was decoded and scanned.
+     */
+    void incrementScanned() {
+        scanned.increment();
+    }
+
+    /**
+     * The result of an image was taken from the result cache or the
+     * persistent scan index.
+     */
+    void incrementCacheHits() {
+        cacheHits.increment();
+    }
+
+    /**
+     * A file was not scanned.
+     *
+     * @param reason why the file was skipped
+     */
+    void incrementSkipped(SmutDetectFileFilter.SkipReason reason) {
+        skipped[reason.ordinal()].increment();
+    }
+
+    /**
+     * @param count number of images that could not be decoded or artifacts
+     * that could not be written
+     */
+    void addErrors(long count) {
+        errors.add(count);
+    }
+
+    /**
+     * @param count number of artifacts written to the blackboard
+     */
+    void addPosted(long count) {
+        posted.add(count);
+    }
+
+    long getScanned() {
+        return scanned.sum();
+    }
+
+    long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    long getSkipped() {
+        long sum = 0;
+        for (LongAdder adder : skipped) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    long getSkipped(SmutDetectFileFilter.SkipReason reason) {
+        return skipped[reason.ordinal()].sum();
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    long getPosted() {
+        return posted.sum();
+    }
+}
@@ -0,0 +1,422 @@
+/**
+ * SmutDetect4Autopsy
+ * Copyright (C) 2014 Rajmund Witt
+ * 
+ * Derived from Sample Module provided with Autopsy 3.1.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package uk.co.smutdetect.autopsy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.sleuthkit.datamodel.AbstractFile;
+import uk.co.smutdetect.SmutDetectScanTrace;
+
+/**
+ * Collects the time spent in each stage of processing a file, the bytes read
+ * and the pixels scanned per image format and the slowest files of an ingest
+ * job, for the performance report posted when the job ends. For triage,
+ * the time from the start of the job to the first hits is kept as well.
+ *
+ * The values go into log-linear histograms of atomic counters (8 buckets per
+ * power of two, percentiles are within about 6% of the recorded values), the
+ * ingest threads record without taking a lock. Only a file slower than the
+ * slowest files kept so far takes the lock of the list.
+ *
+ * Shared by the module instances of an ingest job.
+ */
+class SmutDetectPerformanceReport {
+
+    enum Stage {
+
+        SIGNATURE("Signature check"),
+        OPEN("Stream open"),
+        DECODE("Decode"),
+        SCAN("Pixel scan"),
+        PERCENTAGES("Percentages"),
+        POST("Blackboard post"),
+        TOTAL("Whole file");
+
+        private final String displayName;
+
+        Stage(String displayName) {
+            this.displayName = displayName;
+        }
+
+        String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    static final int DEFAULT_SLOWEST_FILES = 10;
+
+    // images answered from the result cache or scan index
+    static final String CACHED_FORMAT = "cached";
+    // no image reader recognised the content
+    static final String UNKNOWN_FORMAT = "unknown";
+
+    // hits after which the time since the start of the job is reported
+    static final int[] HIT_MILESTONES = {1, 10, 100, 1000};
+
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLongArray hitMilestoneNanos = new AtomicLongArray(HIT_MILESTONES.length);
+    private final int slowestFilesKept;
+    private final Histogram[] stages = newStageHistograms();
+    private final ConcurrentHashMap<String, FormatStats> formats = new ConcurrentHashMap<>();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder pixelsScanned = new LongAdder();
+
+    // guarded by itself, the fastest of the slowest files at the head
+    private final PriorityQueue<SlowFile> slowestFiles = new PriorityQueue<>();
+    private volatile long slowestFilesThreshold = 0;
+
+    SmutDetectPerformanceReport() {
+        this(DEFAULT_SLOWEST_FILES);
+    }
+
+    SmutDetectPerformanceReport(int slowestFilesKept) {
+        this.slowestFilesKept = slowestFilesKept;
+    }
+
+    /**
+     * Records the header check of a file, done for every file that reaches
+     * it whether it turns out to be an image or not.
+     *
+     * @param nanos time of the check
+     */
+    void recordSignatureCheck(long nanos) {
+        stages[Stage.SIGNATURE.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records an image that passed the header check.
+     *
+     * @param file the image file
+     * @param trace trace of the scan, empty if the result was cached
+     * @param cached true if the result came from the result cache or the
+     * persistent scan index
+     * @param postNanos time spent handing the result to the blackboard poster
+     * @param totalNanos time spent on the file in process
+     */
+    void recordImage(AbstractFile file, SmutDetectScanTrace trace, boolean cached, long postNanos, long totalNanos) {
+        String format;
+        if (cached) {
+            format = CACHED_FORMAT;
+        } else if (trace.getFormatName() != null) {
+            format = trace.getFormatName().toLowerCase();
+        } else {
+            format = UNKNOWN_FORMAT;
+        }
+
+        FormatStats stats = formats.get(format);
+        if (stats == null) {
+            stats = formats.computeIfAbsent(format, f -> new FormatStats());
+        }
+
+        if (!cached) {
+            record(stats, Stage.OPEN, trace.getOpenNanos());
+            record(stats, Stage.DECODE, trace.getDecodeNanos());
+            record(stats, Stage.SCAN, trace.getScanNanos());
+            record(stats, Stage.PERCENTAGES, trace.getPercentagesNanos());
+            stats.bytes.record(trace.getBytesRead());
+            stats.pixels.record(trace.getPixelsScanned());
+            bytesRead.add(trace.getBytesRead());
+            pixelsScanned.add(trace.getPixelsScanned());
+        }
+        record(stats, Stage.POST, postNanos);
+        record(stats, Stage.TOTAL, totalNanos);
+
+        if (totalNanos > slowestFilesThreshold) {
+            addSlowFile(new SlowFile(file.getName(), file.getId(), format, trace, totalNanos));
+        }
+    }
+
+    /**
+     * Records an image posted with a percentage at or above the triage
+     * threshold.
+     */
+    void recordHit() {
+        long count = hits.incrementAndGet();
+        for (int i = 0; i < HIT_MILESTONES.length; i++) {
+            if (count == HIT_MILESTONES[i]) {
+                hitMilestoneNanos.set(i, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * @return one line with the throughput of the job so far
+     */
+    String getSummary() {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        long images = stages[Stage.TOTAL.ordinal()].getCount();
+        long cached = getImageCount(CACHED_FORMAT);
+        String summary = String.format("Performance: %d images in %.1f s, %.1f images/s, %.1f MP/s, %.1f MB/s read (%d from the result cache)",
+                images, seconds, images / seconds, pixelsScanned.sum() / 1e6 / seconds,
+                bytesRead.sum() / 1e6 / seconds, cached);
+        if (hits.get() > 0) {
+            summary += String.format(", %d hits, the first after %.1f s", hits.get(), hitMilestoneNanos.get(0) / 1e9);
+        }
+        return summary;
+    }
+
+    /**
+     * @return percentiles per stage, the histograms per image format and the
+     * slowest files as HTML for the details of the ingest message
+     */
+    String getDetailsHtml() {
+        StringBuilder html = new StringBuilder();
+        html.append("<p>").append(escape(getSummary())).append("</p>");
+
+        html.append("<p>Time per stage in ms</p><table border='0' cellpadding='2'>");
+        html.append("<tr><th>Stage</th><th>Count</th><th>p50</th><th>p95</th><th>p99</th><th>Max</th><th>Total</th></tr>");
+        for (Stage stage : Stage.values()) {
+            Histogram h = stages[stage.ordinal()];
+            html.append("<tr><td>").append(stage.getDisplayName())
+                    .append("</td><td>").append(h.getCount())
+                    .append("</td><td>").append(millis(h.getPercentile(0.50)))
+                    .append("</td><td>").append(millis(h.getPercentile(0.95)))
+                    .append("</td><td>").append(millis(h.getPercentile(0.99)))
+                    .append("</td><td>").append(millis(h.getMax()))
+                    .append("</td><td>").append(millis(h.getSum()))
+                    .append("</td></tr>");
+        }
+        html.append("</table>");
+
+        html.append("<p>Time to the first hits</p><table border='0' cellpadding='2'>");
+        html.append("<tr><th>Hits</th><th>Seconds after the start of the job</th></tr>");
+        for (int i = 0; i < HIT_MILESTONES.length && HIT_MILESTONES[i] <= hits.get(); i++) {
+            html.append("<tr><td>").append(HIT_MILESTONES[i])
+                    .append("</td><td>").append(String.format("%.1f", hitMilestoneNanos.get(i) / 1e9))
+                    .append("</td></tr>");
+        }
+        html.append("</table>");
+
+        html.append("<p>Per image format</p><table border='0' cellpadding='2'>");
+        html.append("<tr><th>Format</th><th>Images</th><th>Decode p50/p95 ms</th><th>Scan p50/p95 ms</th>"
+                + "<th>Whole file p95 ms</th><th>KB read p50/p99</th><th>MP scanned p50/p99</th></tr>");
+        for (Map.Entry<String, FormatStats> entry : new TreeMap<>(formats).entrySet()) {
+            FormatStats stats = entry.getValue();
+            Histogram decode = stats.stages[Stage.DECODE.ordinal()];
+            Histogram scan = stats.stages[Stage.SCAN.ordinal()];
+            html.append("<tr><td>").append(escape(entry.getKey()))
+                    .append("</td><td>").append(stats.stages[Stage.TOTAL.ordinal()].getCount())
+                    .append("</td><td>").append(millis(decode.getPercentile(0.50)))
+                    .append(" / ").append(millis(decode.getPercentile(0.95)))
+                    .append("</td><td>").append(millis(scan.getPercentile(0.50)))
+                    .append(" / ").append(millis(scan.getPercentile(0.95)))
+                    .append("</td><td>").append(millis(stats.stages[Stage.TOTAL.ordinal()].getPercentile(0.95)))
+                    .append("</td><td>").append(stats.bytes.getPercentile(0.50) / 1024)
+                    .append(" / ").append(stats.bytes.getPercentile(0.99) / 1024)
+                    .append("</td><td>").append(String.format("%.2f", stats.pixels.getPercentile(0.50) / 1e6))
+                    .append(" / ").append(String.format("%.2f", stats.pixels.getPercentile(0.99) / 1e6))
+                    .append("</td></tr>");
+        }
+        html.append("</table>");
+
+        List<SlowFile> slowest;
+        synchronized (slowestFiles) {
+            slowest = new ArrayList<>(slowestFiles);
+        }
+        Collections.sort(slowest, Collections.reverseOrder());
+        html.append("<p>Slowest files</p><table border='0' cellpadding='2'>");
+        html.append("<tr><th>File</th><th>Id</th><th>Format</th><th>Whole file ms</th><th>Decode ms</th>"
+                + "<th>Scan ms</th><th>KB read</th></tr>");
+        for (SlowFile slow : slowest) {
+            html.append("<tr><td>").append(escape(slow.name))
+                    .append("</td><td>").append(slow.id)
+                    .append("</td><td>").append(escape(slow.format))
+                    .append("</td><td>").append(millis(slow.totalNanos))
+                    .append("</td><td>").append(millis(slow.decodeNanos))
+                    .append("</td><td>").append(millis(slow.scanNanos))
+                    .append("</td><td>").append(slow.bytesRead / 1024)
+                    .append("</td></tr>");
+        }
+        html.append("</table>");
+
+        return html.toString();
+    }
+
+    private long getImageCount(String format) {
+        FormatStats stats = formats.get(format);
+        return (stats == null) ? 0 : stats.stages[Stage.TOTAL.ordinal()].getCount();
+    }
+
+    private void record(FormatStats stats, Stage stage, long nanos) {
+        stages[stage.ordinal()].record(nanos);
+        stats.stages[stage.ordinal()].record(nanos);
+    }
+
+    private void addSlowFile(SlowFile slow) {
+        synchronized (slowestFiles) {
+            slowestFiles.add(slow);
+            if (slowestFiles.size() > slowestFilesKept) {
+                slowestFiles.poll();
+            }
+            if (slowestFiles.size() == slowestFilesKept) {
+                slowestFilesThreshold = slowestFiles.peek().totalNanos;
+            }
+        }
+    }
+
+    private static Histogram[] newStageHistograms() {
+        Histogram[] histograms = new Histogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+        return histograms;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static final class FormatStats {
+
+        final Histogram[] stages = newStageHistograms();
+        final Histogram bytes = new Histogram();
+        final Histogram pixels = new Histogram();
+    }
+
+    private static final class SlowFile implements Comparable<SlowFile> {
+
+        final String name;
+        final long id;
+        final String format;
+        final long totalNanos;
+        final long decodeNanos;
+        final long scanNanos;
+        final long bytesRead;
+
+        SlowFile(String name, long id, String format, SmutDetectScanTrace trace, long totalNanos) {
+            this.name = name;
+            this.id = id;
+            this.format = format;
+            this.totalNanos = totalNanos;
+            this.decodeNanos = trace.getDecodeNanos();
+            this.scanNanos = trace.getScanNanos();
+            this.bytesRead = trace.getBytesRead();
+        }
+
+        @Override
+        public int compareTo(SlowFile other) {
+            return Long.compare(totalNanos, other.totalNanos);
+        }
+    }
+
+    /**
+     * Log-linear histogram of non-negative values: values below 8 have a
+     * bucket each, above that every power of two is split into 8 buckets.
+     */
+    static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getSum() {
+            return sum.sum();
+        }
+
+        long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the middle of the bucket holding the quantile, at most the
+         * largest recorded value, 0 if nothing was recorded
+         */
+        long getPercentile(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(getMax(), lowerBoundOf(i) + (bucketWidthOf(i) - 1) / 2);
+                }
+            }
+            return getMax();
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long lowerBoundOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = bucket % SUB_BUCKETS;
+            return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        static long bucketWidthOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return 1;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return 1L << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+}
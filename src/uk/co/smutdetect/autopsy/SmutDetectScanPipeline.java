@@ -0,0 +1,335 @@
+/**
+ * SmutDetect4Autopsy
+ * Copyright (C) 2014 Rajmund Witt
+ * 
+ * Derived from Sample Module provided with Autopsy 3.1.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package uk.co.smutdetect.autopsy;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.ingest.IngestJobContext;
+import org.sleuthkit.autopsy.ingest.IngestServices;
+
+/**
+ * Reads, scans and posts the image files of an ingest job on threads of its
+ * own, so the ingest threads only filter the files and hand them over. Each
+ * file passes three stages:
+ *
+ * - read: the signature check and the read of the file into memory, on as
+ * many threads as files may be in the pipeline, so slow reads from the
+ * evidence wait side by side instead of holding up the scans
+ * - scan: decoding and scanning, on one thread per core
+ * - post: handing the result to the blackboard poster, which writes in
+ * batches, on a single thread
+ *
+ * The number of files being read or scanned is bounded by the queue depth,
+ * the files handed over wait in a backlog bounded by the backlog size and an
+ * ingest thread handing over a file waits while the backlog is full. Files
+ * are taken from the backlog and into the scan stage by their priority, the
+ * highest first, and in the order they came otherwise. Once the job is
+ * cancelled, files are no longer taken and files not yet read or scanned are
+ * dropped.
+ *
+ * Shared by the module instances of an ingest job.
+ */
+class SmutDetectScanPipeline {
+
+    private static final long SLOT_POLL_MILLIS = 100;
+    private final IngestJobContext context;
+    private final Semaphore backlogSlots;
+    private final Semaphore slots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final ThreadPoolExecutor readStage;
+    private final ThreadPoolExecutor scanStage;
+    private final ThreadPoolExecutor postStage;
+
+    /**
+     * The work on one file, split into the stages of the pipeline. Each stage
+     * is called on the thread of its stage, after the previous stage
+     * returned.
+     */
+    interface FileTask {
+
+        /**
+         * @return the priority of the file, read first: from its metadata,
+         * scanned first: also from what the read stage found
+         */
+        int getPriority();
+
+        /**
+         * @return false if the file is not scanned
+         */
+        boolean read();
+
+        /**
+         * @return false if there is nothing to post
+         */
+        boolean scan();
+
+        void post();
+    }
+
+    /**
+     * Counts the files a module instance handed to the pipeline which have
+     * not passed all stages yet.
+     */
+    static final class InFlight {
+
+        private int count = 0;
+
+        synchronized void add() {
+            count++;
+        }
+
+        synchronized void remove() {
+            count--;
+            if (count == 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until every file handed over has passed the pipeline or was
+         * dropped.
+         */
+        synchronized void awaitDrained() {
+            boolean interrupted = false;
+            while (count > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param context context of the ingest job, tells whether it was
+     * cancelled
+     * @param queueDepth most files read or scanned at a time
+     * @param backlog most files handed over and not yet through the
+     * pipeline, at least the queue depth
+     */
+    SmutDetectScanPipeline(IngestJobContext context, int queueDepth, int backlog) {
+        this.context = context;
+        this.backlogSlots = new Semaphore(Math.max(queueDepth, backlog));
+        this.slots = new Semaphore(queueDepth);
+        String prefix = "SmutDetect-" + context.getJobId() + "-";
+        this.readStage = newStage(prefix + "read-", queueDepth, new PriorityBlockingQueue<>());
+        this.scanStage = newStage(prefix + "scan-", Runtime.getRuntime().availableProcessors(), new PriorityBlockingQueue<>());
+        this.postStage = newStage(prefix + "post-", 1, new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * @return pool of the threads of a stage, idle threads end after a while
+     */
+    private static ThreadPoolExecutor newStage(String namePrefix, int threads, BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor stage = new ThreadPoolExecutor(threads, threads,
+                30, TimeUnit.SECONDS, queue,
+                new StageThreadFactory(namePrefix));
+        stage.allowCoreThreadTimeOut(true);
+        return stage;
+    }
+
+    /**
+     * Hands a file to the read stage, waiting while the backlog is full.
+     *
+     * @param task work on the file
+     * @param inFlight files of the module instance handing over the file
+     *
+     * @return false if the file was not taken because the job was cancelled
+     */
+    boolean submit(FileTask task, InFlight inFlight) {
+        try {
+            while (!backlogSlots.tryAcquire(SLOT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (context.isJobCancelled()) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (context.isJobCancelled()) {
+            backlogSlots.release();
+            return false;
+        }
+        inFlight.add();
+        boolean handedOver = false;
+        try {
+            readStage.execute(new StageWork(() -> read(task, inFlight), task.getPriority(), sequence.getAndIncrement()));
+            handedOver = true;
+        } finally {
+            if (!handedOver) {
+                backlogSlots.release();
+                inFlight.remove();
+            }
+        }
+        return true;
+    }
+
+    // each stage completes the file unless it handed it to the next stage,
+    // also when the stage fails with an error, so shutDown can not wait for
+    // a file that is gone
+
+    private void read(FileTask task, InFlight inFlight) {
+        boolean handedOver = false;
+        // the slot is held from the read until the file is posted or dropped,
+        // bounding the files held in memory
+        slots.acquireUninterruptibly();
+        try {
+            if (runStage(task::read, true)) {
+                scanStage.execute(new StageWork(() -> scan(task, inFlight), task.getPriority(), sequence.getAndIncrement()));
+                handedOver = true;
+            }
+        } finally {
+            if (!handedOver) {
+                complete(inFlight);
+            }
+        }
+    }
+
+    private void scan(FileTask task, InFlight inFlight) {
+        boolean handedOver = false;
+        try {
+            if (runStage(task::scan, true)) {
+                postStage.execute(() -> post(task, inFlight));
+                handedOver = true;
+            }
+        } finally {
+            if (!handedOver) {
+                complete(inFlight);
+            }
+        }
+    }
+
+    private void post(FileTask task, InFlight inFlight) {
+        try {
+            // a scanned file is posted even if the job was cancelled
+            // meanwhile, the poster writes it with the batch flushed on
+            // cancellation
+            runStage(() -> {
+                task.post();
+                return true;
+            }, false);
+        } finally {
+            complete(inFlight);
+        }
+    }
+
+    /**
+     * @param stage work of the stage
+     * @param cancellable true if the stage is skipped once the job was
+     * cancelled
+     *
+     * @return the result of the stage, false if it was skipped or failed
+     */
+    private boolean runStage(BooleanSupplier stage, boolean cancellable) {
+        if (cancellable && context.isJobCancelled()) {
+            return false;
+        }
+        try {
+            return stage.getAsBoolean();
+        } catch (RuntimeException ex) {
+            // one broken file must not stall the files of the others
+            Logger logger = IngestServices.getInstance().getLogger(SmutDetectIngestModuleFactory.getModuleName());
+            logger.log(Level.WARNING, "Failed to process a file in the scan pipeline", ex);
+            return false;
+        }
+    }
+
+    private void complete(InFlight inFlight) {
+        slots.release();
+        backlogSlots.release();
+        inFlight.remove();
+    }
+
+    /**
+     * Ends the threads of the stages. Called once the module instances of the
+     * job have waited for their files.
+     */
+    void shutDown() {
+        readStage.shutdown();
+        scanStage.shutdown();
+        postStage.shutdown();
+    }
+
+    /**
+     * Work queued for a stage, taken by its priority and then in the order
+     * it was queued.
+     */
+    private static final class StageWork implements Runnable, Comparable<StageWork> {
+
+        private final Runnable work;
+        private final int priority;
+        private final long sequence;
+
+        StageWork(Runnable work, int priority, long sequence) {
+            this.work = work;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            work.run();
+        }
+
+        @Override
+        public int compareTo(StageWork other) {
+            if (priority != other.priority) {
+                return (priority > other.priority) ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Names the threads of a stage, they do not keep Autopsy from exiting.
+     */
+    private static final class StageThreadFactory implements ThreadFactory {
+
+        private final String namePrefix;
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        StageThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * SmutDetect4Autopsy
+ * Copyright (C) 2014 Rajmund Witt
+ * 
+ * Derived from Sample Module provided with Autopsy 3.1.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+package uk.co.smutdetect.autopsy;
+
+import java.util.Locale;
+import org.sleuthkit.datamodel.AbstractFile;
+import uk.co.smutdetect.SmutDetectImagePreview;
+
+/**
+ * Guesses how likely a file is to be a hit, so the scan pipeline scans and
+ * posts those first and leaves small icons and web graphics for the end. The
+ * priority adds up cheap predictors, a higher priority is scanned first:
+ *
+ * - from the metadata, before the file is read: the folder (camera, user
+ * picture and download folders before system, program and cache folders)
+ * and the size
+ * - from the header, once the file is read: the dimensions and the
+ * skin-tone percentage of an embedded JPEG thumbnail
+ *
+ * The predictors only order the files, every file is still scanned.
+ */
+final class SmutDetectScanPriority {
+
+    /** Priority of a file no predictor says anything about. */
+    static final int NEUTRAL = 0;
+
+    // folders where users keep their own and downloaded pictures
+    private static final String[] USER_PICTURE_FOLDERS = {
+        "/dcim/", "/camera/", "/pictures/", "/photos/", "/downloads/", "/desktop/",
+        "/whatsapp/", "/telegram/", "/snapchat/", "/my pictures/"};
+
+    // folders of the user profiles
+    private static final String[] USER_PROFILE_FOLDERS = {
+        "/users/", "/documents and settings/", "/home/", "/private/var/mobile/", "/media/"};
+
+    // folders of the system, programs and caches, full of icons and graphics
+    private static final String[] SYSTEM_FOLDERS = {
+        "/windows/", "/program files", "/programdata/", "/usr/", "/system/", "/library/",
+        "/applications/", "/icons/", "/cache/", "/.cache/", "/temporary internet files/",
+        "/appdata/local/microsoft/", "/appdata/locallow/"};
+
+    private static final long ICON_BYTES = 8 * 1024;
+    private static final long SMALL_GRAPHIC_BYTES = 32 * 1024;
+    private static final long PHOTO_BYTES = 256 * 1024;
+    private static final long LARGE_PHOTO_BYTES = 1024 * 1024;
+    private static final int ICON_SIDE = 96;
+    private static final long PHOTO_PIXELS = 1000000;
+
+    private SmutDetectScanPriority() {
+    }
+
+    /**
+     * @param file file that passed the file filter
+     *
+     * @return priority from the folder and the size of the file
+     */
+    static int fromMetadata(AbstractFile file) {
+        int priority = NEUTRAL;
+
+        String path = file.getParentPath();
+        if (path != null) {
+            path = path.replace('\\', '/').toLowerCase(Locale.ROOT);
+            if (containsAny(path, USER_PICTURE_FOLDERS)) {
+                priority += 30;
+            } else if (containsAny(path, SYSTEM_FOLDERS)) {
+                priority -= 30;
+            } else if (containsAny(path, USER_PROFILE_FOLDERS)) {
+                priority += 10;
+            }
+        }
+
+        long size = file.getSize();
+        if (size < ICON_BYTES) {
+            priority -= 40;
+        } else if (size < SMALL_GRAPHIC_BYTES) {
+            priority -= 15;
+        } else if (size >= LARGE_PHOTO_BYTES) {
+            priority += 20;
+        } else if (size >= PHOTO_BYTES) {
+            priority += 10;
+        }
+        return priority;
+    }
+
+    /**
+     * @param metadataPriority priority from fromMetadata
+     * @param preview header of the image, null if it was not previewed
+     *
+     * @return the priority refined by the dimensions of the image and the
+     * percentage of its embedded thumbnail
+     */
+    static int fromPreview(int metadataPriority, SmutDetectImagePreview preview) {
+        if (preview == null) {
+            return metadataPriority;
+        }
+        int priority = metadataPriority;
+        if (Math.max(preview.getWidth(), preview.getHeight()) < ICON_SIDE) {
+            priority -= 40;
+        } else if ((long) preview.getWidth() * preview.getHeight() >= PHOTO_PIXELS) {
+            priority += 15;
+        }
+        // a thumbnail full of skin tones outweighs everything else
+        if (preview.getThumbnailPercentage() >= 0) {
+            priority += (int) preview.getThumbnailPercentage();
+        }
+        return priority;
+    }
+
+    private static boolean containsAny(String path, String[] folders) {
+        for (String folder : folders) {
+            if (path.contains(folder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}